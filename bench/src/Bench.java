@@ -0,0 +1,65 @@
+import java.util.*;
+
+// Prosty zamiennik JMH dla klas z pakietu domyślnego (JMH ich nie obsługuje): rozgrzewka,
+// potem BENCH_ITERATIONS pomiarów po sekundzie, wynik w ns na operację.
+// Liczbę pomiarów i czas rozgrzewki można zmienić: -Dbench.iterations=10 -Dbench.warmupSeconds=5
+final class Bench {
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long WARMUP_NANOS = Integer.getInteger("bench.warmupSeconds", 2) * 1_000_000_000L;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    // Wynik operacji trafia tutaj, żeby JIT nie mógł jej usunąć
+    private static volatile Object sink;
+
+    private Bench() {
+    }
+
+    static void consume(Object value) {
+        sink = value;
+    }
+
+    static void measure(String name, Operation operation) throws Exception {
+        runFor(WARMUP_NANOS, operation);
+        double[] nanosPerOperation = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            nanosPerOperation[i] = runFor(ITERATION_NANOS, operation);
+        }
+        double mean = Arrays.stream(nanosPerOperation).average().orElse(0);
+        double min = Arrays.stream(nanosPerOperation).min().orElse(0);
+        double max = Arrays.stream(nanosPerOperation).max().orElse(0);
+        System.out.printf("  %-48s %14.1f ns/op   (min %.1f, max %.1f)%n", name, mean, min, max);
+    }
+
+    private static double runFor(long nanos, Operation operation) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return (double) elapsed / operations;
+    }
+
+    static int[] sizes(String[] args, int... defaults) {
+        return args.length == 0 ? defaults : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+    }
+
+    // Lista o zadanej liczbie produktów rozłożonych na 50 kategorii
+    static Map<String, Map<String, Product>> sampleProductList(int size) {
+        Map<String, Map<String, Product>> productList = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < size; i++) {
+            String category = "kategoria-" + (i % 50);
+            String name = "produkt-" + i;
+            String unit = WireFormat.UNITS[random.nextInt(WireFormat.UNITS.length)];
+            productList.computeIfAbsent(category, k -> new HashMap<>()).put(name, new Product(name, 1 + random.nextInt(100), unit));
+        }
+        return productList;
+    }
+}
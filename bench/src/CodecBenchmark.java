@@ -0,0 +1,82 @@
+import java.io.*;
+import java.util.*;
+
+// Porównanie binarnego formatu ramek z dotychczasową serializacją obiektów Javy
+// na migawce listy o zadanej liczbie produktów. Uruchomienie: java CodecBenchmark [liczba produktów...]
+class CodecBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 1_000, 100_000)) {
+            Map<String, Map<String, Product>> productList = Bench.sampleProductList(size);
+            Map<String, Long> categoryRevisions = new HashMap<>();
+            for (String category : productList.keySet()) {
+                categoryRevisions.put(category, 1L);
+            }
+            System.out.println("Produktów: " + size);
+            measureObjectStreams(productList);
+            measureFrames(productList, categoryRevisions);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void measureObjectStreams(Map<String, Map<String, Product>> productList) throws Exception {
+        byte[] encoded = null;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(productList);
+            }
+            encoded = bytes.toByteArray();
+            long encodedAt = System.nanoTime();
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(encoded))) {
+                Bench.consume((Map<String, Map<String, Product>>) in.readObject());
+            }
+            long decodedAt = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                encodeNanos += encodedAt - start;
+                decodeNanos += decodedAt - encodedAt;
+            }
+        }
+        report("ObjectOutputStream", encoded.length, encodeNanos, decodeNanos);
+    }
+
+    private static void measureFrames(Map<String, Map<String, Product>> productList, Map<String, Long> categoryRevisions) throws Exception {
+        FrameWriter writer = new FrameWriter();
+        FrameReader reader = new FrameReader();
+        byte[] encoded = null;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            writer.reset();
+            writer.beginFrame();
+            writer.writeSnapshot(productList, categoryRevisions);
+            writer.endFrame();
+            long encodedAt = System.nanoTime();
+            if (encoded == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(writer.size());
+                writer.writeTo(bytes);
+                encoded = bytes.toByteArray();
+            }
+            long decodeStart = System.nanoTime();
+            reader.readFrame(new DataInputStream(new ByteArrayInputStream(encoded)));
+            Bench.consume(reader.readSnapshot(new HashMap<>()));
+            long decodedAt = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                encodeNanos += encodedAt - start;
+                decodeNanos += decodedAt - decodeStart;
+            }
+        }
+        report("FrameWriter", encoded.length, encodeNanos, decodeNanos);
+    }
+
+    private static void report(String format, int bytes, long encodeNanos, long decodeNanos) {
+        System.out.printf("  %-20s %,12d B   zapis %8.2f ms   odczyt %8.2f ms%n", format, bytes,
+                encodeNanos / 1e6 / MEASURED_ROUNDS, decodeNanos / 1e6 / MEASURED_ROUNDS);
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Zapis listy do CSV, samo parsowanie pliku i pełny import na serwer uruchomiony w tym samym procesie.
+// Uruchomienie: java -cp out/production/Projekt:out/production/bench CsvBenchmark [liczba produktów...]
+class CsvBenchmark {
+    private static final int SERVER_PORT = 18000;
+    // Pełny import jest mierzony tylko dla mniejszych list, żeby pomiar nie trwał minutami
+    private static final int MAX_IMPORTED_SIZE = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        Thread server = new Thread(() -> Server.main(new String[]{"--durability=none", "--port=" + SERVER_PORT}), "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        Path file = Files.createTempFile("lista", ".csv");
+        try {
+            for (int size : Bench.sizes(args, 1_000, 100_000, 1_000_000)) {
+                System.out.println("Produktów: " + size);
+                ProductListManager manager = new ProductListManager("127.0.0.1", SERVER_PORT);
+                manager.getProductList().putAll(Bench.sampleProductList(size));
+                Bench.measure("exportToFile", () -> manager.exportToFile(file.toString()));
+                System.out.printf("  %-48s %,14d B%n", "rozmiar pliku", Files.size(file));
+                Bench.measure("CsvReader (samo parsowanie)", () -> parse(file));
+                if (size <= MAX_IMPORTED_SIZE) {
+                    ProductListManager importer = new ProductListManager("127.0.0.1", SERVER_PORT);
+                    Bench.measure("importFromFile (na serwer)", () -> Bench.consume(importer.importFromFile(file.toString())));
+                    importer.clear();
+                    importer.close();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.exit(0);
+    }
+
+    private static void parse(Path file) throws IOException {
+        try (CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(file.toFile()), StandardCharsets.UTF_8))) {
+            List<String> fields = new ArrayList<>(4);
+            long records = 0;
+            while (reader.readRecord(fields)) {
+                records++;
+            }
+            Bench.consume(records);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Obciążenie działającego serwera z wielu połączeń naraz. Każde połączenie ma własny ProductListManager
+// i trzyma do --depth żądań w locie; na końcu wypisuje przepustowość i percentyle czasu odpowiedzi.
+// Przy --lists większym niż 1 połączenia są rozdzielane po kolei między tyle niezależnych list.
+// Uruchomienie: java -cp out/production/Projekt:out/production/bench LoadGenerator --connections=16 --depth=4
+//     --duration=30 --lists=8 --mix=add:40,edit:30,remove:10,get:15,batch:5
+class LoadGenerator {
+    enum Operation {ADD, EDIT, REMOVE, GET, BATCH}
+
+    private static final int BATCH_SIZE = 10;
+
+    String host = "127.0.0.1";
+    int port = 8000;
+    int connections = 8;
+    int depth = 1;
+    int durationSeconds = 30;
+    int warmupSeconds = 5;
+    int categories = 20;
+    int products = 10_000;
+    int lists = 1;
+    final EnumMap<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+    private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final LatencyHistogram allLatencies = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        mix.put(Operation.ADD, 40);
+        mix.put(Operation.EDIT, 30);
+        mix.put(Operation.REMOVE, 10);
+        mix.put(Operation.GET, 15);
+        mix.put(Operation.BATCH, 5);
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Nieprawidłowy argument: " + arg);
+            }
+            String value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "connections":
+                    connections = Integer.parseInt(value);
+                    break;
+                case "depth":
+                    depth = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "categories":
+                    categories = Integer.parseInt(value);
+                    break;
+                case "products":
+                    products = Integer.parseInt(value);
+                    break;
+                case "lists":
+                    lists = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    mix.clear();
+                    for (String part : value.split(",")) {
+                        String[] weight = part.split(":");
+                        mix.put(Operation.valueOf(weight[0].toUpperCase()), Integer.parseInt(weight[1]));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Nieznana opcja: " + arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+        populate();
+
+        List<Thread> drivers = new ArrayList<>();
+        List<ProductListManager> managers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            ProductListManager manager = new ProductListManager(host, port, listId(i));
+            managers.add(manager);
+            Thread driver = new Thread(() -> drive(manager), "load-" + i);
+            drivers.add(driver);
+            driver.start();
+        }
+        System.out.printf("Połączeń: %d, list: %d, żądań w locie na połączenie: %d, rozgrzewka %d s, pomiar %d s%n",
+                connections, lists, depth, warmupSeconds, durationSeconds);
+        Thread.sleep(warmupSeconds * 1000L);
+        long start = System.nanoTime();
+        measureFromNanos = start;
+        Thread.sleep(durationSeconds * 1000L);
+        running = false;
+        for (Thread driver : drivers) {
+            driver.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        report(elapsed);
+        for (ProductListManager manager : managers) {
+            manager.close();
+        }
+    }
+
+    // Każda kategoria dostaje komplet produktów, żeby edycje i usunięcia miały na czym działać
+    private void populate() {
+        for (int list = 0; list < lists; list++) {
+            ProductListManager manager = new ProductListManager(host, port, listId(list));
+            for (int category = 0; category < categories; category++) {
+                List<BatchOperation> operations = new ArrayList<>();
+                for (int product = category; product < products; product += categories) {
+                    operations.add(BatchOperation.addProduct(categoryName(product), productName(product), 1, "kg"));
+                }
+                manager.batch(operations);
+            }
+            manager.close();
+        }
+    }
+
+    // Przy jednej liście obciążana jest lista domyślna
+    private String listId(int connection) {
+        return lists == 1 ? WireFormat.DEFAULT_LIST_ID : "lista-" + (connection % lists);
+    }
+
+    private void drive(ProductListManager manager) {
+        Semaphore inFlight = new Semaphore(depth);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        while (running) {
+            inFlight.acquireUninterruptibly();
+            Operation operation = pick(random.nextInt(totalWeight));
+            long start = System.nanoTime();
+            send(manager, operation, random).whenComplete((ok, error) -> {
+                long end = System.nanoTime();
+                if (start >= measureFromNanos && running) {
+                    latencies.get(operation).record(end - start);
+                    allLatencies.record(end - start);
+                    if (error instanceof RequestRejectedException) {
+                        rejected.increment();
+                    } else if (error != null) {
+                        failed.increment();
+                    }
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquireUninterruptibly(depth);
+    }
+
+    private Operation pick(int roll) {
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            roll -= entry.getValue();
+            if (roll < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private CompletableFuture<Void> send(ProductListManager manager, Operation operation, ThreadLocalRandom random) {
+        int product = random.nextInt(products);
+        switch (operation) {
+            case ADD:
+                return manager.addProductAsync(categoryName(product), productName(product), 1, "kg");
+            case EDIT:
+                return manager.editProductAsync(categoryName(product), productName(product), productName(product), 1 + random.nextInt(10), "kg");
+            case REMOVE:
+                return manager.removeProductAsync(categoryName(product), productName(product));
+            case GET:
+                return manager.refreshAsync();
+            case BATCH: {
+                List<BatchOperation> operations = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    int batched = random.nextInt(products);
+                    operations.add(BatchOperation.addProduct(categoryName(batched), productName(batched), 1, "kg"));
+                }
+                return manager.batchAsync(operations);
+            }
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private String categoryName(int product) {
+        return "kategoria-" + (product % categories);
+    }
+
+    private static String productName(int product) {
+        return "produkt-" + product;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Żądań: %,d (%,.0f/s), odrzuconych: %,d, błędów: %,d%n",
+                allLatencies.count(), allLatencies.count() / seconds, rejected.sum(), failed.sum());
+        System.out.printf("  %-8s %12s %10s %10s %10s %10s %10s%n", "", "żądań", "p50 µs", "p99 µs", "p999 µs", "max µs", "średnio µs");
+        for (Operation operation : Operation.values()) {
+            if (mix.getOrDefault(operation, 0) > 0) {
+                printRow(operation.name(), latencies.get(operation));
+            }
+        }
+        printRow("RAZEM", allLatencies);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram) {
+        System.out.printf("  %-8s %,12d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name, histogram.count(),
+                histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+                histogram.max() / 1e3, histogram.mean() / 1e3);
+    }
+}
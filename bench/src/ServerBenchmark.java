@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Ścieżka żądania serwera bez sieci: dekodowanie ramki, zmiana listy i zakodowanie odpowiedzi
+// (Server.handleRequest), oraz kodowanie całej listy w odpowiedzi dla klienta, który jest zbyt daleko w tyle.
+// Uruchomienie: java -cp out/production/Projekt:out/production/bench ServerBenchmark [liczba produktów...]
+class ServerBenchmark {
+    private static final int PRODUCT_NAMES = 100_000;
+    private static final int BATCH_SIZE = 100;
+
+    private final ClientSession session = new ClientSession(null);
+    private final FrameWriter request = new FrameWriter();
+    private final FrameWriter response = new FrameWriter();
+    private final FrameReader reader = new FrameReader();
+    private long nextRequestId;
+    private int counter;
+
+    public static void main(String[] args) throws Exception {
+        ServerBenchmark benchmark = new ServerBenchmark();
+        System.out.println("Server.handleRequest:");
+        benchmark.measureMutations();
+        for (int size : Bench.sizes(args, 1_000, 100_000, 1_000_000)) {
+            System.out.println("Odpowiedź z całą listą, produktów: " + size);
+            measureSnapshot(size);
+        }
+    }
+
+    private void measureMutations() throws Exception {
+        Bench.measure("ADD_PRODUCT", () -> {
+            String name = "produkt-" + (counter++ % PRODUCT_NAMES);
+            handle(WireFormat.ADD_PRODUCT, w -> {
+                w.writeString("benchmark");
+                w.writeString(name);
+                w.writeDouble(1);
+                w.writeByte(WireFormat.unitCode("kg"));
+            });
+        });
+        Bench.measure("EDIT_PRODUCT (ta sama nazwa)", () -> {
+            String name = "produkt-" + (counter++ % PRODUCT_NAMES);
+            handle(WireFormat.EDIT_PRODUCT, w -> {
+                w.writeString("benchmark");
+                w.writeString(name);
+                w.writeString(name);
+                w.writeDouble(2);
+                w.writeByte(WireFormat.unitCode("kg"));
+            });
+        });
+        Bench.measure("REMOVE_PRODUCT + ADD_PRODUCT", () -> {
+            String name = "produkt-" + (counter++ % PRODUCT_NAMES);
+            handle(WireFormat.REMOVE_PRODUCT, w -> {
+                w.writeString("benchmark");
+                w.writeString(name);
+            });
+            handle(WireFormat.ADD_PRODUCT, w -> {
+                w.writeString("benchmark");
+                w.writeString(name);
+                w.writeDouble(1);
+                w.writeByte(WireFormat.unitCode("kg"));
+            });
+        });
+        Bench.measure("BATCH " + BATCH_SIZE + " x ADD_PRODUCT", () -> {
+            List<BatchOperation> operations = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                operations.add(BatchOperation.addProduct("benchmark", "produkt-" + (counter++ % PRODUCT_NAMES), 1, "kg"));
+            }
+            handle(WireFormat.BATCH, w -> {
+                w.writeInt(operations.size());
+                for (BatchOperation operation : operations) {
+                    w.writeOperation(operation);
+                }
+            });
+        });
+    }
+
+    private interface Arguments {
+        void write(FrameWriter writer);
+    }
+
+    private void handle(byte opcode, Arguments arguments) throws Exception {
+        request.reset();
+        request.beginFrame();
+        request.writeLong(++nextRequestId);
+        request.writeByte(opcode);
+        request.writeString(WireFormat.DEFAULT_LIST_ID);
+        request.writeLong(session.deliveredRevision);
+        arguments.write(request);
+        request.endFrame();
+        ByteBuffer frame = request.asByteBuffer();
+        reader.readFrame(frame);
+        response.reset();
+        Server.handleRequest(session, reader, response);
+        Bench.consume(response);
+    }
+
+    private static void measureSnapshot(int size) throws Exception {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        for (Map.Entry<String, Map<String, Product>> entry : Bench.sampleProductList(size).entrySet()) {
+            store.addProducts(entry.getKey(), new ArrayList<>(entry.getValue().values()));
+        }
+        FrameWriter writer = new FrameWriter();
+        Bench.measure("snapshot() + writeSnapshot", () -> {
+            ProductStore.Snapshot snapshot = store.snapshot();
+            writer.reset();
+            writer.beginFrame();
+            writer.writeSnapshot(snapshot.productList, snapshot.categoryRevisions);
+            writer.endFrame();
+            Bench.consume(writer);
+        });
+        System.out.printf("  %-48s %,14d B%n", "rozmiar ramki", writer.size());
+
+        // Zakodowana lista wspólna dla czytelników: bez zmian jest gotowa, po zmianie koduje się jedna kategoria
+        Bench.measure("encodedSnapshot() bez zmian", () -> Bench.consume(store.encodedSnapshot()));
+        String category = store.snapshot().productList.keySet().iterator().next();
+        int[] counter = {0};
+        Bench.measure("addProduct + encodedSnapshot()", () -> {
+            store.addProduct(category, "dodany-" + (counter[0]++ % PRODUCT_NAMES), 1, "kg");
+            Bench.consume(store.encodedSnapshot());
+        });
+
+        // Zapytania korzystają z indeksu nazw i sum kategorii, więc nie zależą liniowo od rozmiaru listy
+        Bench.measure("searchByPrefix(\"produkt-12\", 100)", () -> Bench.consume(store.searchByPrefix("produkt-12", 100)));
+        Bench.measure("searchBySubstring(\"4321\", 100)", () -> Bench.consume(store.searchBySubstring("4321", 100)));
+        Bench.measure("totals()", () -> Bench.consume(store.totals()));
+    }
+}
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Pamięć zajmowana przez listę serwera w obu układach (--storage=hash|columnar) oraz kompresja migawki na łączu.
+// Sterta jest mierzona po wymuszonym odśmiecaniu, bez nazw produktów, które oba układy trzymają tak samo.
+// Najlepiej uruchamiać z jednym odśmiecaczem i stałą stertą, np. -XX:+UseSerialGC -Xms2g -Xmx2g.
+// Uruchomienie: java -cp out/production/Projekt:out/production/bench StorageBenchmark [liczba produktów...]
+class StorageBenchmark {
+    private static final int CATEGORIES = 50;
+    private static final int COMPRESSION_ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes(args, 100_000, 1_000_000)) {
+            String[] names = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = "produkt-" + i;
+            }
+            System.out.println("Produktów: " + size);
+            for (ServerConfig.Storage storage : ServerConfig.Storage.values()) {
+                measureTables(storage, names);
+                measureStore(storage, names);
+            }
+            measureCompression(names);
+        }
+    }
+
+    // Same tabele kategorii, bez indeksu wyszukiwania i sum
+    private static void measureTables(ServerConfig.Storage storage, String[] names) {
+        long before = usedHeap();
+        ProductTable[] tables = new ProductTable[CATEGORIES];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = storage == ServerConfig.Storage.COLUMNAR ? new ColumnarProductTable() : new HashProductTable();
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < names.length; i++) {
+            tables[i % CATEGORIES].put(product(names[i], random));
+        }
+        report(storage + ": tabele kategorii", usedHeap() - before, names.length);
+        Bench.consume(tables);
+    }
+
+    // Cała lista z indeksem nazw i sumami, po zapisie i po pierwszym odczycie, który zostawia kopię dla czytelników
+    private static void measureStore(ServerConfig.Storage storage, String[] names) {
+        long before = usedHeap();
+        ProductStore store = load(storage, names);
+        report(storage + ": ProductStore", usedHeap() - before, names.length);
+        ProductStore.EncodedSnapshot snapshot = store.encodedSnapshot();
+        report(storage + ": ProductStore po encodedSnapshot()", usedHeap() - before, names.length);
+        Bench.consume(snapshot);
+        Bench.consume(store);
+    }
+
+    private static void measureCompression(String[] names) throws Exception {
+        ProductStore.EncodedSnapshot snapshot = load(ServerConfig.Storage.COLUMNAR, names).encodedSnapshot();
+        ByteBuffer deflated = null;
+        long deflateNanos = 0;
+        long inflateNanos = 0;
+        FrameWriter writer = new FrameWriter();
+        FrameReader reader = new FrameReader();
+        for (int round = 0; round < COMPRESSION_ROUNDS; round++) {
+            long start = System.nanoTime();
+            deflated = new ProductStore.EncodedSnapshot(snapshot.revision, snapshot.bytes).deflated();
+            long deflatedAt = System.nanoTime();
+            writer.reset();
+            writer.beginFrame();
+            writer.writeShared(deflated);
+            writer.endFrame();
+            byte[] frame = writer.toByteArray();
+            long inflateStart = System.nanoTime();
+            reader.readFrame(ByteBuffer.wrap(frame));
+            Bench.consume(reader.readDeflated().readSnapshot(new HashMap<>()));
+            long inflatedAt = System.nanoTime();
+            deflateNanos += deflatedAt - start;
+            inflateNanos += inflatedAt - inflateStart;
+        }
+        System.out.printf("  %-48s %,14d B%n", "migawka", snapshot.bytes.remaining());
+        System.out.printf("  %-48s %,14d B   kompresja %.2f ms   odczyt %.2f ms%n", "migawka po kompresji",
+                deflated.remaining(), deflateNanos / 1e6 / COMPRESSION_ROUNDS, inflateNanos / 1e6 / COMPRESSION_ROUNDS);
+    }
+
+    private static ProductStore load(ServerConfig.Storage storage, String[] names) {
+        ProductStore store = new ProductStore(WireFormat.availableUnits(), new ProductStore.Stats(), storage);
+        Random random = new Random(42);
+        List<List<Product>> categories = new ArrayList<>();
+        for (int i = 0; i < CATEGORIES; i++) {
+            categories.add(new ArrayList<>());
+        }
+        for (int i = 0; i < names.length; i++) {
+            categories.get(i % CATEGORIES).add(product(names[i], random));
+        }
+        for (int i = 0; i < CATEGORIES; i++) {
+            store.addProducts("kategoria-" + i, categories.get(i));
+        }
+        return store;
+    }
+
+    private static Product product(String name, Random random) {
+        return new Product(name, 1 + random.nextInt(100), WireFormat.UNITS[random.nextInt(WireFormat.UNITS.length)]);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, long bytes, int products) {
+        System.out.printf("  %-48s %,14d B   %6.1f B/produkt%n", name, bytes, (double) bytes / products);
+    }
+}
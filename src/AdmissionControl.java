@@ -0,0 +1,101 @@
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Ochrona serwera przed przeciążeniem: limit otwartych połączeń i kubełek żetonów dla każdego adresu klienta,
+// wspólny dla wszystkich jego połączeń. Żądanie ponad limit dostaje od razu odpowiedź BUSY, więc klient, który
+// zalewa serwer żądaniami, nie wydłuża kolejki pozostałym.
+final class AdmissionControl {
+    private final int maxConnections;
+    // Żetony na nanosekundę; 0 wyłącza limit żądań
+    private final double tokensPerNano;
+    private final double burst;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder throttledRequests = new LongAdder();
+    private final LongAdder busyRequests = new LongAdder();
+    private final LongAdder timedOutConnections = new LongAdder();
+
+    // Stan jednego adresu klienta; istnieje, dopóki adres ma otwarte połączenia
+    static final class Client {
+        final InetAddress address;
+        // Nie monitor, bo biorą ją wątki wirtualne sesji
+        private final ReentrantLock lock = new ReentrantLock();
+        private int connections;
+        private double tokens;
+        private long refilledAt;
+
+        Client(InetAddress address, double burst) {
+            this.address = address;
+            this.tokens = burst;
+            this.refilledAt = System.nanoTime();
+        }
+    }
+
+    AdmissionControl(ServerConfig config) {
+        this.maxConnections = config.maxConnections;
+        this.tokensPerNano = config.rateLimit / 1e9;
+        this.burst = config.rateBurst > 0 ? config.rateBurst : Math.max(1, config.rateLimit);
+    }
+
+    void registerMetrics(ServerMetrics metrics) {
+        metrics.gauge("admission.clients", clients::size);
+        metrics.gauge("admission.rejected_connections", rejectedConnections::sum);
+        metrics.gauge("admission.throttled_requests", throttledRequests::sum);
+        metrics.gauge("admission.busy_requests", busyRequests::sum);
+        metrics.gauge("admission.timed_out_connections", timedOutConnections::sum);
+    }
+
+    // null, gdy serwer ma już najwięcej połączeń, jakie może przyjąć; połączenie trzeba wtedy zamknąć
+    Client admit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            rejectedConnections.increment();
+            return null;
+        }
+        return clients.compute(address, (key, client) -> {
+            Client admitted = client != null ? client : new Client(key, burst);
+            admitted.connections++;
+            return admitted;
+        });
+    }
+
+    void release(Client client) {
+        connections.decrementAndGet();
+        clients.computeIfPresent(client.address, (key, current) -> --current.connections == 0 ? null : current);
+    }
+
+    // Żądanie za długo czekało na swoją partycję
+    void recordBusy() {
+        busyRequests.increment();
+    }
+
+    void recordTimeout() {
+        timedOutConnections.increment();
+    }
+
+    // Zużywa żeton klienta; false, gdy klient przekroczył swój limit żądań
+    boolean tryAcquire(Client client) {
+        if (tokensPerNano == 0 || client == null) {
+            return true;
+        }
+        client.lock.lock();
+        try {
+            long now = System.nanoTime();
+            client.tokens = Math.min(burst, client.tokens + (now - client.refilledAt) * tokensPerNano);
+            client.refilledAt = now;
+            if (client.tokens >= 1) {
+                client.tokens--;
+                return true;
+            }
+        } finally {
+            client.lock.unlock();
+        }
+        throttledRequests.increment();
+        return false;
+    }
+}
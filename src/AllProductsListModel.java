@@ -0,0 +1,47 @@
+import javax.swing.*;
+import java.util.*;
+
+// Wszystkie kategorie z produktami jako jedna lista: nagłówek kategorii, a pod nim jej produkty.
+// Wiersze nie są tworzone z góry; kategoria jest sortowana dopiero wtedy, gdy JList poprosi o jej wiersz.
+final class AllProductsListModel extends AbstractListModel<String> {
+    private final String[] categories;
+    private final Product[][] products;
+    // Numer wiersza nagłówka każdej kategorii
+    private final int[] offsets;
+    private final boolean[] sorted;
+    private final int size;
+
+    AllProductsListModel(Map<String, Collection<Product>> productList) {
+        categories = productList.keySet().toArray(new String[0]);
+        Arrays.sort(categories);
+        products = new Product[categories.length][];
+        offsets = new int[categories.length];
+        sorted = new boolean[categories.length];
+        int row = 0;
+        for (int i = 0; i < categories.length; i++) {
+            products[i] = productList.get(categories[i]).toArray(new Product[0]);
+            offsets[i] = row;
+            row += 1 + products[i].length;
+        }
+        size = row;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        int category = Arrays.binarySearch(offsets, index);
+        if (category >= 0) {
+            return categories[category];
+        }
+        category = -category - 2;
+        if (!sorted[category]) {
+            Arrays.sort(products[category], Comparator.comparing((Product product) -> product.name));
+            sorted[category] = true;
+        }
+        return "  - " + products[category][index - offsets[category] - 1];
+    }
+}
@@ -0,0 +1,44 @@
+// Jedna operacja żądania BATCH. Kody operacji to kody odpowiadających im pojedynczych żądań,
+// a argumenty są kodowane tak samo.
+final class BatchOperation {
+    final byte opcode;
+    final String category;
+    // Dla EDIT_PRODUCT poprzednia nazwa produktu
+    final String name;
+    final String newName;
+    final double quantity;
+    final String unit;
+
+    private BatchOperation(byte opcode, String category, String name, String newName, double quantity, String unit) {
+        this.opcode = opcode;
+        this.category = category;
+        this.name = name;
+        this.newName = newName;
+        this.quantity = quantity;
+        this.unit = unit;
+    }
+
+    static BatchOperation addCategory(String category) {
+        return new BatchOperation(WireFormat.ADD_CATEGORY, category, null, null, 0, null);
+    }
+
+    static BatchOperation addProduct(String category, String name, double quantity, String unit) {
+        return new BatchOperation(WireFormat.ADD_PRODUCT, category, name, null, quantity, unit);
+    }
+
+    static BatchOperation editProduct(String category, String oldName, String newName, double newQuantity, String newUnit) {
+        return new BatchOperation(WireFormat.EDIT_PRODUCT, category, oldName, newName, newQuantity, newUnit);
+    }
+
+    static BatchOperation removeProduct(String category, String name) {
+        return new BatchOperation(WireFormat.REMOVE_PRODUCT, category, name, null, 0, null);
+    }
+
+    static BatchOperation removeCategory(String category) {
+        return new BatchOperation(WireFormat.REMOVE_CATEGORY, category, null, null, 0, null);
+    }
+
+    static BatchOperation clear() {
+        return new BatchOperation(WireFormat.CLEAR, null, null, null, 0, null);
+    }
+}
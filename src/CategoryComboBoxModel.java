@@ -0,0 +1,38 @@
+import javax.swing.*;
+import java.util.*;
+import java.util.function.Function;
+
+// Kategorie w kolejności alfabetycznej; zmiana listy zgłasza tylko dodane i usunięte kategorie
+final class CategoryComboBoxModel extends SortedListModel<String> implements ComboBoxModel<String> {
+    private Object selectedItem;
+
+    CategoryComboBoxModel() {
+        super(Function.identity());
+    }
+
+    void update(Collection<String> categories) {
+        Map<String, String> elements = new HashMap<>();
+        for (String category : categories) {
+            elements.put(category, category);
+        }
+        update(elements);
+        if (selectedItem != null && !elements.containsKey(selectedItem)) {
+            setSelectedItem(getSize() > 0 ? getElementAt(0) : null);
+        } else if (selectedItem == null && getSize() > 0) {
+            setSelectedItem(getElementAt(0));
+        }
+    }
+
+    @Override
+    public void setSelectedItem(Object item) {
+        if (!Objects.equals(selectedItem, item)) {
+            selectedItem = item;
+            fireContentsChanged(this, -1, -1);
+        }
+    }
+
+    @Override
+    public Object getSelectedItem() {
+        return selectedItem;
+    }
+}
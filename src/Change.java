@@ -0,0 +1,48 @@
+import java.util.*;
+
+class Change {
+    // Kolejność wyznacza kody typów na łączu i w dzienniku, nowe typy dopisujemy na końcu
+    enum Type {ADD_CATEGORY, PUT_PRODUCT, REMOVE_PRODUCT, REMOVE_CATEGORY}
+
+    final long revision;
+    final Type type;
+    final String category;
+    // Dla PUT_PRODUCT poprzednia nazwa produktu, jeśli został przemianowany
+    final String name;
+    final Product product;
+
+    Change(long revision, Type type, String category, String name, Product product) {
+        this.revision = revision;
+        this.type = type;
+        this.category = category;
+        this.name = name;
+        this.product = product;
+    }
+
+    // Zmiana niesie stan produktu po operacji, więc jej ponowne zastosowanie niczego nie psuje
+    void applyTo(Map<String, Map<String, Product>> productList) {
+        switch (type) {
+            case ADD_CATEGORY:
+                productList.putIfAbsent(category, new HashMap<>());
+                break;
+            case PUT_PRODUCT: {
+                Map<String, Product> products = productList.computeIfAbsent(category, k -> new HashMap<>());
+                if (name != null && !name.equals(product.name)) {
+                    products.remove(name);
+                }
+                products.put(product.name, product);
+                break;
+            }
+            case REMOVE_PRODUCT: {
+                Map<String, Product> products = productList.get(category);
+                if (products != null) {
+                    products.remove(name);
+                }
+                break;
+            }
+            case REMOVE_CATEGORY:
+                productList.remove(category);
+                break;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+import java.util.List;
+
+// Odbiorca zmian zatwierdzanych przez ProductStore, wywoływany w kolejności rewizji, zanim zmiany trafią
+// do listy. Wyjątek oznacza, że zmian nie zapisano; lista ich wtedy nie wprowadza.
+interface ChangeJournal {
+    void append(Change change);
+
+    // Zmiany zatwierdzone razem, zapisywane jako jeden rekord
+    void appendAll(List<Change> changes);
+
+    // Lista została zastąpiona w całości bez zapisu zmian (replika po ponownym połączeniu),
+    // więc dziennik musi zapisać nową migawkę
+    void checkpoint();
+}
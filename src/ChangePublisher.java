@@ -0,0 +1,240 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Rozsyła zatwierdzone zmiany list jednej partycji do ich subskrybentów. Co FLUSH_INTERVAL_MILLIS pobiera
+// z każdej subskrybowanej listy nowe zmiany, dokłada je do kolejek subskrybentów, scalając kolejne zmiany
+// tego samego produktu, i wysyła każdemu jedną paczkę. Klient, który nie odbiera danych, dostaje zmiany
+// dopiero po opróżnieniu swojego bufora, a gdy jego kolejka przekroczy limit, zamiast niej dostanie pełną listę.
+final class ChangePublisher {
+    private static final long FLUSH_INTERVAL_MILLIS = 20;
+    private static final int MAX_QUEUED_CHANGES = 10_000;
+    private static final long MAX_BUFFERED_BYTES = 1024 * 1024;
+
+    private final String threadName;
+    private final Queue<Subscriber> newSubscribers = new ConcurrentLinkedQueue<>();
+    // Używane tylko przez wątek rozsyłający; lista bez subskrybentów nie ma tematu
+    private final Map<ProductStore, Topic> topics = new HashMap<>();
+    private final FrameWriter frame = new FrameWriter();
+    // Dla metryk, odczytywane z innych wątków
+    private volatile int subscriberCount;
+    private volatile int queuedChanges;
+    private final LongAdder snapshotPushes = new LongAdder();
+    private final LongAdder skippedFlushes = new LongAdder();
+
+    private static final class Topic {
+        final ProductStore store;
+        final List<Subscriber> subscribers = new ArrayList<>();
+        long publishedRevision;
+
+        Topic(ProductStore store) {
+            this.store = store;
+            this.publishedRevision = store.revision();
+        }
+    }
+
+    private static final class Subscriber {
+        final ProductStore store;
+        final SessionOutput output;
+        final long fromRevision;
+        final boolean deflate;
+        // Ostatnia zmiana każdego produktu, klucz: kategoria i nazwa
+        final Map<List<String>, Change> queued = new HashMap<>();
+        boolean needsSnapshot;
+
+        Subscriber(ProductStore store, SessionOutput output, long fromRevision, boolean deflate) {
+            this.store = store;
+            this.output = output;
+            this.fromRevision = fromRevision;
+            this.deflate = deflate;
+        }
+
+        void offer(Change change) {
+            if (needsSnapshot) {
+                return;
+            }
+            if (change.type == Change.Type.PUT_PRODUCT && change.name != null && !change.name.equals(change.product.name)) {
+                // Zmiana nazwy to usunięcie starego i dodanie nowego produktu, scalane osobno
+                queue(new Change(change.revision, Change.Type.REMOVE_PRODUCT, change.category, change.name, null));
+                queue(new Change(change.revision, Change.Type.PUT_PRODUCT, change.category, null, change.product));
+            } else {
+                queue(change);
+            }
+        }
+
+        private void queue(Change change) {
+            if (change.type == Change.Type.REMOVE_CATEGORY) {
+                // Usunięcie kategorii unieważnia wszystkie jej wcześniejsze zmiany, ale samo musi dotrzeć
+                // do klienta nawet wtedy, gdy kategoria zostanie zaraz utworzona ponownie
+                queued.keySet().removeIf(key -> key.get(0).equals(change.category));
+                queued.put(Collections.singletonList(change.category), change);
+                return;
+            }
+            String name = change.type == Change.Type.PUT_PRODUCT ? change.product.name : change.name;
+            queued.put(Arrays.asList(change.category, name), change);
+            if (queued.size() > MAX_QUEUED_CHANGES) {
+                queued.clear();
+                needsSnapshot = true;
+            }
+        }
+    }
+
+    ChangePublisher(String threadName) {
+        this.threadName = threadName;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void registerMetrics(ServerMetrics metrics, String prefix) {
+        metrics.gauge(prefix + "publisher.subscribers", () -> subscriberCount);
+        metrics.gauge(prefix + "publisher.queued_changes", () -> queuedChanges);
+        metrics.gauge(prefix + "publisher.snapshot_pushes", snapshotPushes::sum);
+        metrics.gauge(prefix + "publisher.skipped_slow_subscribers", skippedFlushes::sum);
+    }
+
+    // Klient zna już listę do fromRevision z odpowiedzi na żądanie SUBSCRIBE
+    void subscribe(ProductStore store, SessionOutput output, long fromRevision, boolean deflate) {
+        newSubscribers.add(new Subscriber(store, output, fromRevision, deflate));
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            collect();
+            int subscribers = 0;
+            int stillQueued = 0;
+            for (Iterator<Topic> it = topics.values().iterator(); it.hasNext(); ) {
+                Topic topic = it.next();
+                stillQueued += flush(topic);
+                if (topic.subscribers.isEmpty()) {
+                    it.remove();
+                }
+                subscribers += topic.subscribers.size();
+            }
+            subscriberCount = subscribers;
+            queuedChanges = stillQueued;
+        }
+    }
+
+    private void collect() {
+        Subscriber subscriber;
+        while ((subscriber = newSubscribers.poll()) != null) {
+            Topic topic = topics.computeIfAbsent(subscriber.store, Topic::new);
+            topic.subscribers.add(subscriber);
+            offer(subscriber, topic.store.changesSince(Math.min(subscriber.fromRevision, topic.publishedRevision), topic.publishedRevision));
+        }
+        for (Topic topic : topics.values()) {
+            long revision = topic.store.revision();
+            if (revision > topic.publishedRevision) {
+                List<Change> changes = topic.store.changesSince(topic.publishedRevision, revision);
+                for (Subscriber each : topic.subscribers) {
+                    offer(each, changes);
+                }
+                topic.publishedRevision = revision;
+            }
+        }
+    }
+
+    private static void offer(Subscriber subscriber, List<Change> changes) {
+        if (changes == null) {
+            subscriber.queued.clear();
+            subscriber.needsSnapshot = true;
+            return;
+        }
+        for (Change change : changes) {
+            subscriber.offer(change);
+        }
+    }
+
+    // Zwraca liczbę zmian, które zostały w kolejkach wolnych subskrybentów
+    private int flush(Topic topic) {
+        // Pełna lista jest kodowana raz; subskrybenci dostają widoki tych samych buforów
+        ByteBuffer[] snapshotFrame = null;
+        ByteBuffer[] deflatedSnapshotFrame = null;
+        int stillQueued = 0;
+        for (Iterator<Subscriber> it = topic.subscribers.iterator(); it.hasNext(); ) {
+            Subscriber subscriber = it.next();
+            if (!subscriber.output.isOpen()) {
+                it.remove();
+                continue;
+            }
+            if (subscriber.output.pendingBytes() > MAX_BUFFERED_BYTES) {
+                skippedFlushes.increment();
+                stillQueued += subscriber.queued.size();
+                continue;
+            }
+            if (subscriber.needsSnapshot) {
+                if (subscriber.deflate) {
+                    if (deflatedSnapshotFrame == null) {
+                        deflatedSnapshotFrame = encodeSnapshot(topic.store, true);
+                    }
+                    subscriber.output.send(duplicate(deflatedSnapshotFrame));
+                } else {
+                    if (snapshotFrame == null) {
+                        snapshotFrame = encodeSnapshot(topic.store, false);
+                    }
+                    subscriber.output.send(duplicate(snapshotFrame));
+                }
+                subscriber.needsSnapshot = false;
+                snapshotPushes.increment();
+            } else if (!subscriber.queued.isEmpty()) {
+                subscriber.output.send(encodeChanges(subscriber.queued.values(), topic.publishedRevision));
+                subscriber.queued.clear();
+            }
+        }
+        return stillQueued;
+    }
+
+    private static ByteBuffer[] duplicate(ByteBuffer[] frame) {
+        ByteBuffer[] copy = new ByteBuffer[frame.length];
+        for (int i = 0; i < frame.length; i++) {
+            copy[i] = frame[i].duplicate();
+        }
+        return copy;
+    }
+
+    // Powiadomienie ma postać odpowiedzi o identyfikatorze PUSH_REQUEST_ID
+    private void beginPush(byte payloadKind, long revision) {
+        frame.reset();
+        frame.beginFrame();
+        frame.writeLong(WireFormat.PUSH_REQUEST_ID);
+        frame.writeByte(WireFormat.STATUS_OK);
+        frame.writeByte(payloadKind);
+        frame.writeLong(revision);
+    }
+
+    private ByteBuffer[] encodeChanges(Collection<Change> queued, long publishedRevision) {
+        List<Change> changes = new ArrayList<>(queued);
+        // Klient stosuje zmiany kategorii w kolejności rewizji
+        changes.sort(Comparator.comparingLong(change -> change.revision));
+        beginPush(WireFormat.PAYLOAD_DELTA, publishedRevision);
+        frame.writeInt(changes.size());
+        for (Change change : changes) {
+            frame.writeChange(change);
+        }
+        frame.endFrame();
+        return frame.detachedSegments();
+    }
+
+    private ByteBuffer[] encodeSnapshot(ProductStore store, boolean deflate) {
+        ProductStore.EncodedSnapshot snapshot = store.encodedSnapshot();
+        if (deflate && snapshot.bytes.remaining() >= WireFormat.MIN_DEFLATED_SNAPSHOT_BYTES) {
+            beginPush(WireFormat.PAYLOAD_SNAPSHOT_DEFLATED, snapshot.revision);
+            frame.writeShared(snapshot.deflated());
+        } else {
+            beginPush(WireFormat.PAYLOAD_SNAPSHOT, snapshot.revision);
+            frame.writeShared(snapshot.bytes);
+        }
+        frame.endFrame();
+        return frame.detachedSegments();
+    }
+}
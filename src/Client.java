@@ -1,33 +1,47 @@
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 
 public class Client extends JFrame {
     private final ProductListManager manager;
+    private final CategoryComboBoxModel categoryModel;
     private final JComboBox<String> categoryComboBox;
-    private final DefaultListModel<Product> productListModel;
+    private final SortedListModel<Product> productListModel;
     private final JList<Product> productList;
     private final JTextField productNameField;
     private final JTextField productQuantityField;
     private final JTextField categoryField;
     private final JComboBox<String> unitComboBox;
-
-
-    public Client(String serverAddress, int serverPort) {
-        super("Lista zakupów");
+    // Zmiany wysłane do serwera i jeszcze niepotwierdzone; widok pokazuje je od razu.
+    // Używane tylko w wątku GUI.
+    private final java.util.List<Change> optimisticChanges = new ArrayList<>();
+    // Kategoria pokazana w widoku produktów i nazwy jej produktów, które mogły się zmienić od ostatniego
+    // odświeżenia; null oznacza, że widok trzeba porównać z całą kategorią. Używane tylko w wątku GUI.
+    private String shownCategory;
+    private Set<String> staleProducts;
+
+    public Client(String serverAddress, int serverPort, String listId) {
+        super(listId.isEmpty() ? "Lista zakupów" : "Lista zakupów: " + listId);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(600, 500);
         setLocationRelativeTo(null);
 
-        manager = new ProductListManager(serverAddress, serverPort);
+        manager = new ProductListManager(serverAddress, serverPort, listId);
 
         // Inicjalizacja komponentów GUI
-        categoryComboBox = new JComboBox<>();
+        categoryModel = new CategoryComboBoxModel();
+        categoryComboBox = new JComboBox<>(categoryModel);
         categoryComboBox.setPreferredSize(new Dimension(100, 25)); // Szerokość i wysokość
-        productListModel = new DefaultListModel<>();
+        categoryComboBox.setPrototypeDisplayValue("Przykładowa kategoria");
+        productListModel = new SortedListModel<>(product -> product.name);
         productList = new JList<>(productListModel);
+        // Stały rozmiar wiersza: JList nie mierzy wszystkich produktów, tylko rysuje widoczne
+        productList.setPrototypeCellValue(new Product("Przykładowy produkt o długiej nazwie", 1000, "sztuki"));
         productNameField = new JTextField();
         productQuantityField = new JTextField();
         unitComboBox = new JComboBox<>();
@@ -100,10 +114,49 @@ public class Client extends JFrame {
         removeCategoryButton.addActionListener(e -> removeCategory());
 
         add(mainPanel);
-        manager.sendRequest("GET_LIST");
-        updateCategoryComboBox();
-        updateProductList();
-        setVisible(true);
+        manager.setChangeListener(changes -> SwingUtilities.invokeLater(() -> {
+            markStale(changes);
+            refreshViews();
+        }));
+        manager.setOfflineRejectionListener((operation, error) -> SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, "Serwer odrzucił zmianę zrobioną bez połączenia: " + error.getMessage(),
+                        "Błąd", JOptionPane.ERROR_MESSAGE)));
+        openCacheAndSubscribe(cachePath(serverAddress, serverPort, listId));
+    }
+
+    // Kopia listy pokazuje listę, zanim odpowie serwer, i przechowuje zmiany zrobione bez połączenia.
+    // Plik jest czytany poza wątkiem GUI; subskrypcja startuje od rewizji z kopii.
+    private void openCacheAndSubscribe(String path) {
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                manager.openCache(path);
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    System.err.println("Nie udało się wczytać kopii listy: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                refreshViews();
+                manager.subscribeAsync().whenComplete((ok, error) -> SwingUtilities.invokeLater(() -> {
+                    refreshViews();
+                    if (error != null) {
+                        showRequestError(error);
+                    }
+                }));
+            }
+        }.execute();
+    }
+
+    private static String cachePath(String serverAddress, int serverPort, String listId) {
+        String name = Integer.toHexString(Objects.hash(serverAddress, serverPort, listId)) + ".cache";
+        return Paths.get(System.getProperty("user.home"), ".lista-zakupow", name).toString();
     }
 
     private JMenuBar getjMenuBar() {
@@ -121,9 +174,15 @@ public class Client extends JFrame {
         JMenu viewMenu = new JMenu("Lista");
         JMenuItem clearAllButton = new JMenuItem("Wyczyść listę");
         JMenuItem showAllMenuItem = new JMenuItem("Pokaż wszystkie produkty");
+        JMenuItem searchMenuItem = new JMenuItem("Szukaj produktów");
+        JMenuItem totalsMenuItem = new JMenuItem("Podsumowanie");
         clearAllButton.addActionListener(e -> clearAllProducts());
         showAllMenuItem.addActionListener(e -> displayAllProducts());
+        searchMenuItem.addActionListener(e -> searchProducts());
+        totalsMenuItem.addActionListener(e -> displayTotals());
         viewMenu.add(showAllMenuItem);
+        viewMenu.add(searchMenuItem);
+        viewMenu.add(totalsMenuItem);
         viewMenu.add(clearAllButton);
         menuBar.add(viewMenu);
         return menuBar;
@@ -134,11 +193,11 @@ public class Client extends JFrame {
         int result = fileChooser.showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                ProductListManager.saveToFile(manager.getProductList(), file.getAbsolutePath());
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Błąd podczas zapisu do pliku: " + ex.getMessage(), "Błąd", JOptionPane.ERROR_MESSAGE);
-            }
+            manager.exportToFileAsync(file.getAbsolutePath()).whenComplete((ok, error) -> SwingUtilities.invokeLater(() -> {
+                if (error != null) {
+                    JOptionPane.showMessageDialog(this, "Błąd podczas zapisu do pliku: " + error.getMessage(), "Błąd", JOptionPane.ERROR_MESSAGE);
+                }
+            }));
         }
     }
 
@@ -147,39 +206,82 @@ public class Client extends JFrame {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                manager.getProductList().putAll(ProductListManager.loadFromFile(file.getAbsolutePath()));
-                updateCategoryComboBox();
-                updateProductList();
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Błąd podczas odczytu z pliku: " + ex.getMessage(), "Błąd", JOptionPane.ERROR_MESSAGE);
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Wczytywanie listy nie powiodło się, plik może być uszkodzony.", "Błąd", JOptionPane.ERROR_MESSAGE);
-            }
+            // Produkty z pliku trafiają na serwer, a do listy wracają razem z jego odpowiedziami
+            manager.importFromFileAsync(file.getAbsolutePath()).whenComplete((summary, error) -> SwingUtilities.invokeLater(() -> {
+                refreshViews();
+                if (error instanceof IOException) {
+                    JOptionPane.showMessageDialog(this, "Błąd podczas odczytu z pliku: " + error.getMessage(), "Błąd", JOptionPane.ERROR_MESSAGE);
+                } else if (error != null) {
+                    JOptionPane.showMessageDialog(this, "Wczytywanie listy nie powiodło się, plik może być uszkodzony.", "Błąd", JOptionPane.ERROR_MESSAGE);
+                } else if (summary.skipped > 0 || !summary.rejections.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "Wczytano " + summary.imported + " produktów, pominięto nieprawidłowych wierszy: "
+                            + summary.skipped + "\n" + String.join("\n", summary.rejections), "Uwaga", JOptionPane.WARNING_MESSAGE);
+                }
+            }));
         }
     }
 
     private void displayAllProducts() {
-        DefaultListModel<String> allProductsModel = new DefaultListModel<>();
-        for (Map.Entry<String, Set<Product>> entry : manager.getProductList().entrySet()) {
-            String category = entry.getKey();
-            allProductsModel.addElement(category);
-            for (Product product : entry.getValue()) {
-                allProductsModel.addElement("  - " + product.toString());
-            }
+        Map<String, Collection<Product>> productsByCategory = new HashMap<>();
+        for (String category : viewCategories()) {
+            productsByCategory.put(category, viewProducts(category).values());
         }
 
-        JList<String> allProductsList = new JList<>(allProductsModel);
+        JList<String> allProductsList = new JList<>(new AllProductsListModel(productsByCategory));
+        allProductsList.setPrototypeCellValue("  - Przykładowy produkt o długiej nazwie (1000.0 sztuki)");
         JScrollPane scrollPane = new JScrollPane(allProductsList);
 
         JOptionPane.showMessageDialog(this, scrollPane, "Wszystkie produkty", JOptionPane.PLAIN_MESSAGE);
     }
 
+    // Wyszukuje serwer, więc wyniki obejmują tylko zmiany już przez niego potwierdzone
+    private void searchProducts() {
+        String query = JOptionPane.showInputDialog(this, "Fragment nazwy produktu:", "Szukaj produktów", JOptionPane.QUESTION_MESSAGE);
+        if (query == null || query.trim().isEmpty()) {
+            return;
+        }
+        manager.searchProductsAsync(query.trim(), true, WireFormat.MAX_SEARCH_RESULTS).whenComplete((matches, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                showRequestError(error);
+                return;
+            }
+            DefaultListModel<ProductMatch> matchesModel = new DefaultListModel<>();
+            for (ProductMatch match : matches) {
+                matchesModel.addElement(match);
+            }
+            JScrollPane scrollPane = new JScrollPane(new JList<>(matchesModel));
+            JOptionPane.showMessageDialog(this, scrollPane, "Znalezione produkty: " + matches.size(), JOptionPane.PLAIN_MESSAGE);
+        }));
+    }
+
+    private void displayTotals() {
+        manager.totalsAsync().whenComplete((totals, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                showRequestError(error);
+                return;
+            }
+            DefaultListModel<String> totalsModel = new DefaultListModel<>();
+            Map<String, UnitTotal> overall = new TreeMap<>();
+            for (Map.Entry<String, Map<String, UnitTotal>> category : totals.entrySet()) {
+                totalsModel.addElement(category.getKey());
+                for (Map.Entry<String, UnitTotal> unit : category.getValue().entrySet()) {
+                    totalsModel.addElement("  - " + unit.getKey() + ": " + unit.getValue());
+                    overall.merge(unit.getKey(), unit.getValue(), (a, b) -> a.plus(b.count, b.quantity));
+                }
+            }
+            totalsModel.addElement("Razem");
+            for (Map.Entry<String, UnitTotal> unit : overall.entrySet()) {
+                totalsModel.addElement("  - " + unit.getKey() + ": " + unit.getValue());
+            }
+            JScrollPane scrollPane = new JScrollPane(new JList<>(totalsModel));
+            JOptionPane.showMessageDialog(this, scrollPane, "Podsumowanie", JOptionPane.PLAIN_MESSAGE);
+        }));
+    }
+
     private void addCategory() {
         String newCategory = categoryField.getText().trim();
         if (!newCategory.isEmpty()) {
-            manager.addCategory(newCategory);
-            updateCategoryComboBox();
+            submit(new Change(0, Change.Type.ADD_CATEGORY, newCategory, null, null), manager.addCategoryAsync(newCategory));
             categoryComboBox.setSelectedItem(newCategory); // Przełączenie na nową kategorię
             categoryField.setText("");
         } else {
@@ -188,24 +290,148 @@ public class Client extends JFrame {
     }
 
 
-    private void updateCategoryComboBox() {
-        categoryComboBox.removeAllItems();
-        for (String category : manager.getProductList().keySet()) {
-            categoryComboBox.addItem(category);
+    // Zmiana jest widoczna od razu; po odpowiedzi serwera widok pokazuje już tylko potwierdzony stan,
+    // więc odrzucona zmiana sama znika
+    private void submit(Change optimistic, CompletableFuture<Void> response) {
+        submit(Collections.singletonList(optimistic), response);
+    }
+
+    private void submit(Collection<Change> optimistic, CompletableFuture<Void> response) {
+        optimisticChanges.addAll(optimistic);
+        markStale(optimistic);
+        refreshViews();
+        response.whenComplete((ok, error) -> SwingUtilities.invokeLater(() -> {
+            optimisticChanges.removeAll(optimistic);
+            markStale(optimistic);
+            refreshViews();
+            if (error != null) {
+                showRequestError(error);
+            }
+        }));
+    }
+
+    private void showRequestError(Throwable error) {
+        String message = error instanceof ServerBusyException
+                ? "Serwer jest zajęty: " + error.getMessage()
+                : error instanceof RequestRejectedException
+                ? "Serwer odrzucił zmianę: " + error.getMessage()
+                : "Błąd połączenia z serwerem: " + error.getMessage();
+        JOptionPane.showMessageDialog(this, message, "Błąd", JOptionPane.ERROR_MESSAGE);
+    }
+
+    // Zmiany przysłane przez serwer; model kategorii zachowuje wybraną kategorię, póki ona istnieje
+    private void refreshViews() {
+        categoryModel.update(viewCategories());
+        updateProductList();
+    }
+
+    // Kategorie potwierdzone przez serwer razem z dodanymi przez niepotwierdzone zmiany
+    private Set<String> viewCategories() {
+        Set<String> categories;
+        synchronized (manager.getProductList()) {
+            categories = new LinkedHashSet<>(manager.getProductList().keySet());
+        }
+        for (Change change : optimisticChanges) {
+            if (change.type == Change.Type.REMOVE_CATEGORY) {
+                categories.remove(change.category);
+            } else if (change.type != Change.Type.REMOVE_PRODUCT) {
+                categories.add(change.category);
+            }
+        }
+        return categories;
+    }
+
+    private Map<String, Product> viewProducts(String category) {
+        return viewProducts(category, null);
+    }
+
+    // Tylko podane produkty kategorii (null: wszystkie). Niepotwierdzone zmiany dotyczą wyłącznie nazw,
+    // które markStale już dopisał do zbioru, więc nakładają się na niego poprawnie.
+    private Map<String, Product> viewProducts(String category, Set<String> names) {
+        Map<String, Map<String, Product>> view = new HashMap<>();
+        synchronized (manager.getProductList()) {
+            Map<String, Product> products = manager.getProductList().get(category);
+            Map<String, Product> copy = new HashMap<>();
+            if (products != null && names == null) {
+                copy.putAll(products);
+            } else if (products != null) {
+                for (String name : names) {
+                    Product product = products.get(name);
+                    if (product != null) {
+                        copy.put(name, product);
+                    }
+                }
+            }
+            view.put(category, copy);
+        }
+        for (Change change : optimisticChanges) {
+            if (change.category.equals(category)) {
+                change.applyTo(view);
+            }
         }
+        return view.getOrDefault(category, Collections.emptyMap());
     }
 
+    // Tak samo jak na serwerze: produkt o tej samej nazwie i jednostce sumuje ilości
+    private static Product merge(Product existing, Product added) {
+        if (existing == null || !existing.unit.equals(added.unit)) {
+            return added;
+        }
+        return new Product(added.name, existing.quantity + added.quantity, added.unit);
+    }
+
+    // Zmiany innych kategorii nie dotyczą widoku produktów, a z pokazanej zapamiętujemy tylko nazwy produktów
+    private void markStale(Collection<Change> changes) {
+        if (changes == null) {
+            staleProducts = null;
+            return;
+        }
+        for (Change change : changes) {
+            if (staleProducts == null || !change.category.equals(shownCategory)) {
+                continue;
+            }
+            if (change.type == Change.Type.REMOVE_CATEGORY) {
+                staleProducts = null;
+            } else if (change.type != Change.Type.ADD_CATEGORY) {
+                if (change.name != null) {
+                    staleProducts.add(change.name);
+                }
+                if (change.product != null) {
+                    staleProducts.add(change.product.name);
+                }
+            }
+        }
+    }
+
+    // Model zgłasza tylko zmienione wiersze; gdy wiadomo, które produkty się zmieniły, pozostałych nie sprawdza
     private void updateProductList() {
         String selectedCategory = (String) categoryComboBox.getSelectedItem();
-        if (selectedCategory != null) {
+        if (selectedCategory == null) {
             productListModel.clear();
-            Set<Product> products = manager.getProductList().get(selectedCategory);
-            if (products != null) {
-                for (Product product : products) {
-                    productListModel.addElement(product);
+        } else if (!selectedCategory.equals(shownCategory) || staleProducts == null) {
+            if (hasOptimisticChanges(selectedCategory)) {
+                productListModel.update(viewProducts(selectedCategory));
+            } else {
+                // Bez niepotwierdzonych zmian model porównuje się wprost z listą menedżera, bez jej kopiowania
+                synchronized (manager.getProductList()) {
+                    Map<String, Product> products = manager.getProductList().get(selectedCategory);
+                    productListModel.update(products == null ? Collections.emptyMap() : products);
                 }
             }
+        } else if (!staleProducts.isEmpty()) {
+            productListModel.updateKeys(staleProducts, viewProducts(selectedCategory, staleProducts));
         }
+        shownCategory = selectedCategory;
+        staleProducts = new HashSet<>();
+    }
+
+    private boolean hasOptimisticChanges(String category) {
+        for (Change change : optimisticChanges) {
+            if (change.category.equals(category)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void addProduct() {
@@ -234,8 +460,9 @@ public class Client extends JFrame {
                     JOptionPane.showMessageDialog(this, "Dla jednostki 'sztuki' ilość musi być liczbą całkowitą", "Błąd", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                manager.addProduct(category, name, quantity, unit);
-                updateProductList();
+                Product added = merge(viewProducts(category).get(name), new Product(name, quantity, unit));
+                submit(new Change(0, Change.Type.PUT_PRODUCT, category, name, added),
+                        manager.addProductAsync(category, name, quantity, unit));
                 clearFields();
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Nieprawidłowa wartość ilości", "Błąd", JOptionPane.ERROR_MESSAGE);
@@ -265,8 +492,12 @@ public class Client extends JFrame {
                         int result = JOptionPane.showConfirmDialog(this, unitComboBox, "Wybierz nową jednostkę miary", JOptionPane.OK_CANCEL_OPTION);
                         if (result == JOptionPane.OK_OPTION) {
                             String newUnit = (String) unitComboBox.getSelectedItem();
-                            manager.editProduct(category, oldName, newName, newQuantity, newUnit);
-                            updateProductList();
+                            Product edited = new Product(newName, newQuantity, newUnit);
+                            if (!oldName.equals(newName)) {
+                                edited = merge(viewProducts(category).get(newName), edited);
+                            }
+                            submit(new Change(0, Change.Type.PUT_PRODUCT, category, oldName, edited),
+                                    manager.editProductAsync(category, oldName, newName, newQuantity, newUnit));
                         }
                     } catch (NumberFormatException ex) {
                         JOptionPane.showMessageDialog(this, "Nieprawidłowa wartość ilości", "Błąd", JOptionPane.ERROR_MESSAGE);
@@ -284,8 +515,8 @@ public class Client extends JFrame {
             String category = (String) categoryComboBox.getSelectedItem();
             int confirm = JOptionPane.showConfirmDialog(this, "Czy na pewno chcesz usunąć produkt " + selectedProduct.name + "?", "Potwierdzenie", JOptionPane.YES_NO_OPTION);
             if (confirm == JOptionPane.YES_OPTION) {
-                manager.removeProduct(category, selectedProduct.name);
-                updateProductList();
+                submit(new Change(0, Change.Type.REMOVE_PRODUCT, category, selectedProduct.name, null),
+                        manager.removeProductAsync(category, selectedProduct.name));
             }
         } else {
             JOptionPane.showMessageDialog(this, "Wybierz produkt do usunięcia", "Błąd", JOptionPane.ERROR_MESSAGE);
@@ -295,9 +526,11 @@ public class Client extends JFrame {
     private void clearAllProducts() {
         int confirm = JOptionPane.showConfirmDialog(this, "Czy na pewno chcesz usunąć wszystkie produkty?", "Potwierdzenie", JOptionPane.YES_NO_OPTION);
         if (confirm == JOptionPane.YES_OPTION) {
-            manager.getProductList().clear();
-            updateProductList();
-            updateCategoryComboBox();
+            java.util.List<Change> removed = new ArrayList<>();
+            for (String category : viewCategories()) {
+                removed.add(new Change(0, Change.Type.REMOVE_CATEGORY, category, null, null));
+            }
+            submit(removed, manager.clearAsync());
         }
     }
 
@@ -306,9 +539,8 @@ public class Client extends JFrame {
         if (selectedCategory != null) {
             int confirm = JOptionPane.showConfirmDialog(this, "Czy na pewno chcesz usunąć kategorię \"" + selectedCategory + "\"?", "Potwierdzenie", JOptionPane.YES_NO_OPTION);
             if (confirm == JOptionPane.YES_OPTION) {
-                manager.getProductList().remove(selectedCategory);
-                updateProductList();
-                updateCategoryComboBox();
+                submit(new Change(0, Change.Type.REMOVE_CATEGORY, selectedCategory, null, null),
+                        manager.removeCategoryAsync(selectedCategory));
             }
         } else {
             JOptionPane.showMessageDialog(this, "Wybierz kategorię do usunięcia", "Błąd", JOptionPane.ERROR_MESSAGE);
@@ -323,7 +555,10 @@ public class Client extends JFrame {
     public static void main(String[] args) {
         String serverAddress = JOptionPane.showInputDialog(null, "Wprowadź adres IP serwera:", "127.0.0.1");
         int serverPort = 8000; // Ustaw port serwera
+        // Pusta nazwa to lista wspólna dla wszystkich, którzy nie podali innej
+        String listId = JOptionPane.showInputDialog(null, "Nazwa listy zakupów (pusta = domyślna):", WireFormat.DEFAULT_LIST_ID);
+        String chosenList = listId == null ? WireFormat.DEFAULT_LIST_ID : listId.trim();
 
-        SwingUtilities.invokeLater(() -> new Client(serverAddress, serverPort).setVisible(true));
+        SwingUtilities.invokeLater(() -> new Client(serverAddress, serverPort, chosenList).setVisible(true));
     }
 }
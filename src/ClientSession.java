@@ -0,0 +1,25 @@
+import java.net.InetAddress;
+
+// Stan jednego połączenia klienta, niezależny od silnika serwera
+final class ClientSession {
+    final SessionOutput output;
+    // Rewizja ostatnio wysłana temu klientowi w odpowiedzi; odpowiedzi w sesji docierają po kolei
+    long deliveredRevision = -1;
+    boolean subscribed;
+    // Klient przyjmuje migawki skompresowane (WireFormat.PAYLOAD_SNAPSHOT_DEFLATED)
+    boolean acceptsDeflatedSnapshot;
+    // Lista wskazana w pierwszym żądaniu połączenia; null przed nim
+    String listId;
+    ProductStore list;
+    ListPartition partition;
+    // Adres drugiej strony połączenia; null poza serwerem (testy wydajności)
+    InetAddress address;
+    // Połączenie repliki odbierające strumień zmian partycji (REPLICATE)
+    boolean replica;
+    // Adres klienta z jego limitem żądań; null, gdy sesja nie podlega limitom
+    AdmissionControl.Client client;
+
+    ClientSession(SessionOutput output) {
+        this.output = output;
+    }
+}
@@ -0,0 +1,188 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Produkty kategorii w kolumnach: nazwy, ilości w double[] i kody jednostek (WireFormat.UNITS) w byte[],
+// bez obiektu Product i węzła mapy na każdy produkt. Nazwy są tymi samymi obiektami, które trzyma indeks
+// wyszukiwania. Wiersz po nazwie znajduje tablica mieszająca z adresowaniem otwartym, a usunięty wiersz
+// zastępuje ostatni, więc kolumny nie mają dziur. Obiekty Product powstają dopiero przy odczycie.
+final class ColumnarProductTable implements ProductTable {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private String[] names;
+    private double[] quantities;
+    private byte[] units;
+    // Numer wiersza powiększony o 1, 0 dla wolnego miejsca; dwa razy więcej miejsc niż wierszy w kolumnach
+    private int[] slots;
+    private int size;
+    // Kolumny są wspólne z kopią i przed pierwszą zmianą trzeba je skopiować
+    private boolean shared;
+
+    ColumnarProductTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private ColumnarProductTable(ColumnarProductTable source) {
+        names = source.names;
+        quantities = source.quantities;
+        units = source.units;
+        slots = source.slots;
+        size = source.size;
+        shared = true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Product get(String name) {
+        int row = slots[find(name)] - 1;
+        return row < 0 ? null : product(row);
+    }
+
+    @Override
+    public Product put(Product product) {
+        byte unit = WireFormat.unitCode(product.unit);
+        unshare();
+        int slot = find(product.name);
+        int row = slots[slot] - 1;
+        if (row >= 0) {
+            Product previous = product(row);
+            quantities[row] = product.quantity;
+            units[row] = unit;
+            return previous;
+        }
+        if (size == names.length) {
+            grow();
+            slot = find(product.name);
+        }
+        names[size] = product.name;
+        quantities[size] = product.quantity;
+        units[size] = unit;
+        slots[slot] = ++size;
+        return null;
+    }
+
+    @Override
+    public Product remove(String name) {
+        int slot = find(name);
+        int row = slots[slot] - 1;
+        if (row < 0) {
+            return null;
+        }
+        unshare();
+        Product removed = product(row);
+        deleteSlot(slot);
+        int last = --size;
+        if (row != last) {
+            names[row] = names[last];
+            quantities[row] = quantities[last];
+            units[row] = units[last];
+            slots[find(names[row])] = row + 1;
+        }
+        names[last] = null;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+        shared = false;
+    }
+
+    @Override
+    public void forEachName(Consumer<String> action) {
+        for (int row = 0; row < size; row++) {
+            action.accept(names[row]);
+        }
+    }
+
+    // Bez kopiowania kolumn; kopiuje je dopiero następna zmiana tej tabeli
+    @Override
+    public ProductTable copy() {
+        shared = true;
+        return new ColumnarProductTable(this);
+    }
+
+    @Override
+    public void writeProducts(FrameWriter writer) {
+        for (int row = 0; row < size; row++) {
+            writer.writeProduct(names[row], quantities[row], units[row]);
+        }
+    }
+
+    @Override
+    public Map<String, Product> toMap() {
+        Map<String, Product> products = new HashMap<>();
+        for (int row = 0; row < size; row++) {
+            products.put(names[row], product(row));
+        }
+        return products;
+    }
+
+    private Product product(int row) {
+        return new Product(names[row], quantities[row], WireFormat.UNITS[units[row]]);
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Miejsce z wierszem o tej nazwie albo wolne miejsce, na którym wiersz powinien się znaleźć
+    private int find(String name) {
+        int mask = slots.length - 1;
+        for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (row < 0 || names[row].equals(name)) {
+                return slot;
+            }
+        }
+    }
+
+    // Przesuwa w miejsce usuniętego kolejne wpisy tej samej sekwencji, żeby wyszukiwanie nie urwało się na dziurze
+    private void deleteSlot(int slot) {
+        int mask = slots.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int home = hash(names[slots[next] - 1]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                hole = next;
+            }
+        }
+        slots[hole] = 0;
+    }
+
+    private void unshare() {
+        if (shared) {
+            names = names.clone();
+            quantities = quantities.clone();
+            units = units.clone();
+            slots = slots.clone();
+            shared = false;
+        }
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        quantities = Arrays.copyOf(quantities, capacity);
+        units = Arrays.copyOf(units, capacity);
+        slots = new int[capacity * 2];
+        for (int row = 0; row < size; row++) {
+            slots[find(names[row])] = row + 1;
+        }
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        quantities = new double[capacity];
+        units = new byte[capacity];
+        slots = new int[capacity * 2];
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.*;
+import java.util.*;
+
+// Strumieniowy parser CSV zgodny z RFC 4180: pola w cudzysłowach mogą zawierać przecinki,
+// znaki nowego wiersza i podwojone cudzysłowy. Czyta znak po znaku z własnego bufora,
+// więc pamięć nie zależy od wielkości pliku.
+final class CsvReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private final StringBuilder field = new StringBuilder();
+    private long lineNumber;
+
+    CsvReader(Reader in) {
+        this.in = in;
+    }
+
+    // Wczytuje kolejny rekord do fields; zwraca false na końcu pliku
+    boolean readRecord(List<String> fields) throws IOException {
+        fields.clear();
+        int c = read();
+        if (c < 0) {
+            return false;
+        }
+        lineNumber++;
+        while (true) {
+            field.setLength(0);
+            if (c == '"') {
+                c = readQuoted();
+            } else {
+                while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+                    field.append((char) c);
+                    c = read();
+                }
+            }
+            fields.add(field.toString());
+            if (c == ',') {
+                c = read();
+                continue;
+            }
+            if (c == '\r' && peek() == '\n') {
+                read();
+            }
+            return true;
+        }
+    }
+
+    // Numer ostatnio wczytanego rekordu, do komunikatów o błędach
+    long lineNumber() {
+        return lineNumber;
+    }
+
+    // Zwraca znak następujący po zamykającym cudzysłowie
+    private int readQuoted() throws IOException {
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw new EOFException("Niezamknięty cudzysłów w rekordzie " + lineNumber);
+            }
+            if (c == '"') {
+                if (peek() != '"') {
+                    break;
+                }
+                read();
+            }
+            field.append((char) c);
+        }
+        // Znaki między zamykającym cudzysłowem a separatorem dołączamy do pola zamiast odrzucać rekord
+        int c = read();
+        while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+            field.append((char) c);
+            c = read();
+        }
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
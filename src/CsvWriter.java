@@ -0,0 +1,43 @@
+// Kodowanie rekordów CSV zgodnie z RFC 4180: pole z przecinkiem, cudzysłowem albo znakiem
+// nowego wiersza trafia w cudzysłowy, a cudzysłowy w nim są podwajane
+final class CsvWriter {
+    private CsvWriter() {
+    }
+
+    static void appendProduct(StringBuilder out, String category, Product product) {
+        appendField(out, category);
+        out.append(',');
+        appendField(out, product.name);
+        out.append(',');
+        out.append(product.quantity);
+        out.append(',');
+        appendField(out, product.unit);
+        out.append("\r\n");
+    }
+
+    static void appendField(StringBuilder out, String value) {
+        if (!needsQuoting(value)) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    private static boolean needsQuoting(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Odczyt ramek do bufora wielokrotnego użytku. Dane z sieci traktujemy jako niezaufane,
+// więc każde pole jest sprawdzane względem granic ramki.
+final class FrameReader {
+    private final int maxFrameSize;
+    private byte[] buffer = new byte[4096];
+    private int position;
+    private int limit;
+
+    FrameReader() {
+        this(WireFormat.MAX_FRAME_SIZE);
+    }
+
+    // Serwer przyjmuje mniejsze ramki niż klient, który odbiera całe listy
+    FrameReader(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    // Zwraca false, gdy druga strona zamknęła połączenie między ramkami
+    boolean readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < 0 || length > maxFrameSize) {
+            throw new IOException("Nieprawidłowa długość ramki: " + length);
+        }
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+        position = 0;
+        limit = length;
+        return true;
+    }
+
+    // Odczytuje ramkę zamkniętą przez FrameWriter.endFrameWithChecksum; remaining to liczba bajtów pliku od
+    // początku rekordu. Zwraca liczbę odczytanych bajtów albo -1, gdy plik kończy się niepełnym lub uszkodzonym
+    // rekordem (przerwany zapis). Uszkodzonej długości nie wierzy, więc nie zajmuje na nią pamięci.
+    int readRecord(DataInputStream in, long remaining) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+            if (length < 0 || length > remaining - 8) {
+                return -1;
+            }
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            int expected = in.readInt();
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer, 0, length);
+            if ((int) checksum.getValue() != expected) {
+                return -1;
+            }
+        } catch (EOFException e) {
+            return -1;
+        }
+        position = 0;
+        limit = length;
+        return length + 8;
+    }
+
+    // Zwraca false, gdy w buforze nie ma jeszcze całej ramki; pozycja bufora zostaje wtedy bez zmian
+    boolean readFrame(ByteBuffer in) throws IOException {
+        if (in.remaining() < 4) {
+            return false;
+        }
+        int length = in.getInt(in.position());
+        if (length < 0 || length > maxFrameSize) {
+            throw new IOException("Nieprawidłowa długość ramki: " + length);
+        }
+        if (in.remaining() - 4 < length) {
+            return false;
+        }
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.position(in.position() + 4);
+        in.get(buffer, 0, length);
+        position = 0;
+        limit = length;
+        return true;
+    }
+
+    // Pozwala odczytać tę samą ramkę jeszcze raz od początku
+    void rewind() {
+        position = 0;
+    }
+
+    // Czy w ramce zostały jeszcze nieodczytane bajty
+    boolean hasRemaining() {
+        return position < limit;
+    }
+
+    byte readByte() throws IOException {
+        require(1);
+        return buffer[position++];
+    }
+
+    boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    int readInt() throws IOException {
+        require(4);
+        int value = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    long readLong() throws IOException {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    String readString() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            throw new IOException("Nieprawidłowa długość napisu: " + length);
+        }
+        require(length);
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    String readUnit() throws IOException {
+        int code = readByte();
+        if (code < 0 || code >= WireFormat.UNITS.length) {
+            throw new IOException("Nieznany kod jednostki: " + code);
+        }
+        return WireFormat.UNITS[code];
+    }
+
+    Product readProduct() throws IOException {
+        String name = readString();
+        double quantity = readDouble();
+        return new Product(name, quantity, readUnit());
+    }
+
+    Change readChange() throws IOException {
+        long revision = readLong();
+        int typeCode = readByte();
+        if (typeCode < 0 || typeCode >= Change.Type.values().length) {
+            throw new IOException("Nieznany typ zmiany: " + typeCode);
+        }
+        Change.Type type = Change.Type.values()[typeCode];
+        String category = readString();
+        switch (type) {
+            case PUT_PRODUCT: {
+                String oldName = readBoolean() ? readString() : null;
+                return new Change(revision, type, category, oldName, readProduct());
+            }
+            case REMOVE_PRODUCT:
+                return new Change(revision, type, category, readString(), null);
+            default:
+                return new Change(revision, type, category, null, null);
+        }
+    }
+
+    BatchOperation readOperation() throws IOException {
+        byte opcode = readByte();
+        switch (opcode) {
+            case WireFormat.ADD_CATEGORY:
+                return BatchOperation.addCategory(readString());
+            case WireFormat.REMOVE_CATEGORY:
+                return BatchOperation.removeCategory(readString());
+            case WireFormat.ADD_PRODUCT:
+                return BatchOperation.addProduct(readString(), readString(), readDouble(), readUnit());
+            case WireFormat.EDIT_PRODUCT:
+                return BatchOperation.editProduct(readString(), readString(), readString(), readDouble(), readUnit());
+            case WireFormat.REMOVE_PRODUCT:
+                return BatchOperation.removeProduct(readString(), readString());
+            case WireFormat.CLEAR:
+                return BatchOperation.clear();
+            default:
+                throw new IOException("Nieznana operacja w paczce: " + opcode);
+        }
+    }
+
+    // Wczytuje migawkę zapisaną przez FrameWriter.writeSnapshot
+    Map<String, Map<String, Product>> readSnapshot(Map<String, Long> categoryRevisions) throws IOException {
+        int categoryCount = readCount();
+        Map<String, Map<String, Product>> productList = new HashMap<>();
+        for (int i = 0; i < categoryCount; i++) {
+            String category = readString();
+            categoryRevisions.put(category, readLong());
+            int productCount = readCount();
+            Map<String, Product> products = new HashMap<>();
+            for (int j = 0; j < productCount; j++) {
+                Product product = readProduct();
+                products.put(product.name, product);
+            }
+            productList.put(category, products);
+        }
+        return productList;
+    }
+
+    List<ProductMatch> readMatches() throws IOException {
+        int count = readCount();
+        List<ProductMatch> matches = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            matches.add(new ProductMatch(readString(), readProduct()));
+        }
+        return matches;
+    }
+
+    Map<String, Map<String, UnitTotal>> readTotals() throws IOException {
+        int categoryCount = readCount();
+        Map<String, Map<String, UnitTotal>> totals = new TreeMap<>();
+        for (int i = 0; i < categoryCount; i++) {
+            String category = readString();
+            int unitCount = readCount();
+            Map<String, UnitTotal> units = new TreeMap<>();
+            for (int j = 0; j < unitCount; j++) {
+                units.put(readUnit(), new UnitTotal(readInt(), readDouble()));
+            }
+            totals.put(category, units);
+        }
+        return totals;
+    }
+
+    // Odczytuje dane zapisane jako [int długość przed kompresją][int długość][bajty Deflatera]
+    // (WireFormat.PAYLOAD_SNAPSHOT_DEFLATED) i zwraca czytnik rozpakowanych danych
+    FrameReader readDeflated() throws IOException {
+        int inflatedLength = readInt();
+        int length = readInt();
+        if (inflatedLength < 0 || inflatedLength > maxFrameSize || length < 0) {
+            throw new IOException("Nieprawidłowa długość skompresowanych danych: " + inflatedLength);
+        }
+        require(length);
+        FrameReader inflated = new FrameReader(maxFrameSize);
+        inflated.buffer = new byte[inflatedLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer, position, length);
+            int inflatedBytes = 0;
+            while (inflatedBytes < inflatedLength && !inflater.finished()) {
+                int count = inflater.inflate(inflated.buffer, inflatedBytes, inflatedLength - inflatedBytes);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflatedBytes += count;
+            }
+            if (inflatedBytes != inflatedLength) {
+                throw new IOException("Uszkodzone skompresowane dane");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Uszkodzone skompresowane dane", e);
+        } finally {
+            inflater.end();
+        }
+        position += length;
+        inflated.limit = inflatedLength;
+        return inflated;
+    }
+
+    int readCount() throws IOException {
+        int count = readInt();
+        // Każdy element zajmuje co najmniej bajt, więc większa liczba oznacza uszkodzoną ramkę
+        if (count < 0 || count > limit - position) {
+            throw new IOException("Nieprawidłowa liczba elementów: " + count);
+        }
+        return count;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (bytes > limit - position) {
+            throw new EOFException("Niekompletna ramka");
+        }
+    }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+// Bufor ramki wielokrotnego użytku: po rozgrzaniu kodowanie nie alokuje pamięci
+final class FrameWriter {
+    private byte[] buffer;
+    private int position;
+    private int frameStart = -1;
+    // Wstawione bufory współdzielone z innymi odpowiedziami (zakodowana lista), wysyłane bez kopiowania
+    private final List<SharedSegment> shared = new ArrayList<>();
+    private int sharedBytes;
+    private int frameSharedStart;
+    private byte[] transfer;
+
+    private static final class SharedSegment {
+        final int position;
+        final ByteBuffer bytes;
+
+        SharedSegment(int position, ByteBuffer bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        }
+    }
+
+    FrameWriter() {
+        this(4096);
+    }
+
+    FrameWriter(int initialCapacity) {
+        buffer = new byte[initialCapacity];
+    }
+
+    void reset() {
+        position = 0;
+        frameStart = -1;
+        shared.clear();
+        sharedBytes = 0;
+    }
+
+    void beginFrame() {
+        frameStart = position;
+        frameSharedStart = sharedBytes;
+        position += 4;
+        ensureCapacity(0);
+    }
+
+    void endFrame() {
+        putInt(frameStart, position - frameStart - 4 + sharedBytes - frameSharedStart);
+        frameStart = -1;
+    }
+
+    // Zamyka ramkę sumą kontrolną CRC32 treści, używaną w plikach dziennika i migawki
+    void endFrameWithChecksum() {
+        int contentStart = frameStart + 4;
+        CRC32 checksum = new CRC32();
+        for (SharedSegment segment : shared) {
+            if (segment.position >= contentStart) {
+                checksum.update(buffer, contentStart, segment.position - contentStart);
+                checksum.update(segment.bytes.duplicate());
+                contentStart = segment.position;
+            }
+        }
+        checksum.update(buffer, contentStart, position - contentStart);
+        endFrame();
+        writeInt((int) checksum.getValue());
+    }
+
+    // Dołącza niezmienny bufor bez kopiowania; bajty są czytane dopiero przy wysyłaniu
+    void writeShared(ByteBuffer bytes) {
+        ByteBuffer segment = bytes.duplicate();
+        shared.add(new SharedSegment(position, segment));
+        sharedBytes += segment.remaining();
+    }
+
+    void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    void writeInt(int value) {
+        ensureCapacity(4);
+        putInt(position, value);
+        position += 4;
+    }
+
+    void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    void writeDouble(double value) {
+        writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    // UTF-8 kodowany ręcznie, żeby nie tworzyć tymczasowej tablicy bajtów dla każdego napisu
+    void writeString(String value) {
+        int length = value.length();
+        ensureCapacity(4 + length * 3);
+        int lengthPosition = position;
+        position += 4;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        putInt(lengthPosition, position - lengthPosition - 4);
+    }
+
+    void writeProduct(Product product) {
+        writeProduct(product.name, product.quantity, WireFormat.unitCode(product.unit));
+    }
+
+    void writeProduct(String name, double quantity, byte unitCode) {
+        writeString(name);
+        writeDouble(quantity);
+        writeByte(unitCode);
+    }
+
+    void writeChange(Change change) {
+        writeLong(change.revision);
+        writeByte(change.type.ordinal());
+        writeString(change.category);
+        switch (change.type) {
+            case PUT_PRODUCT:
+                writeBoolean(change.name != null);
+                if (change.name != null) {
+                    writeString(change.name);
+                }
+                writeProduct(change.product);
+                break;
+            case REMOVE_PRODUCT:
+                writeString(change.name);
+                break;
+            default:
+                break;
+        }
+    }
+
+    void writeOperation(BatchOperation operation) {
+        writeByte(operation.opcode);
+        writeOperationArguments(operation);
+    }
+
+    // Argumenty operacji bez jej kodu, tak jak w pojedynczym żądaniu
+    void writeOperationArguments(BatchOperation operation) {
+        switch (operation.opcode) {
+            case WireFormat.ADD_CATEGORY:
+            case WireFormat.REMOVE_CATEGORY:
+                writeString(operation.category);
+                break;
+            case WireFormat.ADD_PRODUCT:
+                writeString(operation.category);
+                writeString(operation.name);
+                writeDouble(operation.quantity);
+                writeByte(WireFormat.unitCode(operation.unit));
+                break;
+            case WireFormat.EDIT_PRODUCT:
+                writeString(operation.category);
+                writeString(operation.name);
+                writeString(operation.newName);
+                writeDouble(operation.quantity);
+                writeByte(WireFormat.unitCode(operation.unit));
+                break;
+            case WireFormat.REMOVE_PRODUCT:
+                writeString(operation.category);
+                writeString(operation.name);
+                break;
+            default:
+                break;
+        }
+    }
+
+    void writeSnapshot(Map<String, Map<String, Product>> productList, Map<String, Long> categoryRevisions) {
+        writeInt(productList.size());
+        for (Map.Entry<String, Map<String, Product>> entry : productList.entrySet()) {
+            writeCategory(entry.getKey(), categoryRevisions.getOrDefault(entry.getKey(), 0L), entry.getValue().values());
+        }
+    }
+
+    void writeMatches(List<ProductMatch> matches) {
+        writeInt(matches.size());
+        for (ProductMatch match : matches) {
+            writeString(match.category);
+            writeProduct(match.product);
+        }
+    }
+
+    void writeTotals(Map<String, Map<String, UnitTotal>> totals) {
+        writeInt(totals.size());
+        for (Map.Entry<String, Map<String, UnitTotal>> category : totals.entrySet()) {
+            writeString(category.getKey());
+            writeInt(category.getValue().size());
+            for (Map.Entry<String, UnitTotal> unit : category.getValue().entrySet()) {
+                writeByte(WireFormat.unitCode(unit.getKey()));
+                writeInt(unit.getValue().count);
+                writeDouble(unit.getValue().quantity);
+            }
+        }
+    }
+
+    // Jedna kategoria migawki; ProductStore składa z nich zakodowaną listę
+    void writeCategory(String name, long revision, Collection<Product> products) {
+        writeString(name);
+        writeLong(revision);
+        writeInt(products.size());
+        for (Product product : products) {
+            writeProduct(product);
+        }
+    }
+
+    void writeCategory(String name, long revision, ProductTable products) {
+        writeString(name);
+        writeLong(revision);
+        writeInt(products.size());
+        products.writeProducts(this);
+    }
+
+    int size() {
+        return position + sharedBytes;
+    }
+
+    // Cofa bufor do wcześniejszego size(), np. gdy kodowanie rekordu się nie udało;
+    // tylko dla bufora bez wstawionych buforów współdzielonych
+    void truncate(int size) {
+        position = size;
+        frameStart = -1;
+    }
+
+    byte[] toByteArray() {
+        if (shared.isEmpty()) {
+            return Arrays.copyOf(buffer, position);
+        }
+        ByteBuffer result = ByteBuffer.allocate(size());
+        for (ByteBuffer segment : segments()) {
+            result.put(segment);
+        }
+        return result.array();
+    }
+
+    // Ramka do wysłania później, np. wielu odbiorcom: kopia własnych bajtów i współdzielone bufory bez
+    // kopiowania, wszystko tylko do odczytu. Każdy odbiorca musi dostać własne duplicate().
+    ByteBuffer[] detachedSegments() {
+        ByteBuffer[] segments = segments();
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer segment = segments[i];
+            if (i % 2 == 0) {
+                segment = ByteBuffer.wrap(Arrays.copyOfRange(buffer, segment.position(), segment.limit()));
+            }
+            segments[i] = segment.asReadOnlyBuffer();
+        }
+        return segments;
+    }
+
+    // Widok zakodowanych bajtów bez kopiowania, ważny do następnego zapisu
+    ByteBuffer asByteBuffer() {
+        if (!shared.isEmpty()) {
+            throw new IllegalStateException("Bufor zawiera współdzielone fragmenty, użyj segments()");
+        }
+        return ByteBuffer.wrap(buffer, 0, position);
+    }
+
+    // Własne bajty na przemian ze współdzielonymi buforami, wszystko bez kopiowania i ważne do następnego zapisu
+    ByteBuffer[] segments() {
+        ByteBuffer[] segments = new ByteBuffer[shared.size() * 2 + 1];
+        int from = 0;
+        int i = 0;
+        for (SharedSegment segment : shared) {
+            segments[i++] = ByteBuffer.wrap(buffer, from, segment.position - from);
+            segments[i++] = segment.bytes.duplicate();
+            from = segment.position;
+        }
+        segments[i] = ByteBuffer.wrap(buffer, from, position - from);
+        return segments;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        int from = 0;
+        for (SharedSegment segment : shared) {
+            out.write(buffer, from, segment.position - from);
+            ByteBuffer bytes = segment.bytes.duplicate();
+            if (transfer == null) {
+                transfer = new byte[64 * 1024];
+            }
+            while (bytes.hasRemaining()) {
+                int length = Math.min(bytes.remaining(), transfer.length);
+                bytes.get(transfer, 0, length);
+                out.write(transfer, 0, length);
+            }
+            from = segment.position;
+        }
+        out.write(buffer, from, position - from);
+    }
+
+    void writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] segments = segments();
+        long remaining = size();
+        while (remaining > 0) {
+            remaining -= channel.write(segments);
+        }
+    }
+
+    private void putInt(int at, int value) {
+        buffer[at] = (byte) (value >>> 24);
+        buffer[at + 1] = (byte) (value >>> 16);
+        buffer[at + 2] = (byte) (value >>> 8);
+        buffer[at + 3] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+}
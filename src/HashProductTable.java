@@ -0,0 +1,64 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Obiekt Product i węzeł mapy na każdy produkt; najprostsza tabela, domyślna
+final class HashProductTable implements ProductTable {
+    private final Map<String, Product> products;
+
+    HashProductTable() {
+        this(new HashMap<>());
+    }
+
+    private HashProductTable(Map<String, Product> products) {
+        this.products = products;
+    }
+
+    @Override
+    public int size() {
+        return products.size();
+    }
+
+    @Override
+    public Product get(String name) {
+        return products.get(name);
+    }
+
+    @Override
+    public Product put(Product product) {
+        return products.put(product.name, product);
+    }
+
+    @Override
+    public Product remove(String name) {
+        return products.remove(name);
+    }
+
+    @Override
+    public void clear() {
+        products.clear();
+    }
+
+    @Override
+    public void forEachName(Consumer<String> action) {
+        products.keySet().forEach(action);
+    }
+
+    @Override
+    public ProductTable copy() {
+        return new HashProductTable(Collections.unmodifiableMap(new HashMap<>(products)));
+    }
+
+    @Override
+    public void writeProducts(FrameWriter writer) {
+        for (Product product : products.values()) {
+            writer.writeProduct(product);
+        }
+    }
+
+    @Override
+    public Map<String, Product> toMap() {
+        return Collections.unmodifiableMap(products);
+    }
+}
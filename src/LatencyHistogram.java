@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram wartości (czasów w ns, rozmiarów w bajtach) w przedziałach logarytmiczno-liniowych: każda potęga
+// dwójki dzieli się na SUB_BUCKETS równych przedziałów, więc błąd względny percentyla nie przekracza 1/SUB_BUCKETS.
+// Zapis jest bez blokad i alokacji; liczniki są rozłożone na kilka pasów według wątku, żeby wątki
+// zapisujące tę samą wartość nie walczyły o jedną linię pamięci podręcznej.
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Większe wartości (ponad pół godziny w ns) trafiają do ostatniego przedziału
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    double mean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    // Górna granica przedziału, w którym leży dany percentyl (0-100)
+    long percentile(double percentile) {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            buckets[i % BUCKETS] += counts.get(i);
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    long max() {
+        for (int bucket = BUCKETS - 1; bucket >= 0; bucket--) {
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                if (counts.get(stripe * BUCKETS + bucket) != 0) {
+                    return upperBound(bucket);
+                }
+            }
+        }
+        return 0;
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+    }
+
+    private static int bucket(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+// Lokalna kopia listy klienta w pliku: lista, jaką ostatnio widział użytkownik, razem ze zmianami zrobionymi
+// bez połączenia, które czekają na wysłanie do serwera. Plik jest zastępowany w całości, więc po przerwanym
+// zapisie zostaje poprzednia wersja.
+final class ListCache {
+    private static final int MAGIC = 0x504C4331;
+
+    private final Path path;
+
+    // Zmiana zrobiona bez połączenia razem z rewizją serwera, na której klient ją oparł
+    static final class OfflineOperation {
+        final long baseRevision;
+        final BatchOperation operation;
+
+        OfflineOperation(long baseRevision, BatchOperation operation) {
+            this.baseRevision = baseRevision;
+            this.operation = operation;
+        }
+    }
+
+    static final class State {
+        final long revision;
+        final Map<String, Map<String, Product>> productList;
+        final Map<String, Long> categoryRevisions;
+        final List<OfflineOperation> offlineOperations;
+
+        State(long revision, Map<String, Map<String, Product>> productList, Map<String, Long> categoryRevisions,
+              List<OfflineOperation> offlineOperations) {
+            this.revision = revision;
+            this.productList = productList;
+            this.categoryRevisions = categoryRevisions;
+            this.offlineOperations = offlineOperations;
+        }
+    }
+
+    ListCache(Path path) {
+        this.path = path;
+    }
+
+    // null, gdy pliku nie ma albo zapisano w nim inną listę
+    State load(String listId) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            FrameReader reader = new FrameReader();
+            if (reader.readRecord(in, Files.size(path)) < 0 || reader.readInt() != MAGIC) {
+                throw new IOException("Uszkodzona kopia listy: " + path);
+            }
+            if (!reader.readString().equals(listId)) {
+                return null;
+            }
+            long revision = reader.readLong();
+            Map<String, Long> categoryRevisions = new HashMap<>();
+            Map<String, Map<String, Product>> productList = reader.readSnapshot(categoryRevisions);
+            int count = reader.readCount();
+            List<OfflineOperation> offlineOperations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                offlineOperations.add(new OfflineOperation(reader.readLong(), reader.readOperation()));
+            }
+            return new State(revision, productList, categoryRevisions, offlineOperations);
+        }
+    }
+
+    // Wołane z zablokowaną listą, żeby kopia była spójna z kolejką zmian; zapis do pliku już bez blokady
+    static FrameWriter encode(String listId, State state) {
+        FrameWriter writer = new FrameWriter();
+        writer.beginFrame();
+        writer.writeInt(MAGIC);
+        writer.writeString(listId);
+        writer.writeLong(state.revision);
+        writer.writeSnapshot(state.productList, state.categoryRevisions);
+        writer.writeInt(state.offlineOperations.size());
+        for (OfflineOperation queued : state.offlineOperations) {
+            writer.writeLong(queued.baseRevision);
+            writer.writeOperation(queued.operation);
+        }
+        writer.endFrameWithChecksum();
+        return writer;
+    }
+
+    synchronized void write(FrameWriter encoded) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            encoded.writeTo(channel);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Listy zakupów przydzielone jednej partycji według skrótu identyfikatora (Server.partitionOf). Zmiany list
+// partycji wykonują się po kolei, w silniku NIO zawsze w tej samej pętli zdarzeń, a partycja ma własny dziennik
+// i wątek rozsyłający zmiany, więc listy z różnych partycji nie dzielą żadnej blokady.
+final class ListPartition {
+    private static final String LAYOUT_FILE = "partitions";
+
+    final int index;
+    private final Set<String> availableUnits;
+    private final ServerConfig.Storage storage;
+    private final ProductStore.Stats stats = new ProductStore.Stats();
+    private final Map<String, ProductStore> lists = new ConcurrentHashMap<>();
+    // Tylko dla zmian; w silniku NIO zawsze wolna, bo partycję obsługuje jedna pętla, a wątki wirtualne
+    // czekają na nią po kolei
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ChangePublisher publisher;
+    private final ReplicationSource replicationSource;
+    private volatile WriteAheadLog writeAheadLog;
+    // Tylko na replice, do awansu na serwer główny
+    private volatile ReplicationFollower follower;
+
+    ListPartition(int index, Set<String> availableUnits, ServerConfig.Storage storage) {
+        this.index = index;
+        this.availableUnits = availableUnits;
+        this.storage = storage;
+        this.publisher = new ChangePublisher("change-publisher-" + index);
+        this.replicationSource = new ReplicationSource(this);
+    }
+
+    // Odtwarza listy wszystkich partycji z katalogu danych. Przydział list zależy od liczby partycji,
+    // więc katalog zapisany przy innej liczbie nie zostanie otwarty.
+    static ListPartition[] open(ServerConfig config) throws IOException {
+        Set<String> availableUnits = WireFormat.availableUnits();
+        ListPartition[] partitions = new ListPartition[config.partitions];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new ListPartition(i, availableUnits, config.storage);
+        }
+        if (config.durability != ServerConfig.Durability.NONE) {
+            Path dataDir = Paths.get(config.dataDir);
+            Files.createDirectories(dataDir);
+            Path layout = dataDir.resolve(LAYOUT_FILE);
+            if (Files.exists(layout)) {
+                int saved = Integer.parseInt(Files.readString(layout, StandardCharsets.UTF_8).trim());
+                if (saved != partitions.length) {
+                    throw new IOException("Katalog " + dataDir + " zapisano przy " + saved + " partycjach; uruchom serwer z --partitions=" + saved);
+                }
+            } else {
+                Files.writeString(layout, partitions.length + "\n", StandardCharsets.UTF_8);
+            }
+            for (ListPartition partition : partitions) {
+                partition.openLog(dataDir.resolve("partition-" + partition.index), config);
+            }
+        }
+        for (ListPartition partition : partitions) {
+            partition.publisher.start();
+            partition.replicationSource.start();
+        }
+        if (config.replicateFrom != null) {
+            int separator = config.replicateFrom.lastIndexOf(':');
+            String host = config.replicateFrom.substring(0, separator);
+            int port = Integer.parseInt(config.replicateFrom.substring(separator + 1));
+            for (ListPartition partition : partitions) {
+                partition.follower = new ReplicationFollower(partition, host, port, partitions.length);
+                partition.follower.start();
+            }
+        }
+        return partitions;
+    }
+
+    private void openLog(Path directory, ServerConfig config) throws IOException {
+        WriteAheadLog log = WriteAheadLog.open(this, directory, config);
+        for (Map.Entry<String, ProductStore> list : lists.entrySet()) {
+            list.getValue().setJournal(log.journal(list.getKey(), list.getValue()));
+        }
+        writeAheadLog = log;
+    }
+
+    void registerMetrics(ServerMetrics metrics) {
+        String prefix = "partition." + index + ".";
+        metrics.gauge(prefix + "lists", lists::size);
+        metrics.gauge(prefix + "store.categories", () -> {
+            long sum = 0;
+            for (ProductStore list : lists.values()) {
+                sum += list.categoryCount();
+            }
+            return sum;
+        });
+        metrics.gauge(prefix + "store.change_log_size", () -> {
+            long sum = 0;
+            for (ProductStore list : lists.values()) {
+                sum += list.changeLogSize();
+            }
+            return sum;
+        });
+        metrics.gauge(prefix + "store.encoded_snapshot_bytes", () -> {
+            long sum = 0;
+            for (ProductStore list : lists.values()) {
+                sum += list.encodedSnapshotBytes();
+            }
+            return sum;
+        });
+        metrics.gauge(prefix + "store.deflated_snapshot_bytes", () -> {
+            long sum = 0;
+            for (ProductStore list : lists.values()) {
+                sum += list.deflatedSnapshotBytes();
+            }
+            return sum;
+        });
+        metrics.timeHistogram(prefix + "store.category_lock_wait", stats.categoryLockWait);
+        metrics.timeHistogram(prefix + "store.store_lock_wait", stats.storeLockWait);
+        metrics.timeHistogram(prefix + "store.snapshot_encoding", stats.snapshotEncoding);
+        publisher.registerMetrics(metrics, prefix);
+        replicationSource.registerMetrics(metrics, prefix);
+        ReplicationFollower currentFollower = follower;
+        if (currentFollower != null) {
+            metrics.gauge(prefix + "replication.lag_ms", currentFollower::lagMillis);
+            metrics.gauge(prefix + "replication.connected", () -> currentFollower.isConnected() ? 1 : 0);
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.registerMetrics(metrics, prefix);
+        }
+    }
+
+    // Lista powstaje przy pierwszym żądaniu, które się do niej odwołuje
+    ProductStore list(String listId) {
+        return lists.computeIfAbsent(listId, id -> {
+            ProductStore store = new ProductStore(availableUnits, stats, storage);
+            WriteAheadLog log = writeAheadLog;
+            if (log != null) {
+                store.setJournal(log.journal(id, store));
+            }
+            return store;
+        });
+    }
+
+    Map<String, ProductStore> lists() {
+        return lists;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    // false, gdy partycja nie zwolniła się w podanym czasie
+    boolean tryLock(long timeoutNanos) {
+        if (lock.tryLock()) {
+            return true;
+        }
+        try {
+            return timeoutNanos > 0 && lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    void subscribe(ProductStore list, SessionOutput output, long fromRevision, boolean deflate) {
+        publisher.subscribe(list, output, fromRevision, deflate);
+    }
+
+    // Od teraz połączenie dostaje strumień zmian wszystkich list partycji
+    void replicate(SessionOutput output) {
+        replicationSource.add(output);
+    }
+
+    // Replika przestaje przyjmować zmiany od serwera głównego; zwraca false, gdy partycja nie była repliką
+    boolean stopReplication() {
+        ReplicationFollower current = follower;
+        if (current == null) {
+            return false;
+        }
+        current.stop();
+        follower = null;
+        for (ProductStore list : lists.values()) {
+            list.finishReplication();
+        }
+        return true;
+    }
+
+    // Czeka na zapis zmian wszystkich list partycji, więc odpowiedzi zebrane w jednym obiegu pętli
+    // czekają na jeden wspólny fsync
+    void awaitDurable() {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            long start = System.nanoTime();
+            log.awaitDurable();
+            Server.metrics.recordDurableWait(System.nanoTime() - start);
+        }
+    }
+
+    // Jak awaitDurable, ale bez czekania; zwraca false, gdy wszystko jest już zapisane i callback nie zostanie wywołany
+    boolean deferUntilDurable(Runnable callback) {
+        WriteAheadLog log = writeAheadLog;
+        if (log == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        return log.deferUntilDurable(() -> {
+            Server.metrics.recordDurableWait(System.nanoTime() - start);
+            callback.run();
+        });
+    }
+}
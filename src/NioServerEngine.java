@@ -0,0 +1,436 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Nieblokujące gniazda obsługiwane przez kilka pętli zdarzeń, każda z własnym selektorem.
+// Żądania są obsługiwane bezpośrednio w pętli, więc odpowiedzi w połączeniu zachowują kolejność.
+// Partycja list należy do jednej pętli (indeks partycji modulo liczba pętli); połączenie trafia do pętli
+// po kolei, a po pierwszej ramce przechodzi do pętli partycji swojej listy.
+final class NioServerEngine implements ServerEngine {
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // Co tyle pętla sprawdza czasy bezczynności i odczytu swoich połączeń
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final ServerConfig config;
+
+    NioServerEngine(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void run() throws IOException {
+        // Więcej pętli niż partycji nie miałoby czego obsługiwać
+        EventLoop[] loops = new EventLoop[Math.min(config.workers, Server.partitionCount())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, loops, config);
+        }
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        Server.metrics.gauge("nio.queued_tasks", () -> {
+            long queued = 0;
+            for (EventLoop loop : loops) {
+                queued += loop.tasks.size();
+            }
+            return queued;
+        });
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(config.port), config.backlog);
+            System.out.println("Serwer uruchomiony na porcie " + config.port + " (NIO, pętle zdarzeń: " + loops.length + ")");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                AdmissionControl.Client client = null;
+                try {
+                    client = Server.admission.admit(((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+                    if (client == null) {
+                        channel.close();
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    // Klient rozłączył się, zanim połączenie zostało przyjęte
+                    if (client != null) {
+                        Server.admission.release(client);
+                    }
+                    channel.close();
+                    continue;
+                }
+                Server.metrics.connectionOpened();
+                loops[next].register(channel, client);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private static final class Connection implements SessionOutput {
+        final SocketChannel channel;
+        // Zmienia się raz, gdy połączenie przechodzi do pętli partycji swojej listy
+        volatile EventLoop loop;
+        final ClientSession session = new ClientSession(this);
+        final AtomicLong queuedBytes = new AtomicLong();
+        SelectionKey key;
+        // Niepełna ramka z poprzedniego odczytu, w trybie zapisu, i od kiedy czeka na resztę
+        ByteBuffer pendingInput;
+        long pendingInputSince;
+        long lastReadNanos = System.nanoTime();
+        // Dane, których gniazdo jeszcze nie przyjęło, w trybie odczytu. Bufory tylko do odczytu
+        // (zakodowana lista, gotowe powiadomienia) czekają bez kopiowania.
+        final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+        volatile long pendingOutputBytes;
+        // Kiedy gniazdo ostatnio przyjęło zaległe dane
+        long lastWriteNanos;
+        // Odpowiedzi czekające na fsync dziennika (--durability=sync); połączenie nie czyta w tym czasie żądań
+        ByteBuffer[] durableOutput;
+
+        Connection(SocketChannel channel, EventLoop loop, AdmissionControl.Client client) {
+            this.channel = channel;
+            this.loop = loop;
+            session.address = channel.socket().getInetAddress();
+            session.client = client;
+        }
+
+        @Override
+        public void send(ByteBuffer... frame) {
+            long length = 0;
+            for (ByteBuffer segment : frame) {
+                length += segment.remaining();
+            }
+            long queued = length;
+            queuedBytes.addAndGet(queued);
+            loop.execute(() -> {
+                queuedBytes.addAndGet(-queued);
+                if (!channel.isOpen()) {
+                    return;
+                }
+                try {
+                    loop.write(this, frame);
+                } catch (IOException | CancelledKeyException e) {
+                    EventLoop.close(this);
+                }
+            });
+        }
+
+        @Override
+        public long pendingBytes() {
+            return queuedBytes.get() + pendingOutputBytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+    }
+
+    private static final class EventLoop extends Thread {
+        private final int index;
+        private final EventLoop[] loops;
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        private final FrameReader request;
+        private final FrameWriter response = new FrameWriter();
+        private final long idleTimeoutNanos;
+        private final long readTimeoutNanos;
+        private final long writeTimeoutNanos;
+        // Chwila, w której select zwrócił gotowe połączenia; od niej liczy się czekanie ich żądań
+        private long iterationStart;
+        private long lastSweep = System.nanoTime();
+
+        EventLoop(int index, EventLoop[] loops, ServerConfig config) throws IOException {
+            super("event-loop-" + index);
+            this.index = index;
+            this.loops = loops;
+            this.request = new FrameReader(config.maxFrameBytes);
+            this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis);
+            this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.readTimeoutMillis);
+            this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.writeTimeoutMillis);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel, AdmissionControl.Client client) {
+            execute(() -> {
+                Connection connection = new Connection(channel, this, client);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    close(connection);
+                }
+            });
+        }
+
+        // Przejmuje połączenie z innej pętli razem z nieobsłużonymi ramkami
+        void adopt(Connection connection) {
+            execute(() -> {
+                connection.loop = this;
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    process(connection, ByteBuffer.allocate(0));
+                } catch (IOException | CancelledKeyException e) {
+                    close(connection);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MILLIS);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+                iterationStart = System.nanoTime();
+                if (iterationStart - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS)) {
+                    lastSweep = iterationStart;
+                    closeTimedOut();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            flushPendingOutput(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        close(connection);
+                    }
+                }
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            readBuffer.clear();
+            if (connection.channel.read(readBuffer) < 0) {
+                close(connection);
+                return;
+            }
+            connection.lastReadNanos = iterationStart;
+            readBuffer.flip();
+            process(connection, readBuffer);
+        }
+
+        private void process(Connection connection, ByteBuffer received) throws IOException {
+            ByteBuffer input = received;
+            if (connection.pendingInput != null) {
+                connection.pendingInput = append(connection.pendingInput, received);
+                input = connection.pendingInput.flip();
+            }
+
+            response.reset();
+            EventLoop owner = this;
+            boolean handled = false;
+            while (true) {
+                int frameStart = input.position();
+                if (!request.readFrame(input)) {
+                    break;
+                }
+                if (connection.session.list == null) {
+                    int partition = Server.partitionOf(request);
+                    if (partition >= 0 && loops[partition % loops.length] != this) {
+                        // Ramkę obsłuży pętla partycji
+                        input.position(frameStart);
+                        owner = loops[partition % loops.length];
+                        break;
+                    }
+                }
+                Server.handleRequest(connection.session, request, response, iterationStart);
+                handled = true;
+            }
+
+            if (input != connection.pendingInput) {
+                if (input.hasRemaining()) {
+                    connection.pendingInput = ByteBuffer.allocate(Math.max(input.remaining(), 4096)).put(input);
+                    connection.pendingInputSince = iterationStart;
+                }
+            } else if (input.hasRemaining()) {
+                input.compact();
+                if (handled) {
+                    connection.pendingInputSince = iterationStart;
+                }
+            } else {
+                connection.pendingInput = null;
+            }
+
+            if (owner != this) {
+                connection.key.cancel();
+                owner.adopt(connection);
+                return;
+            }
+            if (response.size() > 0) {
+                ByteBuffer[] segments = response.segments();
+                // Pętla obsługuje też inne partycje, więc nie czeka na fsync, tylko odkłada odpowiedzi
+                if (Server.deferUntilDurable(connection.session, () -> execute(() -> writeDurable(connection)))) {
+                    for (int i = 0; i < segments.length; i++) {
+                        if (!segments[i].isReadOnly()) {
+                            segments[i] = ByteBuffer.allocate(segments[i].remaining()).put(segments[i]).flip();
+                        }
+                    }
+                    connection.durableOutput = segments;
+                    connection.key.interestOps(0);
+                } else {
+                    write(connection, segments);
+                }
+            }
+        }
+
+        private void writeDurable(Connection connection) {
+            ByteBuffer[] output = connection.durableOutput;
+            connection.durableOutput = null;
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            try {
+                write(connection, output);
+                if (connection.pendingOutput.isEmpty()) {
+                    connection.key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close(connection);
+            }
+        }
+
+        // Zamyka połączenia, którym za długo przychodzi rozpoczęta ramka, i bezczynne połączenia, które niczego
+        // nie odbierają. Połączenie czekające, aż klient odbierze odpowiedzi, nie czyta i nie jest bezczynne.
+        private void closeTimedOut() {
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid()) {
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.interestOps() == SelectionKey.OP_WRITE) {
+                    if (writeTimeoutNanos > 0 && iterationStart - connection.lastWriteNanos > writeTimeoutNanos) {
+                        Server.admission.recordTimeout();
+                        close(connection);
+                    }
+                    continue;
+                }
+                if (key.interestOps() != SelectionKey.OP_READ) {
+                    continue;
+                }
+                boolean readTimedOut = readTimeoutNanos > 0 && connection.pendingInput != null
+                        && iterationStart - connection.pendingInputSince > readTimeoutNanos;
+                boolean idle = idleTimeoutNanos > 0 && !connection.session.subscribed && !connection.session.replica
+                        && iterationStart - connection.lastReadNanos > idleTimeoutNanos;
+                if (readTimedOut || idle) {
+                    Server.admission.recordTimeout();
+                    close(connection);
+                }
+            }
+        }
+
+        // Czego gniazdo nie przyjmie, czeka na OP_WRITE; bajty bufora odpowiedzi pętli trzeba przy tym skopiować
+        void write(Connection connection, ByteBuffer... sources) throws IOException {
+            boolean wasBlocked = !connection.pendingOutput.isEmpty();
+            boolean blocked = wasBlocked;
+            for (ByteBuffer source : sources) {
+                if (!blocked) {
+                    drain(connection, source);
+                    blocked = source.hasRemaining();
+                }
+                if (source.hasRemaining()) {
+                    connection.pendingOutputBytes += source.remaining();
+                    connection.pendingOutput.add(source.isReadOnly() ? source : ByteBuffer.allocate(source.remaining()).put(source).flip());
+                }
+            }
+            if (blocked && !wasBlocked) {
+                // Nie czytamy kolejnych żądań, dopóki klient nie odbierze odpowiedzi
+                connection.lastWriteNanos = System.nanoTime();
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void flushPendingOutput(Connection connection) throws IOException {
+            ByteBuffer head;
+            while ((head = connection.pendingOutput.peek()) != null) {
+                int before = head.remaining();
+                drain(connection, head);
+                if (head.remaining() < before) {
+                    connection.lastWriteNanos = iterationStart;
+                }
+                connection.pendingOutputBytes -= before - head.remaining();
+                if (head.hasRemaining()) {
+                    return;
+                }
+                connection.pendingOutput.poll();
+            }
+            connection.key.interestOps(connection.durableOutput == null ? SelectionKey.OP_READ : 0);
+        }
+
+        // Bufory poza stertą gniazdo przyjmuje bezpośrednio, pozostałe idą przez bezpośredni bufor pętli
+        private void drain(Connection connection, ByteBuffer source) throws IOException {
+            if (source.isDirect()) {
+                while (source.hasRemaining()) {
+                    if (connection.channel.write(source) == 0) {
+                        return;
+                    }
+                }
+                return;
+            }
+            while (source.hasRemaining()) {
+                writeBuffer.clear();
+                ByteBuffer chunk = source.slice();
+                chunk.limit(Math.min(chunk.limit(), writeBuffer.capacity()));
+                writeBuffer.put(chunk).flip();
+                int written = connection.channel.write(writeBuffer);
+                source.position(source.position() + written);
+                if (writeBuffer.hasRemaining()) {
+                    return;
+                }
+            }
+        }
+
+        private static ByteBuffer append(ByteBuffer target, ByteBuffer source) {
+            if (target.remaining() < source.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + source.remaining()));
+                target.flip();
+                target = grown.put(target);
+            }
+            return target.put(source);
+        }
+
+        private static void close(Connection connection) {
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            if (!connection.channel.isOpen()) {
+                return;
+            }
+            Server.metrics.connectionClosed();
+            if (connection.session.client != null) {
+                Server.admission.release(connection.session.client);
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+// Paczka operacji (BATCH, SYNC) została odrzucona z powodu jednej z nich; numer liczony od 0
+class OperationRejectedException extends IllegalArgumentException {
+    final int index;
+    // Kategorię operacji zmienił ktoś inny po rewizji, na której klient oparł zmiany
+    final boolean conflict;
+
+    OperationRejectedException(int index, boolean conflict, String message) {
+        super(message);
+        this.index = index;
+        this.conflict = conflict;
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+// Indeks nazw produktów ze wszystkich kategorii, zmieniany razem z listą pod blokadą kategorii.
+// Wyszukiwanie po prefiksie przechodzi tylko pasujący fragment posortowanej mapy, a po fragmencie nazwy
+// sprawdza nazwy z trigramami fragmentu albo, gdy takich jest bardzo dużo, przechodzi nazwy po kolei
+// do pierwszych trafień, więc żadne zapytanie nie przegląda całej listy. Indeks trzyma tylko
+// nazwy; produkty znalezione przez zapytanie odczytuje z listy funkcja podana w konstruktorze.
+final class ProductIndex {
+    // Znaki brzegowe: każda nazwa, także jedno- i dwuznakowa, ma co najmniej jeden trigram
+    private static final char NAME_START = '\u0002';
+    private static final char NAME_END = '\u0003';
+
+    private static final class Key implements Comparable<Key> {
+        final String normalized;
+        final String category;
+        final String name;
+
+        Key(String normalized, String category, String name) {
+            this.normalized = normalized;
+            this.category = category;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int result = normalized.compareTo(other.normalized);
+            if (result == 0) {
+                result = category.compareTo(other.category);
+            }
+            return result != 0 ? result : name.compareTo(other.name);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return category.equals(other.category) && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * category.hashCode() + name.hashCode();
+        }
+    }
+
+    private final ConcurrentSkipListSet<Key> byName = new ConcurrentSkipListSet<>();
+    // Rozmiar byName; size() zbioru przechodzi wszystkie elementy
+    private final AtomicInteger nameCount = new AtomicInteger();
+    private final ConcurrentHashMap<String, Set<Key>> byTrigram = new ConcurrentHashMap<>();
+    // Produkt o podanej kategorii i nazwie albo null, gdy zniknął po znalezieniu go w indeksie
+    private final BiFunction<String, String, Product> lookup;
+
+    ProductIndex(BiFunction<String, String, Product> lookup) {
+        this.lookup = lookup;
+    }
+
+    void add(String category, String name) {
+        Key key = new Key(normalize(name), category, name);
+        if (!byName.add(key)) {
+            return;
+        }
+        nameCount.incrementAndGet();
+        String padded = NAME_START + key.normalized + NAME_END;
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            byTrigram.compute(padded.substring(i, i + 3), (t, keys) -> {
+                Set<Key> updated = keys != null ? keys : ConcurrentHashMap.newKeySet();
+                updated.add(key);
+                return updated;
+            });
+        }
+    }
+
+    void remove(String category, String name) {
+        Key key = new Key(normalize(name), category, name);
+        if (!byName.remove(key)) {
+            return;
+        }
+        nameCount.decrementAndGet();
+        String padded = NAME_START + key.normalized + NAME_END;
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            byTrigram.computeIfPresent(padded.substring(i, i + 3), (t, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    // Najwyżej limit produktów, których nazwa zaczyna się od prefiksu, w kolejności nazw
+    List<ProductMatch> searchByPrefix(String prefix, int limit) {
+        String normalized = normalize(prefix);
+        List<Key> found = new ArrayList<>();
+        for (Key key : byName.tailSet(new Key(normalized, "", ""), true)) {
+            if (found.size() >= limit || !key.normalized.startsWith(normalized)) {
+                break;
+            }
+            found.add(key);
+        }
+        return matches(found);
+    }
+
+    // Pierwsze limit produktów, których nazwa zawiera fragment, w kolejności nazw. Kandydatów z indeksu
+    // trigramów trzeba sprawdzić wszystkich, bo są w dowolnej kolejności. Gdy jest ich c wśród n nazw,
+    // przejście nazw po kolei znajduje limit trafień po około n * limit / c nazwach; wybierana jest tańsza
+    // droga, więc zapytanie sprawdza najwyżej około sqrt(n * limit) nazw, także dla fragmentów krótszych
+    // niż trigram, które pasują do wielu trigramów.
+    List<ProductMatch> searchBySubstring(String fragment, int limit) {
+        String normalized = normalize(fragment);
+        if (normalized.isEmpty() || limit == 0) {
+            return searchByPrefix(normalized, limit);
+        }
+        List<Set<Key>> candidates = new ArrayList<>();
+        long candidateCount = 0;
+        if (normalized.length() >= 3) {
+            // Każda pasująca nazwa ma wszystkie trigramy fragmentu, wystarczy sprawdzić najrzadszy
+            Set<Key> rarest = null;
+            for (String trigram : trigrams(normalized)) {
+                Set<Key> keys = byTrigram.get(trigram);
+                if (keys == null) {
+                    return List.of();
+                }
+                if (rarest == null || keys.size() < rarest.size()) {
+                    rarest = keys;
+                }
+            }
+            candidates.add(rarest);
+            candidateCount = rarest.size();
+        } else {
+            // Krótki fragment: trigramy, które go zawierają; różnych trigramów jest dużo mniej niż produktów
+            for (Map.Entry<String, Set<Key>> entry : byTrigram.entrySet()) {
+                if (entry.getKey().contains(normalized)) {
+                    candidates.add(entry.getValue());
+                    candidateCount += entry.getValue().size();
+                }
+            }
+            if (candidates.isEmpty()) {
+                return List.of();
+            }
+        }
+        if ((double) nameCount.get() * limit / candidateCount < candidateCount) {
+            return scanByName(normalized, limit);
+        }
+
+        // Limit najmniejszych trafień; kandydat dalszy niż ostatnie z nich już nie wejdzie
+        TreeSet<Key> found = new TreeSet<>();
+        for (Set<Key> keys : candidates) {
+            for (Key key : keys) {
+                if (found.size() == limit && key.compareTo(found.last()) >= 0) {
+                    continue;
+                }
+                if (key.normalized.contains(normalized) && found.add(key) && found.size() > limit) {
+                    found.pollLast();
+                }
+            }
+        }
+        return matches(found);
+    }
+
+    private List<ProductMatch> scanByName(String normalized, int limit) {
+        List<Key> found = new ArrayList<>();
+        for (Key key : byName) {
+            if (key.normalized.contains(normalized)) {
+                found.add(key);
+                if (found.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return matches(found);
+    }
+
+    private List<ProductMatch> matches(Collection<Key> found) {
+        List<ProductMatch> matches = new ArrayList<>(found.size());
+        for (Key key : found) {
+            Product product = lookup.apply(key.category, key.name);
+            if (product != null) {
+                matches.add(new ProductMatch(key.category, product));
+            }
+        }
+        return matches;
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            trigrams.add(text.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+}
@@ -1,11 +1,25 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-class Product implements Serializable {
-    String name;
-    double quantity;
-    String unit;
+final class Product implements Serializable {
+    final String name;
+    final double quantity;
+    final String unit;
 
     public Product(String name, double quantity, String unit) {
         this.name = name;
@@ -13,6 +27,23 @@ class Product implements Serializable {
         this.unit = unit;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Product)) {
+            return false;
+        }
+        Product other = (Product) o;
+        return Double.compare(quantity, other.quantity) == 0 && name.equals(other.name) && unit.equals(other.unit);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, quantity, unit);
+    }
+
     @Override
     public String toString() {
         return name + " (" + quantity + " " + unit + ")";
@@ -20,87 +51,882 @@ class Product implements Serializable {
 }
 
 class ProductListManager {
-    private Map<String, Set<Product>> productList;
+    // Mniej niż mieści dziennik zmian serwera, żeby odpowiedzi na kolejne paczki niosły zmiany, a nie całą listę
+    private static final int IMPORT_CHUNK_SIZE = 500;
+    private static final int IMPORT_CHUNKS_IN_FLIGHT = 4;
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+    // Po nieudanym połączeniu z repliką odczyty idą przez ten czas prosto do serwera głównego
+    private static final long REPLICA_RETRY_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // Co tyle wątek synchronizacji próbuje wysłać zmiany zrobione bez połączenia i zapisuje kopię listy
+    private static final long SYNC_INTERVAL_MILLIS = 2000;
+
+    private final Map<String, Map<String, Product>> productList;
+    // Rewizja ostatniej zastosowanej zmiany każdej kategorii
+    private final Map<String, Long> categoryRevisions = new HashMap<>();
     final Set<String> availableUnits;
-    private final String serverAddress;
-    private final int serverPort;
+    // Zapisy idą zawsze do serwera głównego, odczyty do repliki, jeśli jakaś jest osiągalna
+    private final Connection primary;
+    private final List<Connection> replicas = new CopyOnWriteArrayList<>();
+    private int preferredReplica;
+    // Lista zakupów na serwerze, której dotyczą wszystkie żądania tego obiektu
+    private final String listId;
+    private final Map<Long, PendingRequest<?>> pendingRequests = new ConcurrentHashMap<>();
+    // Rewizja serwera, do której lokalna lista jest aktualna; -1 wymusza pobranie całej listy
+    private volatile long revision = -1;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final FrameWriter request = new FrameWriter();
+    // Łączenie i zapis do gniazda mogą trwać, więc nie odbywają się w wątku wywołującym (np. w wątku GUI)
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "product-list-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean subscribed;
+    private volatile Runnable updateListener;
+    private volatile Consumer<List<Change>> changeListener;
+    private volatile BiConsumer<BatchOperation, RequestRejectedException> offlineRejectionListener;
+    // Kopia listy w pliku; null, dopóki nie wywołano openCache
+    private volatile ListCache cache;
+    // Zmiany zrobione bez połączenia, w kolejności wywołań; lista w pamięci już je uwzględnia.
+    // Dostęp z zablokowaną listą, tak jak do rewizji i kategorii.
+    private final List<ListCache.OfflineOperation> offlineOperations = new ArrayList<>();
+    // Tyle pierwszych zmian z offlineOperations jest właśnie wysyłanych
+    private int syncingOperations;
+    // Lista w pamięci zmieniła się od ostatniego zapisu kopii
+    private boolean cacheDirty;
 
     public ProductListManager(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, WireFormat.DEFAULT_LIST_ID);
+    }
+
+    public ProductListManager(String serverAddress, int serverPort, String listId) {
         this.productList = new HashMap<>();
-        this.availableUnits = new HashSet<>(Arrays.asList("sztuki", "kg", "m", "l"));
-        this.serverAddress = serverAddress;
-        this.serverPort = serverPort;
+        this.availableUnits = WireFormat.availableUnits();
+        this.primary = new Connection(serverAddress, serverPort, true);
+        this.listId = listId;
+    }
+
+    // Replika ma te same rewizje co serwer główny, więc odczyty z niej i zapisy do serwera głównego
+    // składają się w jedną listę, która się nie cofa. Replika może być chwilę w tyle, więc wyniki
+    // wyszukiwania i sum mogą jeszcze nie uwzględniać ostatnich zapisów.
+    public void addReadReplica(String address, int port) {
+        replicas.add(new Connection(address, port, false));
+    }
+
+    public String getListId() {
+        return listId;
+    }
+
+    // Wczytuje kopię listy z pliku, więc lista jest widoczna od razu, zanim odpowie serwer. Od teraz zmiany,
+    // których nie da się wysłać, bo serwer jest nieosiągalny, trafiają do lokalnej listy i do pliku, a wątek
+    // w tle wysyła je jedną paczką (SYNC), gdy serwer znów odpowiada. Wywoływane przed pierwszym żądaniem.
+    public void openCache(String path) throws IOException {
+        ListCache newCache = new ListCache(Paths.get(path));
+        ListCache.State state = newCache.load(listId);
+        if (state != null) {
+            synchronized (productList) {
+                productList.clear();
+                productList.putAll(state.productList);
+                categoryRevisions.clear();
+                categoryRevisions.putAll(state.categoryRevisions);
+                revision = state.revision;
+                offlineOperations.addAll(state.offlineOperations);
+            }
+        }
+        cache = newCache;
+        Thread sync = new Thread(this::runSync, "product-list-sync");
+        sync.setDaemon(true);
+        sync.start();
+    }
+
+    // Liczba zmian zrobionych bez połączenia, które jeszcze nie trafiły do serwera
+    public int offlineChangeCount() {
+        synchronized (productList) {
+            return offlineOperations.size();
+        }
+    }
+
+    // Wywoływany w wątku synchronizacji, gdy serwer odrzuci zmianę zrobioną bez połączenia; zmiana jest
+    // wtedy porzucana, a lista wraca do stanu serwera
+    public void setOfflineRejectionListener(BiConsumer<BatchOperation, RequestRejectedException> listener) {
+        offlineRejectionListener = listener;
     }
 
     public void addCategory(String category) {
-        sendRequest("ADD_CATEGORY", category);
+        await(addCategoryAsync(category));
     }
 
 
     // Pozostałe metody z oryginalnego kodu...
-    public Map<String, Set<Product>> getProductList() {
+    // Lista jest zmieniana przez wątek odbierający powiadomienia, więc przy przeglądaniu trzeba ją zablokować
+    public Map<String, Map<String, Product>> getProductList() {
         return productList;
     }
 
+    // Od teraz serwer sam przysyła zmiany innych klientów; subskrypcja jest odnawiana po ponownym połączeniu
+    public void subscribe() {
+        await(subscribeAsync());
+    }
+
+    public CompletableFuture<Void> subscribeAsync() {
+        subscribed = true;
+        return sendRequestAsync(WireFormat.SUBSCRIBE, ProductListManager::writeReadOptions);
+    }
+
+    // Wywoływany w wątku sieciowym po zastosowaniu zmian przysłanych przez serwer.
+    // Przyszłe wyniki metod *Async też kończą się w tym wątku, już po zastosowaniu zmian z odpowiedzi.
+    public void setUpdateListener(Runnable listener) {
+        updateListener = listener;
+    }
+
+    // Wywoływany w wątku sieciowym z każdą porcją zastosowanych zmian, także z odpowiedzi na własne żądania,
+    // przed zakończeniem ich przyszłych wyników; null oznacza, że lista została zastąpiona w całości
+    public void setChangeListener(Consumer<List<Change>> listener) {
+        changeListener = listener;
+    }
+
     public void removeProduct(String category, String name) {
-        sendRequest("REMOVE_PRODUCT", category, name);
+        await(removeProductAsync(category, name));
     }
 
     public void addProduct(String category, String name, double quantity, String unit) {
-        sendRequest("ADD_PRODUCT", category, name, String.valueOf(quantity), unit);
+        await(addProductAsync(category, name, quantity, unit));
     }
 
     public void editProduct(String category, String oldName, String newName, double newQuantity, String newUnit) {
-        sendRequest("EDIT_PRODUCT", category, oldName, newName, String.valueOf(newQuantity), newUnit);
+        await(editProductAsync(category, oldName, newName, newQuantity, newUnit));
+    }
+
+    public void removeCategory(String category) {
+        await(removeCategoryAsync(category));
+    }
+
+    public void clear() {
+        await(clearAsync());
+    }
+
+    // Wiele operacji w jednym żądaniu; serwer wykonuje wszystkie albo żadnej
+    public void batch(List<BatchOperation> operations) {
+        await(batchAsync(operations));
+    }
+
+    public void refresh() {
+        await(refreshAsync());
+    }
+
+    public CompletableFuture<Void> refreshAsync() {
+        return sendRequestAsync(WireFormat.GET_LIST, ProductListManager::writeReadOptions);
+    }
+
+    public CompletableFuture<Void> addCategoryAsync(String category) {
+        return sendOperationAsync(BatchOperation.addCategory(category));
+    }
+
+    public CompletableFuture<Void> removeProductAsync(String category, String name) {
+        return sendOperationAsync(BatchOperation.removeProduct(category, name));
+    }
+
+    public CompletableFuture<Void> addProductAsync(String category, String name, double quantity, String unit) {
+        WireFormat.unitCode(unit);
+        return sendOperationAsync(BatchOperation.addProduct(category, name, quantity, unit));
+    }
+
+    public CompletableFuture<Void> removeCategoryAsync(String category) {
+        return sendOperationAsync(BatchOperation.removeCategory(category));
+    }
+
+    public CompletableFuture<Void> clearAsync() {
+        return sendOperationAsync(BatchOperation.clear());
+    }
+
+    public CompletableFuture<Void> batchAsync(List<BatchOperation> operations) {
+        return sendRequestAsync(WireFormat.BATCH, w -> {
+            w.writeInt(operations.size());
+            for (BatchOperation operation : operations) {
+                w.writeOperation(operation);
+            }
+        });
+    }
+
+    // Wyszukiwanie i sumy liczy serwer ze swoich indeksów, bez pobierania całej listy
+    public List<ProductMatch> searchProducts(String query, boolean substring) {
+        return await(searchProductsAsync(query, substring, WireFormat.MAX_SEARCH_RESULTS));
+    }
+
+    public Map<String, Map<String, UnitTotal>> totals() {
+        return await(totalsAsync());
+    }
+
+    public CompletableFuture<List<ProductMatch>> searchProductsAsync(String query, boolean substring, int limit) {
+        return sendRequestAsync(WireFormat.SEARCH_PRODUCTS, w -> {
+            w.writeByte(substring ? WireFormat.SEARCH_SUBSTRING : WireFormat.SEARCH_PREFIX);
+            w.writeString(query);
+            w.writeInt(limit);
+        }, FrameReader::readMatches);
+    }
+
+    // Liczba produktów i suma ilości według kategorii i jednostki
+    public CompletableFuture<Map<String, Map<String, UnitTotal>>> totalsAsync() {
+        return sendRequestAsync(WireFormat.AGGREGATE, w -> {
+        }, FrameReader::readTotals);
+    }
+
+    public CompletableFuture<Void> editProductAsync(String category, String oldName, String newName, double newQuantity, String newUnit) {
+        WireFormat.unitCode(newUnit);
+        return sendOperationAsync(BatchOperation.editProduct(category, oldName, newName, newQuantity, newUnit));
+    }
+
+    private static <T> T await(CompletableFuture<T> response) {
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+            return null;
+        }
+    }
+
+    private interface ResultReader<T> {
+        T read(FrameReader response) throws IOException;
+    }
+
+    private static final class PendingRequest<T> {
+        final CompletableFuture<T> response = new CompletableFuture<>();
+        // null dla żądań bez wyniku
+        final ResultReader<T> resultReader;
+        // Połączenie, którym wysłano żądanie; null, dopóki czeka w kolejce wątku wysyłającego
+        volatile Connection connection;
+
+        PendingRequest(ResultReader<T> resultReader) {
+            this.resultReader = resultReader;
+        }
+
+        void complete(byte status, String error, FrameReader frame) throws IOException {
+            if (status == WireFormat.STATUS_BUSY) {
+                response.completeExceptionally(new ServerBusyException(error));
+                return;
+            }
+            if (error != null) {
+                // Odrzucona paczka operacji niesie numer operacji, która zawiodła
+                int operationIndex = frame.hasRemaining() ? frame.readInt() : -1;
+                response.completeExceptionally(new RequestRejectedException(error, operationIndex, status == WireFormat.STATUS_CONFLICT));
+                return;
+            }
+            try {
+                response.complete(resultReader == null ? null : resultReader.read(frame));
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> sendRequestAsync(byte opcode, Consumer<FrameWriter> arguments) {
+        return sendRequestAsync(opcode, arguments, null, null);
+    }
+
+    private <T> CompletableFuture<T> sendRequestAsync(byte opcode, Consumer<FrameWriter> arguments, ResultReader<T> resultReader) {
+        return sendRequestAsync(opcode, arguments, resultReader, null);
     }
 
-    void sendRequest(String requestType, String... args) {
+    // Zmiana, która przy otwartej kopii listy może poczekać na serwer, gdy ten jest nieosiągalny
+    private CompletableFuture<Void> sendOperationAsync(BatchOperation operation) {
+        return sendRequestAsync(operation.opcode, w -> w.writeOperationArguments(operation), null, operation);
+    }
+
+    // Połączenie z jednym serwerem: głównym albo repliką
+    private static final class Connection {
+        final String address;
+        final int port;
+        final boolean primary;
+        Socket socket;
+        OutputStream out;
+        // Połączenie niesie subskrypcję i odnawia ją po ponownym połączeniu
+        boolean subscribed;
+        long failedAtMillis;
+
+        Connection(String address, int port, boolean primary) {
+            this.address = address;
+            this.port = port;
+            this.primary = primary;
+        }
+    }
+
+    // Żądania są wysyłane bez czekania na odpowiedzi poprzednich, a jeden wątek wysyłający
+    // zachowuje kolejność wywołań w każdym połączeniu
+    private <T> CompletableFuture<T> sendRequestAsync(byte opcode, Consumer<FrameWriter> arguments, ResultReader<T> resultReader,
+                                                      BatchOperation offlineOperation) {
+        PendingRequest<T> pending = new PendingRequest<>(resultReader);
+        CompletableFuture<T> response = pending.response;
+        long requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, pending);
+        sender.execute(() -> {
+            synchronized (this) {
+                if (offlineOperation != null && cache != null && !canSendOnline()) {
+                    pendingRequests.remove(requestId);
+                    try {
+                        queueOffline(offlineOperation);
+                        response.complete(null);
+                    } catch (RequestRejectedException e) {
+                        response.completeExceptionally(e);
+                    }
+                    return;
+                }
+                boolean read = WireFormat.isRead(opcode);
+                Connection connection = read ? readConnection() : primary;
+                try {
+                    ensureConnected(connection);
+                    // Powiadomienia przychodzą połączeniem, którym czytamy, także po przejściu na inny serwer
+                    if (read && subscribed && !connection.subscribed) {
+                        connection.subscribed = true;
+                        if (opcode != WireFormat.SUBSCRIBE) {
+                            writeRequest(connection, nextRequestId.incrementAndGet(), WireFormat.SUBSCRIBE, ProductListManager::writeReadOptions);
+                        }
+                    }
+                    pending.connection = connection;
+                    writeRequest(connection, requestId, opcode, arguments);
+                } catch (IOException e) {
+                    pendingRequests.remove(requestId);
+                    response.completeExceptionally(e);
+                    closeConnection(connection, connection.socket, e);
+                }
+            }
+        });
+        return response;
+    }
+
+    // Zmiany czekające na wysłanie wyprzedzają nowe, więc nowe też czekają, dopóki kolejka się nie opróżni.
+    // Do kolejki trafia tylko zmiana, której na pewno nie wysłano: serwer nie przyjął połączenia.
+    private boolean canSendOnline() {
+        synchronized (productList) {
+            if (!offlineOperations.isEmpty()) {
+                return false;
+            }
+        }
         try {
-            Socket socket = new Socket(serverAddress, serverPort);
-            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-            out.writeObject(requestType);
-            out.writeObject(args);
-            out.flush();
+            ensureConnected(primary);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Pierwsza osiągalna replika, a gdy żadnej nie ma, serwer główny
+    private Connection readConnection() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < replicas.size(); i++) {
+            int index = (preferredReplica + i) % replicas.size();
+            Connection replica = replicas.get(index);
+            if (replica.socket == null && now - replica.failedAtMillis < REPLICA_RETRY_MILLIS) {
+                continue;
+            }
+            try {
+                ensureConnected(replica);
+                preferredReplica = index;
+                return replica;
+            } catch (IOException e) {
+                closeConnection(replica, replica.socket, e);
+                replica.failedAtMillis = now;
+            }
+        }
+        return primary;
+    }
+
+    // Argumenty GET_LIST i SUBSCRIBE: duże listy serwer może przysłać skompresowane
+    private static void writeReadOptions(FrameWriter arguments) {
+        arguments.writeByte(WireFormat.ACCEPTS_DEFLATED_SNAPSHOT);
+    }
 
-            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-            productList = (Map<String, Set<Product>>) in.readObject();
+    private void writeRequest(Connection connection, long requestId, byte opcode, Consumer<FrameWriter> arguments) throws IOException {
+        OutputStream out = connection.out;
+        request.reset();
+        request.beginFrame();
+        request.writeLong(requestId);
+        request.writeByte(opcode);
+        request.writeString(listId);
+        request.writeLong(revision);
+        arguments.accept(request);
+        request.endFrame();
+        request.writeTo(out);
+        out.flush();
+    }
 
+    private void ensureConnected(Connection connection) throws IOException {
+        if (connection.socket != null) {
+            return;
+        }
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(connection.address, connection.port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        newSocket.setTcpNoDelay(true);
+        connection.out = new BufferedOutputStream(newSocket.getOutputStream());
+        connection.socket = newSocket;
+        // Serwer główny mógł zostać zrestartowany, więc nowa sesja zaczyna od pełnej listy. Replika ma
+        // rewizje serwera głównego, więc połączenie z nią niczego nie unieważnia.
+        if (connection.primary) {
+            synchronized (productList) {
+                revision = -1;
+                categoryRevisions.clear();
+            }
+        }
+
+        Thread reader = new Thread(() -> readResponses(connection, newSocket), "product-list-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        // Bez replik powiadomienia przychodzą od serwera głównego, także gdy połączenie otworzyła synchronizacja
+        if (subscribed && connection.primary && replicas.isEmpty()) {
+            connection.subscribed = true;
+        }
+        if (connection.subscribed) {
+            writeRequest(connection, nextRequestId.incrementAndGet(), WireFormat.SUBSCRIBE, ProductListManager::writeReadOptions);
+        }
+    }
+
+    private void readResponses(Connection connection, Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            FrameReader response = new FrameReader();
+            while (response.readFrame(in)) {
+                long requestId = response.readLong();
+                byte status = response.readByte();
+                String error = status == WireFormat.STATUS_OK ? null : response.readString();
+                byte payloadKind = response.readByte();
+                long responseRevision = response.readLong();
+                List<Change> applied = null;
+                if (payloadKind == WireFormat.PAYLOAD_SNAPSHOT) {
+                    applySnapshot(responseRevision, response);
+                } else if (payloadKind == WireFormat.PAYLOAD_SNAPSHOT_DEFLATED) {
+                    applySnapshot(responseRevision, response.readDeflated());
+                } else {
+                    applied = applyChanges(responseRevision, response);
+                }
+                Consumer<List<Change>> changes = changeListener;
+                if (changes != null && (applied == null || !applied.isEmpty())) {
+                    changes.accept(applied);
+                }
+                Runnable listener = updateListener;
+                if (requestId == WireFormat.PUSH_REQUEST_ID && listener != null) {
+                    listener.run();
+                }
+                PendingRequest<?> pending = pendingRequests.remove(requestId);
+                if (pending != null) {
+                    pending.complete(status, error, response);
+                }
+            }
+            closeConnection(connection, socket, new EOFException("Serwer zamknął połączenie"));
+        } catch (IOException e) {
+            closeConnection(connection, socket, e);
+        }
+    }
+
+    private void applySnapshot(long snapshotRevision, FrameReader snapshot) throws IOException {
+        Map<String, Long> snapshotCategoryRevisions = new HashMap<>();
+        Map<String, Map<String, Product>> snapshotProductList = snapshot.readSnapshot(snapshotCategoryRevisions);
+        synchronized (productList) {
+            if (snapshotRevision < revision) {
+                return;
+            }
+            productList.clear();
+            productList.putAll(snapshotProductList);
+            categoryRevisions.clear();
+            categoryRevisions.putAll(snapshotCategoryRevisions);
+            revision = snapshotRevision;
+            // Migawka nie zawiera zmian, które jeszcze czekają na wysłanie, a te właśnie wysyłane
+            // zawiera tylko wtedy, gdy serwer je przyjął
+            for (ListCache.OfflineOperation queued : offlineOperations.subList(syncingOperations, offlineOperations.size())) {
+                try {
+                    for (Change change : localChanges(queued.operation)) {
+                        change.applyTo(productList);
+                    }
+                } catch (RequestRejectedException ignored) {
+                    // Serwer odrzuci ją przy synchronizacji
+                }
+            }
+            cacheDirty = true;
+        }
+    }
+
+    // Zmiana mogła już trafić do listy razem z migawką albo z wcześniejszą odpowiedzią potokową,
+    // a zmiany każdej kategorii przychodzą w kolejności rewizji. Zmiany niosą stan po operacji,
+    // więc ponowne zastosowanie tej samej rewizji jest bezpieczne (powiadomienia rozbijają
+    // zmianę nazwy na dwie zmiany o tej samej rewizji).
+    private List<Change> applyChanges(long responseRevision, FrameReader changes) throws IOException {
+        int count = changes.readCount();
+        List<Change> decoded = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            decoded.add(changes.readChange());
+        }
+        synchronized (productList) {
+            for (Change change : decoded) {
+                if (change.revision >= categoryRevisions.getOrDefault(change.category, 0L)) {
+                    change.applyTo(productList);
+                    categoryRevisions.put(change.category, change.revision);
+                }
+            }
+            if (responseRevision > revision) {
+                revision = responseRevision;
+            }
+            cacheDirty |= !decoded.isEmpty();
+        }
+        return decoded;
+    }
+
+    private synchronized void closeConnection(Connection connection, Socket socket, Exception cause) {
+        if (socket == null || connection.socket != socket) {
+            return;
+        }
+        connection.socket = null;
+        connection.out = null;
+        if (!connection.primary) {
+            connection.failedAtMillis = System.currentTimeMillis();
+        }
+        try {
             socket.close();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+        } catch (IOException ignored) {
+        }
+        // Następne żądanie otworzy nowe połączenie, oczekujące w tym połączeniu kończą się błędem
+        for (Map.Entry<Long, PendingRequest<?>> entry : pendingRequests.entrySet()) {
+            PendingRequest<?> pending = entry.getValue();
+            if (pending.connection == connection && pendingRequests.remove(entry.getKey(), pending)) {
+                pending.response.completeExceptionally(cause);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        saveCache();
+        IOException closed = new IOException("Połączenie zamknięte");
+        closeConnection(primary, primary.socket, closed);
+        for (Connection replica : replicas) {
+            closeConnection(replica, replica.socket, closed);
         }
     }
 
-    public static void saveToFile(Map<String, Set<Product>> productList, String filePath) throws IOException {
-        // Przykładowa implementacja zapisu do pliku CSV
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filePath))) {
-            for (Map.Entry<String, Set<Product>> entry : productList.entrySet()) {
-                String category = entry.getKey();
-                for (Product product : entry.getValue()) {
-                    writer.println(category + "," + product.name + "," + product.quantity + "," + product.unit);
+    // Zmiana zastosowana lokalnie tak, jak zrobiłby to serwer, i zapisana w kopii listy, zanim wywołujący
+    // dostanie potwierdzenie
+    private void queueOffline(BatchOperation operation) {
+        List<Change> changes;
+        FrameWriter encoded;
+        synchronized (productList) {
+            changes = localChanges(operation);
+            for (Change change : changes) {
+                change.applyTo(productList);
+            }
+            offlineOperations.add(new ListCache.OfflineOperation(revision, operation));
+            encoded = encodeCache();
+        }
+        writeCache(encoded);
+        Consumer<List<Change>> listener = changeListener;
+        if (listener != null && !changes.isEmpty()) {
+            listener.accept(changes);
+        }
+    }
+
+    // Zmiany, jakie wykonałby serwer; operację, którą serwer by odrzucił, odrzuca od razu
+    private List<Change> localChanges(BatchOperation operation) {
+        Map<String, Product> products = operation.category == null ? null : productList.get(operation.category);
+        switch (operation.opcode) {
+            case WireFormat.ADD_CATEGORY:
+                return products != null ? List.of() : List.of(new Change(0, Change.Type.ADD_CATEGORY, operation.category, null, null));
+            case WireFormat.ADD_PRODUCT: {
+                Product existing = products == null ? null : products.get(operation.name);
+                Product product = merge(existing, new Product(operation.name, operation.quantity, operation.unit));
+                List<Change> changes = new ArrayList<>(2);
+                if (products == null) {
+                    changes.add(new Change(0, Change.Type.ADD_CATEGORY, operation.category, null, null));
+                }
+                changes.add(new Change(0, Change.Type.PUT_PRODUCT, operation.category, operation.name, product));
+                return changes;
+            }
+            case WireFormat.EDIT_PRODUCT: {
+                if (products == null || !products.containsKey(operation.name)) {
+                    throw new RequestRejectedException("Nie znaleziono produktu " + operation.name + " w kategorii " + operation.category);
                 }
+                Product edited = new Product(operation.newName, operation.quantity, operation.unit);
+                Product product = operation.name.equals(operation.newName) ? edited : merge(products.get(operation.newName), edited);
+                return List.of(new Change(0, Change.Type.PUT_PRODUCT, operation.category, operation.name, product));
             }
+            case WireFormat.REMOVE_PRODUCT:
+                return products == null || !products.containsKey(operation.name)
+                        ? List.of()
+                        : List.of(new Change(0, Change.Type.REMOVE_PRODUCT, operation.category, operation.name, null));
+            case WireFormat.REMOVE_CATEGORY:
+                return products == null ? List.of() : List.of(new Change(0, Change.Type.REMOVE_CATEGORY, operation.category, null, null));
+            case WireFormat.CLEAR: {
+                List<Change> changes = new ArrayList<>(productList.size());
+                for (String category : productList.keySet()) {
+                    changes.add(new Change(0, Change.Type.REMOVE_CATEGORY, category, null, null));
+                }
+                return changes;
+            }
+            default:
+                throw new IllegalArgumentException("Nieznana operacja: " + operation.opcode);
+        }
+    }
+
+    private static Product merge(Product existing, Product added) {
+        if (existing == null) {
+            return added;
+        }
+        if (!existing.unit.equals(added.unit)) {
+            throw new RequestRejectedException("Produkt " + added.name + " jest już na liście w jednostce " + existing.unit);
+        }
+        return new Product(added.name, existing.quantity + added.quantity, added.unit);
+    }
+
+    private void runSync() {
+        while (true) {
+            try {
+                Thread.sleep(SYNC_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            syncOfflineOperations();
+            saveCache();
         }
     }
 
-    public static Map<String, Set<Product>> loadFromFile(String filePath) throws IOException {
-        Map<String, Set<Product>> productList = new HashMap<>();
-        // Przykładowa implementacja odczytu z pliku CSV
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 4) {
-                    String category = parts[0];
-                    String name = parts[1];
-                    double quantity = Double.parseDouble(parts[2]);
-                    String unit = parts[3];
-                    Product product = new Product(name, quantity, unit);
-                    productList.computeIfAbsent(category, k -> new HashSet<>()).add(product);
+    // Wysyła zmiany zrobione bez połączenia paczkami z rewizją, na której je oparto. Przy braku połączenia
+    // zmiany czekają do następnej próby. Jeśli połączenie zerwie się po wysłaniu paczki, którą serwer
+    // zdążył wykonać, ponowiona paczka trafi na zmienione już kategorie i zostanie odrzucona jako konflikt,
+    // więc zmiany nie wykonają się dwa razy.
+    private void syncOfflineOperations() {
+        while (true) {
+            // Wszystkie zmiany naraz, każda z własną rewizją bazową. W osobnych paczkach zmiany z wcześniejszej
+            // wyglądałyby dla następnej jak cudze, a przesunięcie rewizji bazowej ukryłoby prawdziwe konflikty.
+            List<ListCache.OfflineOperation> operations;
+            synchronized (productList) {
+                if (offlineOperations.isEmpty()) {
+                    return;
+                }
+                operations = new ArrayList<>(offlineOperations);
+                syncingOperations = operations.size();
+            }
+            try {
+                sendRequestAsync(WireFormat.SYNC, w -> {
+                    w.writeInt(operations.size());
+                    for (ListCache.OfflineOperation queued : operations) {
+                        w.writeLong(queued.baseRevision);
+                        w.writeOperation(queued.operation);
+                    }
+                }).join();
+                synchronized (productList) {
+                    offlineOperations.subList(0, operations.size()).clear();
+                    syncingOperations = 0;
+                    cacheDirty = true;
+                }
+            } catch (CompletionException e) {
+                // Bez numeru operacji serwer odrzucił całe żądanie (np. replika tylko do odczytu), więc próbujemy później
+                if (!(e.getCause() instanceof RequestRejectedException) || ((RequestRejectedException) e.getCause()).operationIndex < 0) {
+                    synchronized (productList) {
+                        syncingOperations = 0;
+                    }
+                    return;
+                }
+                RequestRejectedException rejection = (RequestRejectedException) e.getCause();
+                int rejected = rejection.operationIndex;
+                boolean empty;
+                synchronized (productList) {
+                    offlineOperations.remove(rejected);
+                    syncingOperations = 0;
+                    // Lista w pamięci zawiera jeszcze odrzuconą zmianę; następna odpowiedź przyniesie całą listę
+                    revision = -1;
+                    categoryRevisions.clear();
+                    cacheDirty = true;
+                    empty = offlineOperations.isEmpty();
+                }
+                BiConsumer<BatchOperation, RequestRejectedException> listener = offlineRejectionListener;
+                if (listener != null) {
+                    listener.accept(operations.get(rejected).operation, rejection);
+                } else {
+                    System.err.println("Serwer odrzucił zmianę zrobioną bez połączenia: " + rejection.getMessage());
+                }
+                if (empty) {
+                    refreshAsync().exceptionally(error -> null).join();
                 }
             }
         }
-        return productList;
     }
 
+    private FrameWriter encodeCache() {
+        cacheDirty = false;
+        return ListCache.encode(listId, new ListCache.State(revision, productList, categoryRevisions, offlineOperations));
+    }
+
+    private void saveCache() {
+        if (cache == null) {
+            return;
+        }
+        FrameWriter encoded;
+        synchronized (productList) {
+            if (!cacheDirty) {
+                return;
+            }
+            encoded = encodeCache();
+        }
+        writeCache(encoded);
+    }
+
+    private void writeCache(FrameWriter encoded) {
+        try {
+            cache.write(encoded);
+        } catch (IOException e) {
+            System.err.println("Nie udało się zapisać kopii listy: " + e);
+        }
+    }
+
+    // Kategorie są kodowane równolegle, ale zapisywane po kolei; w pamięci czeka najwyżej
+    // kilka zakodowanych kategorii naraz
+    public void exportToFile(String filePath) throws IOException {
+        List<String> categories;
+        synchronized (productList) {
+            categories = new ArrayList<>(productList.keySet());
+        }
+        int window = Runtime.getRuntime().availableProcessors() * 2;
+        Deque<CompletableFuture<byte[]>> encoded = new ArrayDeque<>();
+        try (OutputStream file = new BufferedOutputStream(new FileOutputStream(filePath), FILE_BUFFER_SIZE)) {
+            for (String category : categories) {
+                encoded.add(CompletableFuture.supplyAsync(() -> encodeCategory(category)));
+                if (encoded.size() >= window) {
+                    file.write(encoded.poll().join());
+                }
+            }
+            while (!encoded.isEmpty()) {
+                file.write(encoded.poll().join());
+            }
+        }
+    }
+
+    private byte[] encodeCategory(String category) {
+        List<Product> products;
+        synchronized (productList) {
+            Map<String, Product> categoryProducts = productList.get(category);
+            if (categoryProducts == null) {
+                return new byte[0];
+            }
+            products = new ArrayList<>(categoryProducts.values());
+        }
+        StringBuilder csv = new StringBuilder(products.size() * 32);
+        for (Product product : products) {
+            CsvWriter.appendProduct(csv, category, product);
+        }
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Plik jest czytany strumieniowo i wysyłany do serwera paczkami po IMPORT_CHUNK_SIZE wierszy.
+    // Na odpowiedź czeka najwyżej IMPORT_CHUNKS_IN_FLIGHT paczek, więc pamięć nie rośnie z wielkością pliku.
+    public ImportSummary importFromFile(String filePath) throws IOException {
+        Semaphore inFlight = new Semaphore(IMPORT_CHUNKS_IN_FLIGHT);
+        List<String> rejections = Collections.synchronizedList(new ArrayList<>());
+        long imported = 0;
+        long skipped = 0;
+        try (CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8))) {
+            List<String> fields = new ArrayList<>(4);
+            List<String> categories = new ArrayList<>(IMPORT_CHUNK_SIZE);
+            List<Product> products = new ArrayList<>(IMPORT_CHUNK_SIZE);
+            while (reader.readRecord(fields)) {
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    continue;
+                }
+                Product product = parseProduct(fields);
+                if (product == null) {
+                    System.err.println("Pominięto nieprawidłowy wiersz " + reader.lineNumber() + ": " + fields);
+                    skipped++;
+                    continue;
+                }
+                categories.add(fields.get(0));
+                products.add(product);
+                imported++;
+                if (products.size() == IMPORT_CHUNK_SIZE) {
+                    sendImportChunk(categories, products, inFlight, rejections);
+                    categories = new ArrayList<>(IMPORT_CHUNK_SIZE);
+                    products = new ArrayList<>(IMPORT_CHUNK_SIZE);
+                }
+            }
+            if (!products.isEmpty()) {
+                sendImportChunk(categories, products, inFlight, rejections);
+            }
+        } finally {
+            // Czekamy na odpowiedzi na wszystkie wysłane paczki
+            inFlight.acquireUninterruptibly(IMPORT_CHUNKS_IN_FLIGHT);
+        }
+        return new ImportSummary(imported, skipped, rejections);
+    }
+
+    // Kategoria, nazwa, ilość, jednostka; null dla wiersza, którego nie da się zaimportować
+    private static Product parseProduct(List<String> fields) {
+        if (fields.size() != 4 || fields.get(0).isEmpty() || fields.get(1).isEmpty()) {
+            return null;
+        }
+        try {
+            double quantity = Double.parseDouble(fields.get(2));
+            String unit = fields.get(3);
+            WireFormat.unitCode(unit);
+            return new Product(fields.get(1), quantity, unit);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void sendImportChunk(List<String> categories, List<Product> products, Semaphore inFlight, List<String> rejections) {
+        inFlight.acquireUninterruptibly();
+        importProductsAsync(categories, products).whenComplete((ok, error) -> {
+            if (error != null) {
+                rejections.add(error.getMessage());
+            }
+            inFlight.release();
+        });
+    }
+
+    CompletableFuture<Void> importProductsAsync(List<String> categories, List<Product> products) {
+        return sendRequestAsync(WireFormat.IMPORT_PRODUCTS, w -> {
+            w.writeInt(products.size());
+            for (int i = 0; i < products.size(); i++) {
+                w.writeString(categories.get(i));
+                w.writeProduct(products.get(i));
+            }
+        });
+    }
+
+    public CompletableFuture<ImportSummary> importFromFileAsync(String filePath) {
+        return inBackground("product-list-import", () -> importFromFile(filePath));
+    }
+
+    public CompletableFuture<Void> exportToFileAsync(String filePath) {
+        return inBackground("product-list-export", () -> {
+            exportToFile(filePath);
+            return null;
+        });
+    }
+
+    private static <T> CompletableFuture<T> inBackground(String threadName, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    static final class ImportSummary {
+        final long imported;
+        final long skipped;
+        // Komunikaty serwera dla paczek, w których część produktów odrzucono
+        final List<String> rejections;
+
+        ImportSummary(long imported, long skipped, List<String> rejections) {
+            this.imported = imported;
+            this.skipped = skipped;
+            this.rejections = rejections;
+        }
+    }
 }
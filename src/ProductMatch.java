@@ -0,0 +1,15 @@
+// Wynik wyszukiwania: produkt razem z kategorią, w której się znajduje
+final class ProductMatch {
+    final String category;
+    final Product product;
+
+    ProductMatch(String category, Product product) {
+        this.category = category;
+        this.product = product;
+    }
+
+    @Override
+    public String toString() {
+        return category + ": " + product;
+    }
+}
@@ -0,0 +1,1030 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+
+// Jedna lista zakupów serwera. Każda kategoria ma własną blokadę i indeks produktów po nazwie,
+// a czytelnicy dostają niezmienialną kopię kategorii odtwarzaną dopiero wtedy, gdy zapis ją unieważni.
+class ProductStore {
+    private static final int CHANGE_LOG_CAPACITY = 1000;
+    // Zapis z niższą rewizją kończy się w mikrosekundach; tyle czekania oznacza błąd, a nie kolejkę
+    private static final long STABLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int STABLE_SPINS = 100;
+
+    private final ConcurrentHashMap<String, Category> categories = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Change> changeLog = new ConcurrentSkipListMap<>();
+    private final AtomicLong lastRevision = new AtomicLong();
+    // Wszystkie zmiany do tej rewizji są już widoczne w kategoriach i w dzienniku zmian
+    private final AtomicLong stableRevision = new AtomicLong();
+    private final Set<String> availableUnits;
+    private final ServerConfig.Storage storage;
+    private volatile ChangeJournal journal;
+    // Pojedyncze zmiany biorą blokadę do odczytu i blokady swoich kategorii,
+    // paczka bierze ją na wyłączność, więc widzi i zmienia całą listę naraz
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    // Nadawanie rewizji razem z zapisem do dziennika (commit), więc rewizje trafiają do dziennika po kolei
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Stats stats;
+    // Ostatnio zakodowana cała lista, wspólna dla wszystkich czytelników
+    private volatile EncodedSnapshot encodedSnapshot;
+    private final ReentrantLock encodedSnapshotLock = new ReentrantLock();
+    // Nazwy produktów ze wszystkich kategorii, do wyszukiwania bez przeglądania listy
+    private final ProductIndex index = new ProductIndex(this::find);
+
+    // Blokady kategorii i list to ReentrantLock, nie monitory, bo biorą je też wątki wirtualne sesji
+    private final class Category {
+        final String name;
+        final ReentrantLock lock = new ReentrantLock();
+        // Chronione blokadą kategorii; zmieniane tylko przez put, remove i clear
+        final ProductTable products = storage == ServerConfig.Storage.COLUMNAR ? new ColumnarProductTable() : new HashProductTable();
+        // Bieżące sumy według jednostki, chronione blokadą kategorii
+        final Map<String, UnitTotal> totals = new HashMap<>();
+        long revision;
+        // Kopia dla czytelników, null po każdej zmianie
+        volatile Version version;
+
+        Category(String name) {
+            this.name = name;
+        }
+
+        // Razem z produktami zmieniają się sumy kategorii i indeks nazw
+        void put(Product product) {
+            Product previous = products.put(product);
+            if (previous != null) {
+                count(previous, -1);
+            }
+            count(product, 1);
+            index.add(name, product.name);
+        }
+
+        Product remove(String productName) {
+            Product removed = products.remove(productName);
+            if (removed != null) {
+                count(removed, -1);
+                index.remove(name, productName);
+            }
+            return removed;
+        }
+
+        void clear() {
+            products.forEachName(productName -> index.remove(name, productName));
+            products.clear();
+            totals.clear();
+        }
+
+        // Zmiana z nadaną już rewizją, pod blokadą kategorii albo przed jej opublikowaniem
+        void apply(Change change) {
+            switch (change.type) {
+                case PUT_PRODUCT:
+                    if (change.name != null && !change.name.equals(change.product.name)) {
+                        remove(change.name);
+                    }
+                    put(change.product);
+                    break;
+                case REMOVE_PRODUCT:
+                    remove(change.name);
+                    break;
+                default:
+                    break;
+            }
+            revision = change.revision;
+            version = null;
+        }
+
+        private void count(Product product, int sign) {
+            UnitTotal total = totals.getOrDefault(product.unit, UnitTotal.ZERO).plus(sign, sign * product.quantity);
+            if (total.count == 0) {
+                totals.remove(product.unit);
+            } else {
+                totals.put(product.unit, total);
+            }
+        }
+
+        Version version() {
+            Version current = version;
+            if (current == null) {
+                lock.lock();
+                try {
+                    current = version;
+                    if (current == null) {
+                        current = new Version(products.copy(), revision);
+                        version = current;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return current;
+        }
+    }
+
+    private static final class Version {
+        final ProductTable products;
+        final long revision;
+        // Kategoria zakodowana przez FrameWriter.writeCategory, tworzona przy pierwszym użyciu
+        private volatile byte[] encoded;
+
+        Version(ProductTable products, long revision) {
+            this.products = products;
+            this.revision = revision;
+        }
+
+        byte[] encoded(String name) {
+            byte[] current = encoded;
+            if (current == null) {
+                FrameWriter writer = new FrameWriter(64 + products.size() * 32);
+                writer.writeCategory(name, revision, products);
+                current = writer.toByteArray();
+                encoded = current;
+            }
+            return current;
+        }
+    }
+
+    // Cała lista w formacie FrameWriter.writeSnapshot, w buforze poza stertą, który gniazda wysyłają bez kopiowania
+    static final class EncodedSnapshot {
+        final long revision;
+        // Tylko do odczytu; czytelnicy dołączają go przez FrameWriter.writeShared
+        final ByteBuffer bytes;
+        // Ta sama lista po kompresji, dla klientów, którzy ją przyjmują (WireFormat.PAYLOAD_SNAPSHOT_DEFLATED);
+        // kompresowana raz, przy pierwszym takim kliencie
+        private volatile ByteBuffer deflated;
+        private final ReentrantLock deflateLock = new ReentrantLock();
+
+        EncodedSnapshot(long revision, ByteBuffer bytes) {
+            this.revision = revision;
+            this.bytes = bytes;
+        }
+
+        // [int długość przed kompresją][int długość po kompresji][bajty Deflatera]
+        ByteBuffer deflated() {
+            ByteBuffer current = deflated;
+            if (current == null) {
+                deflateLock.lock();
+                try {
+                    current = deflated;
+                    if (current == null) {
+                        current = deflate(bytes);
+                        deflated = current;
+                    }
+                } finally {
+                    deflateLock.unlock();
+                }
+            }
+            return current;
+        }
+
+        long deflatedBytes() {
+            ByteBuffer current = deflated;
+            return current == null ? 0 : current.capacity();
+        }
+
+        // Najszybszy poziom: lista to głównie powtarzające się początki nazw produktów, które kompresja
+        // słownikowa zwija już przy nim, a kompresja nie może opóźniać odpowiedzi
+        private static ByteBuffer deflate(ByteBuffer bytes) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(bytes.duplicate());
+                deflater.finish();
+                byte[] output = new byte[8 + Math.max(64, bytes.remaining() / 4)];
+                int length = 8;
+                while (!deflater.finished()) {
+                    if (length == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    length += deflater.deflate(output, length, output.length - length);
+                }
+                ByteBuffer result = ByteBuffer.allocateDirect(length);
+                result.putInt(bytes.remaining());
+                result.putInt(length - 8);
+                result.put(output, 8, length - 8);
+                return result.flip().asReadOnlyBuffer();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    static final class Snapshot {
+        final long revision;
+        final Map<String, Map<String, Product>> productList;
+        final Map<String, Long> categoryRevisions;
+
+        Snapshot(long revision, Map<String, Map<String, Product>> productList, Map<String, Long> categoryRevisions) {
+            this.revision = revision;
+            this.productList = productList;
+            this.categoryRevisions = categoryRevisions;
+        }
+    }
+
+    // Histogramy do metryk serwera, wspólne dla list jednej partycji
+    static final class Stats {
+        final LatencyHistogram categoryLockWait = new LatencyHistogram();
+        final LatencyHistogram storeLockWait = new LatencyHistogram();
+        final LatencyHistogram snapshotEncoding = new LatencyHistogram();
+    }
+
+    ProductStore(Set<String> availableUnits) {
+        this(availableUnits, new Stats(), ServerConfig.Storage.HASH);
+    }
+
+    ProductStore(Set<String> availableUnits, Stats stats, ServerConfig.Storage storage) {
+        this.availableUnits = availableUnits;
+        this.stats = stats;
+        this.storage = storage;
+    }
+
+    void setJournal(ChangeJournal journal) {
+        this.journal = journal;
+    }
+
+    int categoryCount() {
+        return categories.size();
+    }
+
+    int changeLogSize() {
+        return changeLog.size();
+    }
+
+    long encodedSnapshotBytes() {
+        EncodedSnapshot current = encodedSnapshot;
+        return current == null ? 0 : current.bytes.capacity();
+    }
+
+    long deflatedSnapshotBytes() {
+        EncodedSnapshot current = encodedSnapshot;
+        return current == null ? 0 : current.deflatedBytes();
+    }
+
+    private void lockShared() {
+        long waitStart = System.nanoTime();
+        storeLock.readLock().lock();
+        stats.storeLockWait.record(System.nanoTime() - waitStart);
+    }
+
+    private void lockExclusive() {
+        long waitStart = System.nanoTime();
+        storeLock.writeLock().lock();
+        stats.storeLockWait.record(System.nanoTime() - waitStart);
+    }
+
+    private void lockCategory(Category category) {
+        long waitStart = System.nanoTime();
+        category.lock.lock();
+        stats.categoryLockWait.record(System.nanoTime() - waitStart);
+    }
+
+    // Odtwarzanie stanu przy starcie serwera, zanim zaczną przychodzić żądania
+    void restore(Snapshot snapshot) {
+        for (Map.Entry<String, Map<String, Product>> entry : snapshot.productList.entrySet()) {
+            Category category = new Category(entry.getKey());
+            for (Product product : entry.getValue().values()) {
+                category.put(product);
+            }
+            category.revision = snapshot.categoryRevisions.getOrDefault(entry.getKey(), 0L);
+            categories.put(category.name, category);
+            advanceRestoredRevision(category.revision);
+        }
+        advanceRestoredRevision(snapshot.revision);
+    }
+
+    // Migawka mogła już zawierać nowsze zmiany kategorii niż jej rewizja, więc te pomijamy
+    void replay(Change change) {
+        if (change.type == Change.Type.REMOVE_CATEGORY) {
+            Category removed = categories.get(change.category);
+            if (removed != null && change.revision > removed.revision) {
+                categories.remove(change.category);
+                removed.clear();
+            }
+            advanceRestoredRevision(change.revision);
+            return;
+        }
+        Category category = categories.computeIfAbsent(change.category, Category::new);
+        if (change.revision <= category.revision) {
+            return;
+        }
+        category.apply(change);
+        advanceRestoredRevision(change.revision);
+    }
+
+    // Zmiany z serwera głównego z jego rewizjami, w kolejności rewizji i bez luk, więc klient może
+    // czytać z repliki i pisać do serwera głównego z tą samą rewizją. Zmiany, które migawka z resync
+    // już zawiera, nie zmieniają kategorii, ale trafiają do dziennika zmian, żeby nie zostawić luki.
+    void applyReplicated(List<Change> changes) {
+        lockShared();
+        try {
+            List<Change> applied = new ArrayList<>(changes.size());
+            for (Change change : changes) {
+                if (change.revision > stableRevision.get() && !changeLog.containsKey(change.revision)) {
+                    applied.add(change);
+                }
+            }
+            if (applied.isEmpty()) {
+                return;
+            }
+            ChangeJournal currentJournal = journal;
+            if (currentJournal != null) {
+                currentJournal.appendAll(applied);
+            }
+            for (Change change : applied) {
+                applyReplicated(change);
+                changeLog.put(change.revision, change);
+                lastRevision.accumulateAndGet(change.revision, Math::max);
+            }
+            advanceStable();
+            trimChangeLog();
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    private void applyReplicated(Change change) {
+        if (change.type == Change.Type.REMOVE_CATEGORY) {
+            Category removed = categories.get(change.category);
+            if (removed != null) {
+                removed.lock.lock();
+                try {
+                    if (change.revision > removed.revision) {
+                        categories.remove(change.category);
+                        removed.clear();
+                    }
+                } finally {
+                    removed.lock.unlock();
+                }
+            }
+            return;
+        }
+        Category category = categories.computeIfAbsent(change.category, Category::new);
+        category.lock.lock();
+        try {
+            if (change.revision > category.revision) {
+                category.apply(change);
+            }
+        } finally {
+            category.lock.unlock();
+        }
+    }
+
+    // Zastępuje całą listę migawką z serwera głównego, gdy replika łączy się od nowa albo za bardzo
+    // została w tyle. Dziennik zmian zaczyna się od nowa, więc klienci repliki dostaną całą listę.
+    // Czytelnicy bez blokady widzą kategorie podmieniane po kolei, ale nowej rewizji nie zobaczą
+    // przed ostatnią z nich, więc snapshot() nie zwróci rewizji migawki z jej częścią.
+    void resync(Snapshot snapshot) {
+        lockExclusive();
+        try {
+            encodedSnapshotLock.lock();
+            try {
+                long revision = snapshot.revision;
+                for (Map.Entry<String, Map<String, Product>> entry : snapshot.productList.entrySet()) {
+                    Category fresh = new Category(entry.getKey());
+                    for (Product product : entry.getValue().values()) {
+                        fresh.put(product);
+                    }
+                    fresh.revision = snapshot.categoryRevisions.getOrDefault(entry.getKey(), 0L);
+                    revision = Math.max(revision, fresh.revision);
+                    Category previous = categories.put(fresh.name, fresh);
+                    if (previous != null) {
+                        previous.products.forEachName(name -> {
+                            if (fresh.products.get(name) == null) {
+                                index.remove(fresh.name, name);
+                            }
+                        });
+                    }
+                }
+                for (Iterator<Category> it = categories.values().iterator(); it.hasNext(); ) {
+                    Category category = it.next();
+                    if (!snapshot.productList.containsKey(category.name)) {
+                        it.remove();
+                        category.products.forEachName(name -> index.remove(category.name, name));
+                    }
+                }
+                changeLog.clear();
+                lastRevision.set(revision);
+                // Kategorie mogą mieć nowsze zmiany niż rewizja migawki; pozostałe zmiany do nich dopiero przyjdą
+                stableRevision.set(snapshot.revision);
+                encodedSnapshot = null;
+            } finally {
+                encodedSnapshotLock.unlock();
+            }
+            ChangeJournal currentJournal = journal;
+            if (currentJournal != null) {
+                currentJournal.checkpoint();
+            }
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    // Po awansie repliki brakujące zmiany już nie przyjdą, a nowe zapisy muszą móc stać się stabilne.
+    // Klienci, którym brakuje zmian z luki, dostaną całą listę.
+    void finishReplication() {
+        lockExclusive();
+        try {
+            stableRevision.accumulateAndGet(lastRevision.get(), Math::max);
+            trimChangeLog();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private void advanceRestoredRevision(long revision) {
+        if (revision > lastRevision.get()) {
+            lastRevision.set(revision);
+            stableRevision.set(revision);
+        }
+    }
+
+    long addCategory(String name) {
+        lockShared();
+        try {
+            List<Change> committed = createCategory(name, List.of(new Change(0, Change.Type.ADD_CATEGORY, name, null, null)));
+            return committed == null ? 0 : publish(committed);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Zapisuje ADD_CATEGORY razem ze zmianami nowej kategorii i dopiero potem ją publikuje. Zwraca null,
+    // gdy kategoria już jest; tworzący kategorie czekają na siebie na commitLock, więc nie zapiszą jej dwa razy.
+    private List<Change> createCategory(String name, List<Change> changes) {
+        commitLock.lock();
+        try {
+            if (categories.containsKey(name)) {
+                return null;
+            }
+            List<Change> committed = commit(changes);
+            Category created = new Category(name);
+            for (Change change : committed) {
+                created.apply(change);
+            }
+            categories.put(name, created);
+            return committed;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    long removeProduct(String categoryName, String name) {
+        lockShared();
+        try {
+            Category category = categories.get(categoryName);
+            if (category == null) {
+                return 0;
+            }
+            List<Change> committed;
+            lockCategory(category);
+            try {
+                if (category.products.get(name) == null) {
+                    return 0;
+                }
+                committed = commit(List.of(new Change(0, Change.Type.REMOVE_PRODUCT, categoryName, name, null)));
+                category.apply(committed.get(0));
+            } finally {
+                category.lock.unlock();
+            }
+            return publish(committed);
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    long addProduct(String categoryName, String name, double quantity, String unit) {
+        return addProducts(categoryName, List.of(new Product(name, quantity, unit)), new ArrayList<>());
+    }
+
+    // Import: jedna blokada kategorii i jeden zapis do dziennika na całą paczkę produktów. Zwraca liczbę odrzuconych.
+    int addProducts(String categoryName, List<Product> added) {
+        List<Product> rejected = new ArrayList<>();
+        addProducts(categoryName, added, rejected);
+        return rejected.size();
+    }
+
+    // Zwraca rewizję ostatniej zmiany albo 0, gdy żaden produkt nie został dodany; kategoria powstaje
+    // tylko razem z dodanym produktem
+    private long addProducts(String categoryName, List<Product> added, List<Product> rejected) {
+        lockShared();
+        try {
+            while (true) {
+                Category category = categories.get(categoryName);
+                if (category == null) {
+                    List<Change> changes = new ArrayList<>();
+                    changes.add(new Change(0, Change.Type.ADD_CATEGORY, categoryName, null, null));
+                    List<Product> rejectedInNew = new ArrayList<>();
+                    stageProducts(null, categoryName, added, changes, rejectedInNew);
+                    if (changes.size() == 1) {
+                        rejected.addAll(rejectedInNew);
+                        return 0;
+                    }
+                    List<Change> committed = createCategory(categoryName, changes);
+                    if (committed == null) {
+                        // Ktoś utworzył kategorię w międzyczasie, więc produkty trzeba połączyć z jej zawartością
+                        continue;
+                    }
+                    rejected.addAll(rejectedInNew);
+                    return publish(committed);
+                }
+                List<Change> committed;
+                lockCategory(category);
+                try {
+                    List<Change> changes = new ArrayList<>();
+                    stageProducts(category, categoryName, added, changes, rejected);
+                    if (changes.isEmpty()) {
+                        return 0;
+                    }
+                    committed = commit(changes);
+                    for (Change change : committed) {
+                        category.apply(change);
+                    }
+                } finally {
+                    category.lock.unlock();
+                }
+                return publish(committed);
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    // Zmiany PUT_PRODUCT dla produktów w znanych jednostkach, które da się połączyć z kategorią (null dla nowej)
+    // i z wcześniejszymi produktami paczki; pozostałe trafiają do rejected
+    private void stageProducts(Category category, String categoryName, List<Product> added, List<Change> changes, List<Product> rejected) {
+        Map<String, Product> staged = new HashMap<>();
+        for (Product product : added) {
+            if (!availableUnits.contains(product.unit)) {
+                System.err.println("Nieprawidłowa jednostka miary: " + product.unit);
+                rejected.add(product);
+                continue;
+            }
+            Product existing = staged.containsKey(product.name) ? staged.get(product.name)
+                    : category == null ? null : category.products.get(product.name);
+            Product merged = merge(existing, product);
+            if (merged == null) {
+                rejected.add(product);
+                continue;
+            }
+            staged.put(merged.name, merged);
+            changes.add(new Change(0, Change.Type.PUT_PRODUCT, categoryName, merged.name, merged));
+        }
+    }
+
+    long editProduct(String categoryName, String oldName, String newName, double newQuantity, String newUnit) {
+        if (!availableUnits.contains(newUnit)) {
+            System.err.println("Nieprawidłowa jednostka miary: " + newUnit);
+            return 0;
+        }
+
+        lockShared();
+        try {
+            Category category = categories.get(categoryName);
+            if (category != null) {
+                List<Change> committed = null;
+                lockCategory(category);
+                try {
+                    if (category.products.get(oldName) != null) {
+                        Product edited = new Product(newName, newQuantity, newUnit);
+                        // Zmiana nazwy na już istniejącą łączy oba produkty
+                        Product product = oldName.equals(newName) ? edited : merge(category.products.get(newName), edited);
+                        if (product == null) {
+                            return 0;
+                        }
+                        committed = commit(List.of(new Change(0, Change.Type.PUT_PRODUCT, categoryName, oldName, product)));
+                        category.apply(committed.get(0));
+                    }
+                } finally {
+                    category.lock.unlock();
+                }
+                if (committed != null) {
+                    return publish(committed);
+                }
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        System.err.println("Nie znaleziono produktu: " + oldName + " w kategorii " + categoryName);
+        return 0;
+    }
+
+    // Zmiany paczki w jednej kategorii, zanim trafią do listy. Przechowuje tylko zmienione produkty,
+    // więc sprawdzenie paczki nie kopiuje dużych kategorii.
+    private static final class StagedCategory {
+        // Kategoria z listy sprzed paczki albo null
+        final Category base;
+        boolean exists;
+        // Kategoria została w paczce usunięta, więc produkty z base już nie obowiązują
+        boolean cleared;
+        // Nowy stan zmienionych produktów, null dla usuniętych
+        final Map<String, Product> changed = new HashMap<>();
+
+        StagedCategory(Category base) {
+            this.base = base;
+            this.exists = base != null;
+        }
+
+        Product get(String name) {
+            if (changed.containsKey(name)) {
+                return changed.get(name);
+            }
+            return cleared || base == null ? null : base.products.get(name);
+        }
+    }
+
+    // Wykonuje wszystkie operacje albo żadnej. Operacje są najpierw sprawdzane na zmianach odłożonych
+    // obok listy, a dopiero potem trafiają do listy i jednym rekordem do dziennika.
+    // Zwraca rewizję ostatniej zmiany albo 0, gdy paczka niczego nie zmieniła.
+    long applyBatch(List<BatchOperation> operations) {
+        lockExclusive();
+        try {
+            Map<String, StagedCategory> staged = new HashMap<>();
+            List<Change> changes = new ArrayList<>();
+            for (int i = 0; i < operations.size(); i++) {
+                String error = stage(operations.get(i), staged, changes);
+                if (error != null) {
+                    throw new OperationRejectedException(i, false, "Operacja " + (i + 1) + " z " + operations.size() + ": " + error);
+                }
+            }
+            if (changes.isEmpty()) {
+                return 0;
+            }
+
+            List<Change> committed = commit(changes);
+            Map<String, Long> categoryRevisions = new HashMap<>();
+            for (Change change : committed) {
+                categoryRevisions.put(change.category, change.revision);
+            }
+            for (Map.Entry<String, Long> entry : categoryRevisions.entrySet()) {
+                StagedCategory stagedCategory = staged.get(entry.getKey());
+                if (!stagedCategory.exists) {
+                    Category removed = categories.remove(entry.getKey());
+                    if (removed != null) {
+                        removed.lock.lock();
+                        try {
+                            removed.clear();
+                        } finally {
+                            removed.lock.unlock();
+                        }
+                    }
+                    continue;
+                }
+                Category category = categories.computeIfAbsent(entry.getKey(), Category::new);
+                category.lock.lock();
+                try {
+                    if (stagedCategory.cleared) {
+                        category.clear();
+                    }
+                    for (Map.Entry<String, Product> product : stagedCategory.changed.entrySet()) {
+                        if (product.getValue() == null) {
+                            category.remove(product.getKey());
+                        } else {
+                            category.put(product.getValue());
+                        }
+                    }
+                    category.revision = entry.getValue();
+                    category.version = null;
+                } finally {
+                    category.lock.unlock();
+                }
+            }
+            return publish(committed);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    // Jak applyBatch, ale najpierw sprawdza, czy nikt inny nie zmienił kategorii operacji po jej rewizji bazowej,
+    // na której klient oparł zmianę zrobioną bez połączenia. Wcześniejsze operacje tej samej paczki nie są
+    // konfliktem, bo sprawdzany jest stan sprzed paczki. Usunięcia kategorii starsze niż dziennik zmian
+    // nie są już widoczne, więc operacja na takiej kategorii utworzy ją od nowa. Operacja klienta, który nie
+    // znał jeszcze żadnej rewizji (-1), nie ma czego sprawdzać.
+    long applyOfflineBatch(List<BatchOperation> operations, long[] baseRevisions) {
+        lockExclusive();
+        try {
+            long oldestBase = Long.MAX_VALUE;
+            for (long baseRevision : baseRevisions) {
+                if (baseRevision >= 0) {
+                    oldestBase = Math.min(oldestBase, baseRevision);
+                }
+            }
+            // Ostatnia zmiana każdej kategorii zmienionej po najstarszej rewizji bazowej
+            Map<String, Long> changed = new HashMap<>();
+            if (oldestBase != Long.MAX_VALUE) {
+                for (Category category : categories.values()) {
+                    if (category.revision > oldestBase) {
+                        changed.put(category.name, category.revision);
+                    }
+                }
+                for (Change change : changeLog.tailMap(oldestBase, false).values()) {
+                    if (change.type == Change.Type.REMOVE_CATEGORY) {
+                        changed.merge(change.category, change.revision, Math::max);
+                    }
+                }
+            }
+            for (int i = 0; i < operations.size(); i++) {
+                BatchOperation operation = operations.get(i);
+                long baseRevision = baseRevisions[i];
+                if (baseRevision < 0 || operation.opcode == WireFormat.ADD_CATEGORY) {
+                    continue;
+                }
+                String category = null;
+                if (operation.opcode == WireFormat.CLEAR) {
+                    for (Map.Entry<String, Long> entry : changed.entrySet()) {
+                        if (entry.getValue() > baseRevision) {
+                            category = entry.getKey();
+                            break;
+                        }
+                    }
+                } else if (changed.getOrDefault(operation.category, -1L) > baseRevision) {
+                    category = operation.category;
+                }
+                if (category != null) {
+                    throw new OperationRejectedException(i, true, "Operacja " + (i + 1) + " z " + operations.size()
+                            + ": kategorię " + category + " zmieniono w międzyczasie na serwerze");
+                }
+            }
+            // Blokada zapisu jest wielokrotna, więc paczka wykona się bez wpuszczania innych zmian
+            return applyBatch(operations);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    // Zwraca opis błędu, gdy operacji nie da się wykonać
+    private String stage(BatchOperation operation, Map<String, StagedCategory> staged, List<Change> changes) {
+        switch (operation.opcode) {
+            case WireFormat.ADD_CATEGORY:
+                createStagedCategory(stagedCategory(operation.category, staged), operation.category, changes);
+                return null;
+            case WireFormat.ADD_PRODUCT: {
+                if (!availableUnits.contains(operation.unit)) {
+                    return "nieprawidłowa jednostka miary " + operation.unit;
+                }
+                StagedCategory category = stagedCategory(operation.category, staged);
+                createStagedCategory(category, operation.category, changes);
+                Product product = merge(category.get(operation.name), new Product(operation.name, operation.quantity, operation.unit));
+                if (product == null) {
+                    return "produkt " + operation.name + " jest już na liście w innej jednostce";
+                }
+                category.changed.put(product.name, product);
+                changes.add(new Change(0, Change.Type.PUT_PRODUCT, operation.category, operation.name, product));
+                return null;
+            }
+            case WireFormat.EDIT_PRODUCT: {
+                if (!availableUnits.contains(operation.unit)) {
+                    return "nieprawidłowa jednostka miary " + operation.unit;
+                }
+                StagedCategory category = stagedCategory(operation.category, staged);
+                if (!category.exists || category.get(operation.name) == null) {
+                    return "nie znaleziono produktu " + operation.name + " w kategorii " + operation.category;
+                }
+                Product edited = new Product(operation.newName, operation.quantity, operation.unit);
+                Product product = operation.name.equals(operation.newName) ? edited : merge(category.get(operation.newName), edited);
+                if (product == null) {
+                    return "produkt " + operation.newName + " jest już na liście w innej jednostce";
+                }
+                category.changed.put(operation.name, null);
+                category.changed.put(product.name, product);
+                changes.add(new Change(0, Change.Type.PUT_PRODUCT, operation.category, operation.name, product));
+                return null;
+            }
+            case WireFormat.REMOVE_PRODUCT: {
+                StagedCategory category = stagedCategory(operation.category, staged);
+                if (category.exists && category.get(operation.name) != null) {
+                    category.changed.put(operation.name, null);
+                    changes.add(new Change(0, Change.Type.REMOVE_PRODUCT, operation.category, operation.name, null));
+                }
+                return null;
+            }
+            case WireFormat.REMOVE_CATEGORY:
+                removeStagedCategory(operation.category, staged, changes);
+                return null;
+            case WireFormat.CLEAR: {
+                Set<String> names = new HashSet<>(categories.keySet());
+                names.addAll(staged.keySet());
+                for (String name : names) {
+                    removeStagedCategory(name, staged, changes);
+                }
+                return null;
+            }
+            default:
+                return "nieznana operacja " + operation.opcode;
+        }
+    }
+
+    private StagedCategory stagedCategory(String name, Map<String, StagedCategory> staged) {
+        return staged.computeIfAbsent(name, key -> new StagedCategory(categories.get(key)));
+    }
+
+    private static void createStagedCategory(StagedCategory category, String name, List<Change> changes) {
+        if (!category.exists) {
+            category.exists = true;
+            changes.add(new Change(0, Change.Type.ADD_CATEGORY, name, null, null));
+        }
+    }
+
+    private void removeStagedCategory(String name, Map<String, StagedCategory> staged, List<Change> changes) {
+        StagedCategory category = stagedCategory(name, staged);
+        if (category.exists) {
+            category.exists = false;
+            category.cleared = true;
+            category.changed.clear();
+            changes.add(new Change(0, Change.Type.REMOVE_CATEGORY, name, null, null));
+        }
+    }
+
+    // Produkty o tej samej nazwie i jednostce sumują ilości, przy różnych jednostkach zwraca null
+    private static Product merge(Product existing, Product added) {
+        if (existing == null) {
+            return added;
+        }
+        if (!existing.unit.equals(added.unit)) {
+            System.err.println("Produkt " + added.name + " jest już na liście w jednostce " + existing.unit);
+            return null;
+        }
+        return new Product(added.name, existing.quantity + added.quantity, added.unit);
+    }
+
+    long revision() {
+        return stableRevision.get();
+    }
+
+    // Spójny obraz całej listy: zawiera co najmniej wszystkie zmiany do zwróconej rewizji,
+    // a rewizje kategorii pozwalają klientowi pominąć nowsze zmiany, które już się w nim znalazły
+    Snapshot snapshot() {
+        long revision = stableRevision.get();
+        Map<String, Map<String, Product>> productList = new HashMap<>();
+        Map<String, Long> categoryRevisions = new HashMap<>();
+        for (Category category : categories.values()) {
+            Version version = category.version();
+            productList.put(category.name, version.products.toMap());
+            categoryRevisions.put(category.name, version.revision);
+        }
+        return new Snapshot(revision, productList, categoryRevisions);
+    }
+
+    // Ta sama zakodowana lista dla wszystkich czytelników, dopóki nic się nie zmieni. Po zmianie kodowane są
+    // od nowa tylko kategorie, których kopię zapis unieważnił, a pozostałe są przepisywane z gotowych bajtów.
+    // Zawiera co najmniej wszystkie zmiany do swojej rewizji, tak jak snapshot().
+    EncodedSnapshot encodedSnapshot() {
+        EncodedSnapshot current = encodedSnapshot;
+        if (current != null && current.revision >= stableRevision.get()) {
+            return current;
+        }
+        encodedSnapshotLock.lock();
+        try {
+            long revision = stableRevision.get();
+            current = encodedSnapshot;
+            if (current != null && current.revision >= revision) {
+                return current;
+            }
+            long start = System.nanoTime();
+            List<byte[]> encodedCategories = new ArrayList<>(categories.size());
+            long length = 4;
+            for (Category category : categories.values()) {
+                byte[] encoded = category.version().encoded(category.name);
+                encodedCategories.add(encoded);
+                length += encoded.length;
+            }
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Lista jest zbyt duża, żeby wysłać ją w jednej ramce");
+            }
+            ByteBuffer bytes = ByteBuffer.allocateDirect((int) length);
+            bytes.putInt(encodedCategories.size());
+            for (byte[] encoded : encodedCategories) {
+                bytes.put(encoded);
+            }
+            current = new EncodedSnapshot(revision, bytes.flip().asReadOnlyBuffer());
+            encodedSnapshot = current;
+            stats.snapshotEncoding.record(System.nanoTime() - start);
+            return current;
+        } finally {
+            encodedSnapshotLock.unlock();
+        }
+    }
+
+    // Dla indeksu wyszukiwania, który nie trzyma produktów
+    private Product find(String categoryName, String name) {
+        Category category = categories.get(categoryName);
+        if (category == null) {
+            return null;
+        }
+        category.lock.lock();
+        try {
+            return category.products.get(name);
+        } finally {
+            category.lock.unlock();
+        }
+    }
+
+    List<ProductMatch> searchByPrefix(String prefix, int limit) {
+        return index.searchByPrefix(prefix, limit);
+    }
+
+    List<ProductMatch> searchBySubstring(String fragment, int limit) {
+        return index.searchBySubstring(fragment, limit);
+    }
+
+    // Sumy według kategorii i jednostki, złożone z sum prowadzonych przez kategorie przy każdej zmianie
+    Map<String, Map<String, UnitTotal>> totals() {
+        Map<String, Map<String, UnitTotal>> totals = new TreeMap<>();
+        for (Category category : categories.values()) {
+            category.lock.lock();
+            try {
+                totals.put(category.name, new TreeMap<>(category.totals));
+            } finally {
+                category.lock.unlock();
+            }
+        }
+        return totals;
+    }
+
+    // Zwraca null, gdy zmian od podanej rewizji nie ma już w dzienniku i trzeba wysłać całą listę
+    List<Change> changesSince(long knownRevision, long upToRevision) {
+        if (knownRevision < 0 || knownRevision > upToRevision) {
+            return null;
+        }
+        if (knownRevision == upToRevision) {
+            return List.of();
+        }
+        List<Change> changes = new ArrayList<>(changeLog.subMap(knownRevision, false, upToRevision, true).values());
+        // Brakujące wpisy oznaczają, że dziennik został w międzyczasie przycięty
+        return changes.size() == upToRevision - knownRevision ? changes : null;
+    }
+
+    // Nadaje zmianom kolejne rewizje i zapisuje je w dzienniku, zanim ktokolwiek je zobaczy. Gdy zapis na dysk
+    // się nie uda, wyjątek przechodzi dalej bez zmiany lastRevision, więc nie ma luki w rewizjach, a wywołujący
+    // niczego jeszcze nie zmienił. Zmiany trzeba potem wprowadzić do kategorii i opublikować (publish).
+    private List<Change> commit(List<Change> changes) {
+        commitLock.lock();
+        try {
+            long revision = lastRevision.get();
+            List<Change> committed = new ArrayList<>(changes.size());
+            for (Change change : changes) {
+                committed.add(new Change(++revision, change.type, change.category, change.name, change.product));
+            }
+            ChangeJournal currentJournal = journal;
+            if (currentJournal != null) {
+                if (committed.size() == 1) {
+                    currentJournal.append(committed.get(0));
+                } else {
+                    currentJournal.appendAll(committed);
+                }
+            }
+            lastRevision.set(revision);
+            return committed;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // Zmiany są już w kategoriach; od teraz widzą je czytelnicy i subskrybenci. Zwraca rewizję ostatniej.
+    private long publish(List<Change> committed) {
+        for (Change change : committed) {
+            changeLog.put(change.revision, change);
+        }
+        advanceStable();
+        trimChangeLog();
+        long revision = committed.get(committed.size() - 1).revision;
+        awaitStable(revision);
+        return revision;
+    }
+
+    private void advanceStable() {
+        long stable;
+        while (changeLog.containsKey((stable = stableRevision.get()) + 1)) {
+            stableRevision.compareAndSet(stable, stable + 1);
+        }
+    }
+
+    void awaitStable(long revision) {
+        // Zapis z niższą rewizją w innej kategorii kończy się zwykle w ciągu mikrosekund
+        long deadline = 0;
+        for (int spins = 0; stableRevision.get() < revision; spins++) {
+            advanceStable();
+            if (spins < STABLE_SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + STABLE_TIMEOUT_NANOS;
+            } else if (now - deadline > 0) {
+                throw new IllegalStateException("Rewizja " + revision + " nie została zatwierdzona w ciągu "
+                        + TimeUnit.NANOSECONDS.toSeconds(STABLE_TIMEOUT_NANOS) + " s");
+            }
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    private void trimChangeLog() {
+        long oldestNeeded = stableRevision.get() - CHANGE_LOG_CAPACITY;
+        Map.Entry<Long, Change> oldest;
+        while ((oldest = changeLog.firstEntry()) != null && oldest.getKey() <= oldestNeeded) {
+            changeLog.remove(oldest.getKey());
+        }
+    }
+}
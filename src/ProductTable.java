@@ -0,0 +1,27 @@
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Produkty jednej kategorii listy serwera według nazwy. ProductStore zmienia tabelę pod blokadą kategorii,
+// a czytelnikom daje kopię z copy(), której późniejsze zmiany już nie dotyczą.
+interface ProductTable {
+    int size();
+
+    // null, gdy produktu nie ma
+    Product get(String name);
+
+    // Zwraca produkt, który miał tę nazwę, albo null
+    Product put(Product product);
+
+    Product remove(String name);
+
+    void clear();
+
+    void forEachName(Consumer<String> action);
+
+    ProductTable copy();
+
+    // Produkty w formacie FrameWriter.writeProduct, bez liczby produktów
+    void writeProducts(FrameWriter writer);
+
+    Map<String, Product> toMap();
+}
@@ -0,0 +1,147 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+// Replika jednej partycji: łączy się z serwerem głównym, prosi o strumień zmian partycji (REPLICATE)
+// i stosuje go do swoich list. Po zerwaniu połączenia łączy się ponownie i dostaje wszystkie listy od nowa.
+final class ReplicationFollower {
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final ListPartition partition;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final int partitionCount;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private Thread thread;
+    // Czas wysłania ostatniej ramki odebranej od serwera głównego, według jego zegara; 0 przed pierwszą
+    private volatile long lastFrameSentMillis;
+    private volatile boolean connected;
+
+    ReplicationFollower(ListPartition partition, String primaryHost, int primaryPort, int partitionCount) {
+        this.partition = partition;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.partitionCount = partitionCount;
+    }
+
+    void start() {
+        thread = new Thread(this::run, "replication-follower-" + partition.index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Opóźnienie repliki względem serwera głównego; przy działającym połączeniu nie przekracza
+    // znacznie odstępu między potwierdzeniami. Zegary obu serwerów muszą być zgodne.
+    long lagMillis() {
+        long sent = lastFrameSentMillis;
+        return !running || sent == 0 ? -1 : Math.max(0, System.currentTimeMillis() - sent);
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    // Po awansie repliki zmiany z dawnego serwera głównego nie mogą już nadpisać nowych zapisów,
+    // więc czekamy, aż wątek skończy stosować ostatnią ramkę (albo przeczeka przerwę przed ponownym połączeniem)
+    void stop() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        boolean reported = false;
+        while (running) {
+            try (Socket connection = new Socket(primaryHost, primaryPort)) {
+                socket = connection;
+                if (!running) {
+                    return;
+                }
+                connection.setTcpNoDelay(true);
+                follow(connection);
+                reported = false;
+            } catch (IOException e) {
+                if (running && !reported) {
+                    System.err.println("Replikacja partycji " + partition.index + " z " + primaryHost + ":" + primaryPort + " przerwana: " + e);
+                    reported = true;
+                }
+            } finally {
+                connected = false;
+                socket = null;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket connection) throws IOException {
+        OutputStream out = new BufferedOutputStream(connection.getOutputStream());
+        FrameWriter request = new FrameWriter();
+        request.beginFrame();
+        request.writeLong(1);
+        request.writeByte(WireFormat.REPLICATE);
+        request.writeString(WireFormat.DEFAULT_LIST_ID);
+        request.writeLong(-1);
+        request.writeInt(partitionCount);
+        request.writeInt(partition.index);
+        request.endFrame();
+        request.writeTo(out);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+        FrameReader frame = new FrameReader();
+        if (!frame.readFrame(in)) {
+            throw new EOFException("Serwer główny zamknął połączenie");
+        }
+        frame.readLong();
+        if (frame.readByte() != WireFormat.STATUS_OK) {
+            throw new IOException("Serwer główny odrzucił replikację: " + frame.readString());
+        }
+        connected = true;
+        System.out.println("Partycja " + partition.index + ": replikacja z " + primaryHost + ":" + primaryPort);
+
+        while (running && frame.readFrame(in)) {
+            byte kind = frame.readByte();
+            long sentMillis = frame.readLong();
+            switch (kind) {
+                case WireFormat.REPLICA_SNAPSHOT: {
+                    ProductStore list = partition.list(frame.readString());
+                    long revision = frame.readLong();
+                    Map<String, Long> categoryRevisions = new HashMap<>();
+                    Map<String, Map<String, Product>> productList = frame.readSnapshot(categoryRevisions);
+                    list.resync(new ProductStore.Snapshot(revision, productList, categoryRevisions));
+                    break;
+                }
+                case WireFormat.REPLICA_CHANGES: {
+                    ProductStore list = partition.list(frame.readString());
+                    int count = frame.readCount();
+                    List<Change> changes = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        changes.add(frame.readChange());
+                    }
+                    list.applyReplicated(changes);
+                    break;
+                }
+                case WireFormat.REPLICA_HEARTBEAT:
+                    break;
+                default:
+                    throw new IOException("Nieznana ramka replikacji: " + kind);
+            }
+            lastFrameSentMillis = sentMillis;
+        }
+    }
+}
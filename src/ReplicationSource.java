@@ -0,0 +1,127 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Strumień zmian list jednej partycji do replik. Co TICK_MILLIS wysyła każdej replice zmiany każdej listy
+// od rewizji, którą już jej wysłał; listę, której jeszcze nie ma albo której zmiany wypadły z dziennika
+// zmian, wysyła w całości. Replika, która nie odbiera danych, czeka z kolejnymi zmianami tak jak
+// wolny subskrybent w ChangePublisher i w razie potrzeby dostanie potem całe listy.
+final class ReplicationSource {
+    private static final long TICK_MILLIS = 20;
+    // Bez zmian replika dostaje co tyle potwierdzenie, z którego liczy swoje opóźnienie
+    private static final long HEARTBEAT_MILLIS = 100;
+    private static final long MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    private final ListPartition partition;
+    private final Queue<Follower> newFollowers = new ConcurrentLinkedQueue<>();
+    // Używane tylko przez wątek replikacji
+    private final List<Follower> followers = new ArrayList<>();
+    private final FrameWriter frame = new FrameWriter();
+    private volatile int followerCount;
+    private final LongAdder snapshotsSent = new LongAdder();
+    private final LongAdder changesSent = new LongAdder();
+
+    private static final class Follower {
+        final SessionOutput output;
+        // Rewizja każdej listy, do której replika dostała już zmiany
+        final Map<ProductStore, Long> sentRevisions = new HashMap<>();
+        long lastSentMillis;
+
+        Follower(SessionOutput output) {
+            this.output = output;
+        }
+    }
+
+    ReplicationSource(ListPartition partition) {
+        this.partition = partition;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::run, "replication-source-" + partition.index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void registerMetrics(ServerMetrics metrics, String prefix) {
+        metrics.gauge(prefix + "replication.followers", () -> followerCount);
+        metrics.gauge(prefix + "replication.snapshots_sent", snapshotsSent::sum);
+        metrics.gauge(prefix + "replication.changes_sent", changesSent::sum);
+    }
+
+    void add(SessionOutput output) {
+        newFollowers.add(new Follower(output));
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Follower added;
+            while ((added = newFollowers.poll()) != null) {
+                followers.add(added);
+            }
+            for (Iterator<Follower> it = followers.iterator(); it.hasNext(); ) {
+                Follower follower = it.next();
+                if (!follower.output.isOpen()) {
+                    it.remove();
+                } else if (follower.output.pendingBytes() <= MAX_BUFFERED_BYTES) {
+                    send(follower);
+                }
+            }
+            followerCount = followers.size();
+        }
+    }
+
+    private void send(Follower follower) {
+        long now = System.currentTimeMillis();
+        boolean sent = false;
+        for (Map.Entry<String, ProductStore> list : partition.lists().entrySet()) {
+            ProductStore store = list.getValue();
+            long revision = store.revision();
+            Long sentRevision = follower.sentRevisions.get(store);
+            if (sentRevision != null && sentRevision >= revision) {
+                continue;
+            }
+            List<Change> changes = sentRevision == null ? null : store.changesSince(sentRevision, revision);
+            if (changes == null) {
+                ProductStore.EncodedSnapshot snapshot = store.encodedSnapshot();
+                beginFrame(WireFormat.REPLICA_SNAPSHOT, now);
+                frame.writeString(list.getKey());
+                frame.writeLong(snapshot.revision);
+                frame.writeShared(snapshot.bytes);
+                revision = snapshot.revision;
+                snapshotsSent.increment();
+            } else {
+                beginFrame(WireFormat.REPLICA_CHANGES, now);
+                frame.writeString(list.getKey());
+                frame.writeInt(changes.size());
+                for (Change change : changes) {
+                    frame.writeChange(change);
+                }
+                changesSent.add(changes.size());
+            }
+            frame.endFrame();
+            follower.output.send(frame.detachedSegments());
+            follower.sentRevisions.put(store, revision);
+            sent = true;
+        }
+        if (sent || now - follower.lastSentMillis >= HEARTBEAT_MILLIS) {
+            if (!sent) {
+                beginFrame(WireFormat.REPLICA_HEARTBEAT, now);
+                frame.endFrame();
+                follower.output.send(frame.detachedSegments());
+            }
+            follower.lastSentMillis = now;
+        }
+    }
+
+    private void beginFrame(byte kind, long sentMillis) {
+        frame.reset();
+        frame.beginFrame();
+        frame.writeByte(kind);
+        frame.writeLong(sentMillis);
+    }
+}
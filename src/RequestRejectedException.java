@@ -0,0 +1,17 @@
+// Serwer odebrał żądanie, ale go nie wykonał (np. niezgodna jednostka albo brak produktu)
+class RequestRejectedException extends RuntimeException {
+    // Numer odrzuconej operacji paczki (BATCH, SYNC) liczony od 0; -1 dla innych żądań
+    final int operationIndex;
+    // Serwer odrzucił zmiany zrobione bez połączenia, bo ktoś inny zmienił w międzyczasie ich kategorię
+    final boolean conflict;
+
+    RequestRejectedException(String message) {
+        this(message, -1, false);
+    }
+
+    RequestRejectedException(String message, int operationIndex, boolean conflict) {
+        super(message);
+        this.operationIndex = operationIndex;
+        this.conflict = conflict;
+    }
+}
@@ -1,103 +1,384 @@
+import javax.management.JMException;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetAddress;
 import java.util.*;
-import java.net.ServerSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 class Server {
-    private static final int SERVER_PORT = 8000;
-    private static final int THREAD_POOL_SIZE = 5;
-    private static final Map<String, Set<Product>> sharedProductList = new HashMap<>();
-    private static final Set<String> availableUnits = new HashSet<>(Arrays.asList("sztuki", "kg", "m", "l"));
+    // Bez wywołania main (np. w testach wydajności) jedna partycja w pamięci
+    private static ListPartition[] partitions = {new ListPartition(0, WireFormat.availableUnits(), ServerConfig.Storage.HASH)};
+    static final ServerMetrics metrics = new ServerMetrics();
+    // Replika odrzuca zmiany od klientów, dopóki administrator nie awansuje jej na serwer główny (promote)
+    private static volatile boolean readOnly;
+    static AdmissionControl admission = new AdmissionControl(new ServerConfig());
+    // Dłużej żądanie nie czeka na partycję; 0 wyłącza limit
+    private static long queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(new ServerConfig().queueTimeoutMillis);
+    // Strumień zmian zawiera wszystkie listy partycji, więc dostają go tylko skonfigurowane repliki
+    private static Set<InetAddress> replicationAllow = Set.of();
 
     public static void main(String[] args) {
-        ExecutorService executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-
-        try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT)) {
-            System.out.println("Serwer uruchomiony na porcie " + SERVER_PORT);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                executor.execute(() -> handleClientRequest(clientSocket));
-            }
+        ServerConfig config = ServerConfig.fromArgs(args);
+        ServerEngine engine = config.engine == ServerConfig.Engine.VIRTUAL
+                ? new VirtualThreadServerEngine(config)
+                : new NioServerEngine(config);
+        try {
+            partitions = ListPartition.open(config);
+            readOnly = config.replicateFrom != null;
+            admission = new AdmissionControl(config);
+            queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.queueTimeoutMillis);
+            replicationAllow = config.replicationAllow;
+            startMetrics(config);
+            engine.run();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void handleClientRequest(Socket clientSocket) {
-        try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-             ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())) {
-
-
-            String requestType = (String) in.readObject();
-            String[] args = (String[]) in.readObject();
-
-            synchronized (sharedProductList) {
-                switch (requestType) {
-                    case "ADD_CATEGORY":
-                        addCategory(args[0]);
-                        break;
-                    case "REMOVE_PRODUCT":
-                        removeProduct(args[0], args[1]);
-                        break;
-                    case "ADD_PRODUCT":
-                        addProduct(args[0], args[1], Double.parseDouble(args[2]), args[3]);
-                        break;
-                    case "EDIT_PRODUCT":
-                        editProduct(args[0], args[1], args[2], Double.parseDouble(args[3]), args[4]);
-                        break;
-                }
+    // Metryki są tylko podglądem, więc serwer działa dalej, gdy nie da się ich udostępnić
+    private static void startMetrics(ServerConfig config) {
+        for (ListPartition partition : partitions) {
+            partition.registerMetrics(metrics);
+        }
+        metrics.gauge("replication.read_only", () -> readOnly ? 1 : 0);
+        metrics.operation("promote", "Replika przestaje śledzić serwer główny i zaczyna przyjmować zapisy", Server::promote);
+        admission.registerMetrics(metrics);
+        try {
+            metrics.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Nie udało się zarejestrować metryk w JMX: " + e);
+        }
+        if (config.metricsPort > 0) {
+            try {
+                metrics.startHttpEndpoint(config.metricsPort);
+            } catch (IOException e) {
+                System.err.println("Nie udało się uruchomić metryk HTTP na porcie " + config.metricsPort + ": " + e);
             }
+        }
+    }
 
-            out.writeObject(sharedProductList);
-            out.flush();
+    // Lista jest przydzielana partycji na stałe, bo od liczby partycji zależy też układ katalogu danych
+    static int partitionOf(String listId) {
+        return Math.floorMod(listId.hashCode(), partitions.length);
+    }
 
-            clientSocket.close();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+    static int partitionCount() {
+        return partitions.length;
+    }
+
+    // Partycja listy, do której odwołuje się ramka żądania, albo -1, gdy ramka jest nieprawidłowa;
+    // ramkę można potem obsłużyć od początku
+    static int partitionOf(FrameReader request) {
+        try {
+            request.readLong();
+            request.readByte();
+            return partitionOf(request.readString());
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            request.rewind();
         }
     }
 
-    private static void addCategory(String category) {
-        sharedProductList.putIfAbsent(category, new HashSet<>());
+    static void handleRequest(ClientSession session, FrameReader request, FrameWriter response) throws IOException {
+        handleRequest(session, request, response, System.nanoTime());
     }
 
-    private static void removeProduct(String category, String name) {
-        Set<Product> products = sharedProductList.get(category);
-        if (products != null) {
-            products.removeIf(product -> product.name.equals(name));
+    // Obsługuje jedną ramkę żądania i dopisuje ramkę odpowiedzi do bufora. receivedNanos to chwila odebrania
+    // ramki; żądanie, które od tej chwili czekało dłużej niż pozwala --queue-timeout-ms, nie jest wykonywane.
+    static void handleRequest(ClientSession session, FrameReader request, FrameWriter response, long receivedNanos) throws IOException {
+        long start = System.nanoTime();
+        int responseStart = response.size();
+        long requestId = request.readLong();
+        byte opcode = request.readByte();
+        if (opcode == WireFormat.REPLICATE) {
+            startReplication(session, requestId, request, response);
+            return;
+        }
+        ProductStore list = bindList(session, request.readString());
+        // Klient zna już wszystko, co mu wysłaliśmy, nawet jeśli wysłał to żądanie, zanim je otrzymał
+        long knownRevision = Math.max(request.readLong(), session.deliveredRevision);
+        if ((opcode == WireFormat.GET_LIST || opcode == WireFormat.SUBSCRIBE) && request.hasRemaining()) {
+            session.acceptsDeflatedSnapshot = (request.readByte() & WireFormat.ACCEPTS_DEFLATED_SNAPSHOT) != 0;
         }
-    }
 
-    private static void addProduct(String category, String name, double quantity, String unit) {
-        if (!availableUnits.contains(unit)) {
-            System.err.println("Nieprawidłowa jednostka miary: " + unit);
+        if (!admission.tryAcquire(session.client)) {
+            writeBusy(session, requestId, opcode, "Za dużo żądań; spróbuj ponownie za chwilę", response, start);
             return;
         }
+        // Odczyty nie czekają na partycję: ProductStore pokazuje im tylko zmiany do stabilnej rewizji
+        boolean write = !WireFormat.isRead(opcode);
+        if (write && queueTimeoutNanos > 0) {
+            if (!session.partition.tryLock(receivedNanos + queueTimeoutNanos - System.nanoTime())) {
+                admission.recordBusy();
+                writeBusy(session, requestId, opcode, "Serwer jest przeciążony; spróbuj ponownie za chwilę", response, start);
+                return;
+            }
+        } else if (write) {
+            session.partition.lock();
+        }
+
+        response.beginFrame();
+        response.writeLong(requestId);
+        boolean failed = false;
+        Consumer<FrameWriter> result = null;
+        try {
+            result = handleClientRequest(list, opcode, request);
+            response.writeByte(WireFormat.STATUS_OK);
+        } catch (OperationRejectedException e) {
+            failed = true;
+            response.writeByte(e.conflict ? WireFormat.STATUS_CONFLICT : WireFormat.STATUS_ERROR);
+            response.writeString(e.getMessage());
+            result = w -> w.writeInt(e.index);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            failed = true;
+            response.writeByte(WireFormat.STATUS_ERROR);
+            response.writeString(e.getMessage());
+        } finally {
+            if (write) {
+                session.partition.unlock();
+            }
+        }
+        long encodingStart = System.nanoTime();
+        session.deliveredRevision = writeChangesSince(list, response, knownRevision, session.acceptsDeflatedSnapshot);
+        if (result != null) {
+            result.accept(response);
+        }
+        response.endFrame();
+        long end = System.nanoTime();
+        metrics.recordRequest(opcode, failed, end - start, end - encodingStart, response.size() - responseStart);
+
+        if (opcode == WireFormat.SUBSCRIBE && !session.subscribed) {
+            session.subscribed = true;
+            session.partition.subscribe(list, session.output, session.deliveredRevision, session.acceptsDeflatedSnapshot);
+        }
+    }
 
-        Product product = new Product(name, quantity, unit);
-        sharedProductList.computeIfAbsent(category, k -> new HashSet<>()).add(product);
+    // Odpowiedź bez wykonania żądania i bez pracy na liście: pusta lista zmian z ostatnio wysłaną rewizją
+    private static void writeBusy(ClientSession session, long requestId, byte opcode, String message, FrameWriter response, long start) {
+        int responseStart = response.size();
+        response.beginFrame();
+        response.writeLong(requestId);
+        response.writeByte(WireFormat.STATUS_BUSY);
+        response.writeString(message);
+        response.writeByte(WireFormat.PAYLOAD_DELTA);
+        response.writeLong(session.deliveredRevision);
+        response.writeInt(0);
+        response.endFrame();
+        long end = System.nanoTime();
+        metrics.recordRequest(opcode, true, end - start, 0, response.size() - responseStart);
     }
 
-    private static void editProduct(String category, String oldName, String newName, double newQuantity, String newUnit) {
-        if (!availableUnits.contains(newUnit)) {
-            System.err.println("Nieprawidłowa jednostka miary: " + newUnit);
+    // Połączenie repliki nie obsługuje żadnej listy, tylko odbiera strumień zmian jednej partycji.
+    // Obie strony muszą mieć tyle samo partycji, bo replika przydziela listy partycjom tak samo.
+    private static void startReplication(ClientSession session, long requestId, FrameReader request, FrameWriter response) throws IOException {
+        request.readString();
+        request.readLong();
+        int partitionCount = request.readInt();
+        int partition = request.readInt();
+        String error = null;
+        if (session.address == null || !replicationAllow.contains(session.address)) {
+            error = "Adres " + session.address + " nie może pobierać zmian serwera";
+        } else if (session.list != null || session.replica) {
+            error = "Połączenie obsługuje już listę \"" + session.listId + "\"";
+        } else if (partitionCount != partitions.length) {
+            error = "Serwer główny ma " + partitions.length + " partycji, replika " + partitionCount;
+        } else if (partition < 0 || partition >= partitions.length) {
+            error = "Nieprawidłowy numer partycji: " + partition;
+        }
+        response.beginFrame();
+        response.writeLong(requestId);
+        if (error == null) {
+            response.writeByte(WireFormat.STATUS_OK);
+        } else {
+            response.writeByte(WireFormat.STATUS_ERROR);
+            response.writeString(error);
+        }
+        response.endFrame();
+        if (error != null) {
             return;
         }
+        session.replica = true;
+        partitions[partition].replicate(session.output);
+    }
+
+    // Replika przestaje śledzić serwer główny i zaczyna przyjmować zmiany. Dawny serwer główny
+    // nie może już wtedy przyjmować zapisów; klienci muszą zostać przełączeni ręcznie. Tylko lokalnie,
+    // przez JMX albo POST /admin/promote na porcie metryk, nigdy z protokołu klientów.
+    private static void promote() {
+        for (ListPartition partition : partitions) {
+            partition.stopReplication();
+        }
+        if (readOnly) {
+            readOnly = false;
+            System.out.println("Replika awansowana na serwer główny");
+        }
+    }
 
-        Set<Product> products = sharedProductList.get(category);
-        if (products != null) {
-            for (Product product : products) {
-                if (product.name.equals(oldName)) {
-                    products.remove(product);
-                    Product newProduct = new Product(newName, newQuantity, newUnit);
-                    products.add(newProduct);
-                    return;
+    // Połączenie obsługuje jedną listę, wskazaną w pierwszym żądaniu; rewizje i powiadomienia dotyczą tylko jej.
+    // Żądanie innej listy jest błędem protokołu i kończy połączenie.
+    private static ProductStore bindList(ClientSession session, String listId) throws IOException {
+        if (session.replica) {
+            throw new IOException("Połączenie repliki nie obsługuje żądań list");
+        }
+        if (session.list != null) {
+            if (!session.listId.equals(listId)) {
+                throw new IOException("Połączenie obsługuje już listę \"" + session.listId + "\"");
+            }
+            return session.list;
+        }
+        if (listId.length() > WireFormat.MAX_LIST_ID_LENGTH) {
+            throw new IOException("Za długi identyfikator listy: " + listId.length() + " znaków");
+        }
+        session.partition = partitions[partitionOf(listId)];
+        session.listId = listId;
+        session.list = session.partition.list(listId);
+        return session.list;
+    }
+
+    // Silniki wołają to przed wysłaniem zebranych odpowiedzi, więc żądania przysłane potokowo
+    // czekają na jeden wspólny fsync dziennika partycji
+    static void awaitDurable(ClientSession session) {
+        if (session.partition != null) {
+            session.partition.awaitDurable();
+        }
+    }
+
+    // Wersja bez blokowania dla pętli zdarzeń: true, gdy odpowiedzi muszą poczekać na fsync, a callback
+    // zostanie wtedy wywołany w wątku zapisu dziennika; false, gdy można je wysłać od razu
+    static boolean deferUntilDurable(ClientSession session, Runnable callback) {
+        return session.partition != null && session.partition.deferUntilDurable(callback);
+    }
+
+    // Pełną listę wysyłamy tylko klientom, którzy są zbyt daleko w tyle
+    private static long writeChangesSince(ProductStore list, FrameWriter response, long knownRevision, boolean deflate) {
+        long responseRevision = list.revision();
+        // Klient zna już zmiany z serwera głównego, które nie dotarły jeszcze do repliki
+        if (readOnly && knownRevision > responseRevision) {
+            response.writeByte(WireFormat.PAYLOAD_DELTA);
+            response.writeLong(responseRevision);
+            response.writeInt(0);
+            return responseRevision;
+        }
+        List<Change> changes = list.changesSince(knownRevision, responseRevision);
+        if (changes != null) {
+            response.writeByte(WireFormat.PAYLOAD_DELTA);
+            response.writeLong(responseRevision);
+            response.writeInt(changes.size());
+            for (Change change : changes) {
+                response.writeChange(change);
+            }
+            return responseRevision;
+        }
+        metrics.recordSnapshotResponse();
+        // Zakodowana lista jest wspólna dla wszystkich odpowiedzi i trafia do gniazda bez kopiowania
+        ProductStore.EncodedSnapshot snapshot = list.encodedSnapshot();
+        if (deflate && snapshot.bytes.remaining() >= WireFormat.MIN_DEFLATED_SNAPSHOT_BYTES) {
+            response.writeByte(WireFormat.PAYLOAD_SNAPSHOT_DEFLATED);
+            response.writeLong(snapshot.revision);
+            response.writeShared(snapshot.deflated());
+            return snapshot.revision;
+        }
+        response.writeByte(WireFormat.PAYLOAD_SNAPSHOT);
+        response.writeLong(snapshot.revision);
+        response.writeShared(snapshot.bytes);
+        return snapshot.revision;
+    }
+
+    // Zapytania zwracają wynik, który trafia do odpowiedzi za zmianami; pozostałe żądania zwracają null
+    private static Consumer<FrameWriter> handleClientRequest(ProductStore list, byte opcode, FrameReader args) throws IOException {
+        if (readOnly && !WireFormat.isRead(opcode)) {
+            throw new IllegalArgumentException("Serwer jest repliką tylko do odczytu");
+        }
+        switch (opcode) {
+            case WireFormat.ADD_CATEGORY:
+                list.addCategory(args.readString());
+                break;
+            case WireFormat.REMOVE_PRODUCT:
+                list.removeProduct(args.readString(), args.readString());
+                break;
+            // Klient pokazuje zmianę od razu, więc musi się dowiedzieć, że trzeba ją wycofać
+            case WireFormat.ADD_PRODUCT: {
+                String category = args.readString();
+                String name = args.readString();
+                if (list.addProduct(category, name, args.readDouble(), args.readUnit()) == 0) {
+                    throw new IllegalArgumentException("Nie można dodać produktu " + name + " do kategorii " + category);
+                }
+                break;
+            }
+            case WireFormat.EDIT_PRODUCT: {
+                String category = args.readString();
+                String oldName = args.readString();
+                if (list.editProduct(category, oldName, args.readString(), args.readDouble(), args.readUnit()) == 0) {
+                    throw new IllegalArgumentException("Nie można zmienić produktu " + oldName + " w kategorii " + category);
+                }
+                break;
+            }
+            case WireFormat.IMPORT_PRODUCTS: {
+                int count = args.readCount();
+                Map<String, List<Product>> byCategory = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    byCategory.computeIfAbsent(args.readString(), k -> new ArrayList<>()).add(args.readProduct());
+                }
+                int rejected = 0;
+                for (Map.Entry<String, List<Product>> entry : byCategory.entrySet()) {
+                    rejected += list.addProducts(entry.getKey(), entry.getValue());
+                }
+                if (rejected > 0) {
+                    throw new IllegalArgumentException("Odrzucono " + rejected + " z " + count + " importowanych produktów");
                 }
+                break;
+            }
+            case WireFormat.REMOVE_CATEGORY:
+                list.applyBatch(List.of(BatchOperation.removeCategory(args.readString())));
+                break;
+            case WireFormat.CLEAR:
+                list.applyBatch(List.of(BatchOperation.clear()));
+                break;
+            case WireFormat.BATCH: {
+                int count = args.readCount();
+                List<BatchOperation> operations = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    operations.add(args.readOperation());
+                }
+                list.applyBatch(operations);
+                break;
+            }
+            case WireFormat.SYNC: {
+                int count = args.readCount();
+                List<BatchOperation> operations = new ArrayList<>(count);
+                long[] baseRevisions = new long[count];
+                for (int i = 0; i < count; i++) {
+                    baseRevisions[i] = args.readLong();
+                    operations.add(args.readOperation());
+                }
+                list.applyOfflineBatch(operations, baseRevisions);
+                break;
+            }
+            case WireFormat.SEARCH_PRODUCTS: {
+                byte mode = args.readByte();
+                String query = args.readString();
+                int limit = Math.max(0, Math.min(args.readInt(), WireFormat.MAX_SEARCH_RESULTS));
+                List<ProductMatch> matches;
+                if (mode == WireFormat.SEARCH_PREFIX) {
+                    matches = list.searchByPrefix(query, limit);
+                } else if (mode == WireFormat.SEARCH_SUBSTRING) {
+                    matches = list.searchBySubstring(query, limit);
+                } else {
+                    throw new IllegalArgumentException("Nieznany rodzaj wyszukiwania: " + mode);
+                }
+                return response -> response.writeMatches(matches);
+            }
+            case WireFormat.AGGREGATE: {
+                Map<String, Map<String, UnitTotal>> totals = list.totals();
+                return response -> response.writeTotals(totals);
             }
+            case WireFormat.GET_LIST:
+            case WireFormat.SUBSCRIBE:
+                break;
+            default:
+                throw new IllegalArgumentException("Nieznane żądanie: " + opcode);
         }
-        System.err.println("Nie znaleziono produktu: " + oldName + " w kategorii " + category);
+        return null;
     }
 }
@@ -0,0 +1,6 @@
+// Serwer nie wykonał żądania, bo jest przeciążony albo klient przekroczył limit żądań; można je ponowić później
+class ServerBusyException extends RequestRejectedException {
+    ServerBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,164 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+
+// Ustawienia serwera podawane w argumentach, np. --engine=virtual --port=8000 --backlog=128 --workers=4
+// --partitions=8 --durability=sync --data-dir=data --metrics-port=9100 --replicate-from=host:8000
+// --replication-allow=10.0.0.2,10.0.0.3
+// --max-connections=10000 --rate-limit=200 --queue-timeout-ms=1000 --idle-timeout-ms=300000 --write-timeout-ms=30000
+// --storage=columnar
+final class ServerConfig {
+    enum Engine {NIO, VIRTUAL}
+
+    // SYNC czeka z odpowiedzią na fsync dziennika, BATCHED wykonuje fsync co syncIntervalMillis,
+    // NONE trzyma listę tylko w pamięci
+    enum Durability {SYNC, BATCHED, NONE}
+
+    // Układ produktów w pamięci: HASH trzyma obiekt Product na produkt, COLUMNAR kolumny typów prostych
+    // (ColumnarProductTable), mniej pamięci kosztem obiektów tworzonych przy odczycie pojedynczych produktów
+    enum Storage {HASH, COLUMNAR}
+
+    Engine engine = Engine.NIO;
+    int port = 8000;
+    int backlog = 128;
+    // Liczba pętli zdarzeń NIO albo wątków nośnych dla wątków wirtualnych
+    int workers = Runtime.getRuntime().availableProcessors();
+    // Listy są przydzielane partycjom według skrótu identyfikatora; liczba nie zależy od procesorów,
+    // bo katalog danych można otworzyć tylko przy tej samej liczbie partycji
+    int partitions = 8;
+    Durability durability = Durability.BATCHED;
+    Storage storage = Storage.HASH;
+    String dataDir = "data";
+    long syncIntervalMillis = 50;
+    // Po tylu zmianach dziennik jest zwijany do migawki
+    int snapshotEvery = 100_000;
+    // Port HTTP z metrykami na 127.0.0.1; 0 wyłącza
+    int metricsPort = 9100;
+    // Adres serwera głównego, gdy serwer jest repliką tylko do odczytu; null dla serwera głównego
+    String replicateFrom;
+    // Adresy replik, które mogą pobierać strumień zmian (REPLICATE); domyślnie nikt
+    Set<InetAddress> replicationAllow = Set.of();
+    // Ochrona przed przeciążeniem; 0 wyłącza dany limit
+    int maxConnections = 10_000;
+    // Żądania na sekundę z jednego adresu klienta i ile może ich wysłać naraz (domyślnie tyle co na sekundę)
+    int rateLimit = 0;
+    int rateBurst = 0;
+    // Żądanie, które tyle czekało na swoją partycję, dostaje od razu BUSY
+    long queueTimeoutMillis = 1000;
+    // Połączenie bez żądań jest zamykane; nie dotyczy subskrybentów i replik, które tylko odbierają
+    long idleTimeoutMillis = 300_000;
+    // Rozpoczęta ramka żądania musi dojść w tym czasie
+    long readTimeoutMillis = 30_000;
+    // Klient, który tyle czasu nie odbiera wysyłanych mu danych, jest rozłączany
+    long writeTimeoutMillis = 30_000;
+    int maxFrameBytes = 16 * 1024 * 1024;
+
+    static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Nieprawidłowy argument: " + arg);
+            }
+            config.set(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return config;
+    }
+
+    void set(String option, String value) {
+        switch (option) {
+            case "engine":
+                engine = Engine.valueOf(value.toUpperCase());
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "backlog":
+                backlog = Integer.parseInt(value);
+                break;
+            case "workers":
+                workers = Integer.parseInt(value);
+                if (workers < 1) {
+                    throw new IllegalArgumentException("Liczba wątków musi być dodatnia: " + value);
+                }
+                break;
+            case "partitions":
+                partitions = Integer.parseInt(value);
+                if (partitions < 1) {
+                    throw new IllegalArgumentException("Liczba partycji musi być dodatnia: " + value);
+                }
+                break;
+            case "durability":
+                durability = Durability.valueOf(value.toUpperCase());
+                break;
+            case "storage":
+                storage = Storage.valueOf(value.toUpperCase());
+                break;
+            case "data-dir":
+                dataDir = value;
+                break;
+            case "sync-interval-ms":
+                syncIntervalMillis = Long.parseLong(value);
+                break;
+            case "snapshot-every":
+                snapshotEvery = Integer.parseInt(value);
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(value);
+                break;
+            case "max-connections":
+                maxConnections = nonNegative(option, Integer.parseInt(value));
+                break;
+            case "rate-limit":
+                rateLimit = nonNegative(option, Integer.parseInt(value));
+                break;
+            case "rate-burst":
+                rateBurst = nonNegative(option, Integer.parseInt(value));
+                break;
+            case "queue-timeout-ms":
+                queueTimeoutMillis = nonNegative(option, Long.parseLong(value));
+                break;
+            case "idle-timeout-ms":
+                idleTimeoutMillis = nonNegative(option, Long.parseLong(value));
+                break;
+            case "read-timeout-ms":
+                readTimeoutMillis = nonNegative(option, Long.parseLong(value));
+                break;
+            case "write-timeout-ms":
+                writeTimeoutMillis = nonNegative(option, Long.parseLong(value));
+                break;
+            case "max-frame-bytes":
+                maxFrameBytes = Integer.parseInt(value);
+                if (maxFrameBytes < 1024 || maxFrameBytes > WireFormat.MAX_FRAME_SIZE) {
+                    throw new IllegalArgumentException("Rozmiar ramki musi być między 1024 a " + WireFormat.MAX_FRAME_SIZE + ": " + value);
+                }
+                break;
+            case "replicate-from":
+                if (value.lastIndexOf(':') <= 0) {
+                    throw new IllegalArgumentException("Adres serwera głównego musi mieć postać host:port: " + value);
+                }
+                replicateFrom = value;
+                break;
+            case "replication-allow":
+                replicationAllow = new HashSet<>();
+                for (String host : value.split(",")) {
+                    try {
+                        replicationAllow.add(InetAddress.getByName(host.trim()));
+                    } catch (UnknownHostException e) {
+                        throw new IllegalArgumentException("Nieznany adres repliki: " + host);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Nieznana opcja: --" + option);
+        }
+    }
+
+    private static <T extends Number> T nonNegative(String option, T value) {
+        if (value.longValue() < 0) {
+            throw new IllegalArgumentException("Wartość --" + option + " nie może być ujemna: " + value);
+        }
+        return value;
+    }
+}
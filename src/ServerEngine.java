@@ -0,0 +1,7 @@
+import java.io.IOException;
+
+// Sposób obsługi połączeń klientów; protokół obsługuje niezależnie od silnika Server.handleRequest
+interface ServerEngine {
+    // Blokuje do zamknięcia serwera
+    void run() throws IOException;
+}
@@ -0,0 +1,251 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Liczniki i histogramy serwera. Zapis na ścieżce żądania to kilka operacji atomowych bez alokacji;
+// wartości są zbierane dopiero przy odczycie przez HTTP (GET /metrics, wiersze "nazwa wartość")
+// albo przez JMX (ProductList:type=ServerMetrics). Czasy są podawane w mikrosekundach. Tymi samymi lokalnymi
+// drogami są dostępne operacje administracyjne: jako operacje JMX i jako POST /admin/<nazwa>.
+final class ServerMetrics implements DynamicMBean {
+    private static final int OPCODES = 32;
+    private static final String OBJECT_NAME = "ProductList:type=ServerMetrics";
+
+    private final String[] opcodeNames = new String[OPCODES];
+    private final LongAdder[] requests = new LongAdder[OPCODES];
+    private final LongAdder[] errors = new LongAdder[OPCODES];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPCODES];
+    private final LatencyHistogram responseBytes = new LatencyHistogram();
+    private final LatencyHistogram responseEncoding = new LatencyHistogram();
+    private final LongAdder snapshotResponses = new LongAdder();
+    private final LatencyHistogram durableWait = new LatencyHistogram();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    // Rejestrowane przy starcie przez części serwera
+    private final Map<String, LatencyHistogram> timeHistograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> sizeHistograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Operation> operations = new ConcurrentSkipListMap<>();
+
+    private static final class Operation {
+        final String description;
+        final Runnable action;
+
+        Operation(String description, Runnable action) {
+            this.description = description;
+            this.action = action;
+        }
+    }
+
+    ServerMetrics() {
+        // Indeks 0 zbiera żądania o nieznanych kodach
+        for (int opcode = 0; opcode < OPCODES; opcode++) {
+            String name = opcode == 0 ? "UNKNOWN" : WireFormat.opcodeName(opcode);
+            if (name != null) {
+                opcodeNames[opcode] = name;
+                requests[opcode] = new LongAdder();
+                errors[opcode] = new LongAdder();
+                latencies[opcode] = new LatencyHistogram();
+            }
+        }
+    }
+
+    void recordRequest(byte opcode, boolean failed, long nanos, long encodingNanos, int bytes) {
+        int index = opcode > 0 && opcode < OPCODES && opcodeNames[opcode] != null ? opcode : 0;
+        requests[index].increment();
+        if (failed) {
+            errors[index].increment();
+        }
+        latencies[index].record(nanos);
+        responseEncoding.record(encodingNanos);
+        responseBytes.record(bytes);
+    }
+
+    void recordSnapshotResponse() {
+        snapshotResponses.increment();
+    }
+
+    void recordDurableWait(long nanos) {
+        durableWait.record(nanos);
+    }
+
+    void connectionOpened() {
+        acceptedConnections.increment();
+        openConnections.increment();
+    }
+
+    void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    void timeHistogram(String name, LatencyHistogram histogram) {
+        timeHistograms.put(name, histogram);
+    }
+
+    void sizeHistogram(String name, LatencyHistogram histogram) {
+        sizeHistograms.put(name, histogram);
+    }
+
+    void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    void operation(String name, String description, Runnable action) {
+        operations.put(name, new Operation(description, action));
+    }
+
+    // Wszystkie wartości w stałej kolejności; odczyt tylko przy zapytaniu HTTP albo JMX
+    Map<String, Number> values() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (int opcode = 0; opcode < OPCODES; opcode++) {
+            if (opcodeNames[opcode] != null) {
+                String prefix = "requests." + opcodeNames[opcode];
+                values.put(prefix + ".count", requests[opcode].sum());
+                values.put(prefix + ".errors", errors[opcode].sum());
+                putTimes(values, prefix + ".latency", latencies[opcode]);
+            }
+        }
+        values.put("responses.snapshots", snapshotResponses.sum());
+        putTimes(values, "responses.encoding", responseEncoding);
+        putSizes(values, "responses.bytes", responseBytes);
+        putTimes(values, "responses.durable_wait", durableWait);
+        values.put("connections.open", openConnections.sum());
+        values.put("connections.accepted", acceptedConnections.sum());
+        for (Map.Entry<String, LatencyHistogram> entry : timeHistograms.entrySet()) {
+            putTimes(values, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : sizeHistograms.entrySet()) {
+            putSizes(values, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    private static void putTimes(Map<String, Number> values, String prefix, LatencyHistogram histogram) {
+        values.put(prefix + ".count", histogram.count());
+        values.put(prefix + ".mean_us", histogram.mean() / 1e3);
+        values.put(prefix + ".p50_us", histogram.percentile(50) / 1e3);
+        values.put(prefix + ".p99_us", histogram.percentile(99) / 1e3);
+        values.put(prefix + ".p999_us", histogram.percentile(99.9) / 1e3);
+        values.put(prefix + ".max_us", histogram.max() / 1e3);
+    }
+
+    private static void putSizes(Map<String, Number> values, String prefix, LatencyHistogram histogram) {
+        values.put(prefix + ".count", histogram.count());
+        values.put(prefix + ".mean", histogram.mean());
+        values.put(prefix + ".p50", histogram.percentile(50));
+        values.put(prefix + ".p99", histogram.percentile(99));
+        values.put(prefix + ".max", histogram.max());
+    }
+
+    String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> entry : values().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Tylko na interfejsie pętli zwrotnej; metryki i operacje nie są przeznaczone dla klientów
+    void startHttpEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.createContext("/admin/", exchange -> {
+            Operation operation = operations.get(exchange.getRequestURI().getPath().substring("/admin/".length()));
+            int status;
+            if (operation == null) {
+                status = 404;
+            } else if (!exchange.getRequestMethod().equals("POST")) {
+                status = 405;
+            } else {
+                operation.action.run();
+                status = 200;
+            }
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        });
+        http.start();
+        System.out.println("Metryki: http://127.0.0.1:" + port + "/metrics");
+    }
+
+    void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metryki są tylko do odczytu: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        Operation operation = operations.get(actionName);
+        if (operation == null || (params != null && params.length > 0)) {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+        operation.action.run();
+        return null;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Number> entry : values().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false));
+        }
+        List<MBeanOperationInfo> actions = new ArrayList<>();
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            actions.add(new MBeanOperationInfo(entry.getKey(), entry.getValue().description,
+                    new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION));
+        }
+        return new MBeanInfo(getClass().getName(), "Metryki serwera listy zakupów",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, actions.toArray(new MBeanOperationInfo[0]), null);
+    }
+}
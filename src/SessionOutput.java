@@ -0,0 +1,13 @@
+import java.nio.ByteBuffer;
+
+// Wysyłanie ramek do klienta spoza wątku obsługującego jego żądania, np. powiadomień o zmianach
+interface SessionOutput {
+    // Nie blokuje; ramka trafia do kolejki wyjściowej połączenia. Bufory tylko do odczytu
+    // (FrameWriter.detachedSegments) przechodzą na własność połączenia i nie są kopiowane.
+    void send(ByteBuffer... frame);
+
+    // Bajty czekające na wysłanie, używane do wykrywania wolnych klientów
+    long pendingBytes();
+
+    boolean isOpen();
+}
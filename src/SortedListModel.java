@@ -0,0 +1,191 @@
+import javax.swing.*;
+import java.util.*;
+import java.util.function.Function;
+
+// Model listy posortowanej według klucza. update porównuje nowy stan z pokazanymi wierszami i zgłasza tylko
+// zmienione zakresy, więc JList ze stałą wysokością wiersza przerysowuje i pyta model tylko o to, co widać.
+class SortedListModel<T> extends AbstractListModel<T> {
+    // Przy większej liczbie rozproszonych zmian taniej jest zgłosić zmianę całej listy
+    private static final int MAX_RANGE_EVENTS = 64;
+
+    private final Function<T, String> key;
+    private final ArrayList<T> rows = new ArrayList<>();
+    // Te same wiersze według klucza, żeby nowe elementy znaleźć bez sortowania całej listy
+    private final Map<String, T> shown = new HashMap<>();
+
+    SortedListModel(Function<T, String> key) {
+        this.key = key;
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public T getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    int indexOf(String elementKey) {
+        T element = shown.get(elementKey);
+        if (element == null) {
+            return -1;
+        }
+        int index = Collections.binarySearch(rows, element, this::compare);
+        return index < 0 ? -1 : index;
+    }
+
+    // Koszt jest liniowy w liczbie wierszy, a sortowane są tylko nowe elementy
+    void update(Map<String, T> elements) {
+        List<Integer> removed = new ArrayList<>();
+        List<Integer> changed = new ArrayList<>();
+        int kept = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            T row = rows.get(i);
+            T current = elements.get(key.apply(row));
+            if (current == null) {
+                removed.add(i);
+            } else {
+                kept++;
+                // Elementy są niezmienne, więc niezmieniony wiersz to zwykle ten sam obiekt
+                if (current != row && !current.equals(row)) {
+                    changed.add(i);
+                }
+            }
+        }
+        List<T> added = new ArrayList<>();
+        if (kept < elements.size()) {
+            for (Map.Entry<String, T> entry : elements.entrySet()) {
+                if (!shown.containsKey(entry.getKey())) {
+                    added.add(entry.getValue());
+                }
+            }
+            added.sort(this::compare);
+        }
+        if (removed.isEmpty() && changed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+
+        if (ranges(removed) + ranges(changed) + added.size() > MAX_RANGE_EVENTS) {
+            replaceAll(elements, added);
+            return;
+        }
+        // Zdarzenia w kolejności, w jakiej zmieniane są wiersze, żeby JList poprawnie przesuwał zaznaczenie
+        for (Integer index : changed) {
+            T current = elements.get(key.apply(rows.get(index)));
+            rows.set(index, current);
+            shown.put(key.apply(current), current);
+        }
+        fireContentsChanged(changed);
+        for (int i = removed.size() - 1; i >= 0; ) {
+            int to = removed.get(i);
+            int from = to;
+            while (i > 0 && removed.get(i - 1) == from - 1) {
+                from = removed.get(--i);
+            }
+            i--;
+            for (int index = to; index >= from; index--) {
+                shown.remove(key.apply(rows.remove(index)));
+            }
+            fireIntervalRemoved(this, from, to);
+        }
+        for (T element : added) {
+            int index = -Collections.binarySearch(rows, element, this::compare) - 1;
+            rows.add(index, element);
+            shown.put(key.apply(element), element);
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
+    // Zmieniły się najwyżej elementy o podanych kluczach; koszt zależy od ich liczby, a nie od długości listy.
+    // elements zawiera aktualny stan tych kluczy, brak klucza oznacza usunięty element.
+    void updateKeys(Collection<String> keys, Map<String, T> elements) {
+        for (String elementKey : keys) {
+            T current = elements.get(elementKey);
+            T row = shown.get(elementKey);
+            if (row == null) {
+                if (current != null) {
+                    int index = -Collections.binarySearch(rows, current, this::compare) - 1;
+                    rows.add(index, current);
+                    shown.put(elementKey, current);
+                    fireIntervalAdded(this, index, index);
+                }
+            } else {
+                int index = Collections.binarySearch(rows, row, this::compare);
+                if (current == null) {
+                    rows.remove(index);
+                    shown.remove(elementKey);
+                    fireIntervalRemoved(this, index, index);
+                } else if (current != row && !current.equals(row)) {
+                    rows.set(index, current);
+                    shown.put(elementKey, current);
+                    fireContentsChanged(this, index, index);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        update(Collections.emptyMap());
+    }
+
+    // Pozostałe wiersze są już posortowane, więc wystarczy je scalić z nowymi
+    private void replaceAll(Map<String, T> elements, List<T> added) {
+        int oldSize = rows.size();
+        List<T> merged = new ArrayList<>(elements.size());
+        int next = 0;
+        for (T row : rows) {
+            T current = elements.get(key.apply(row));
+            if (current == null) {
+                continue;
+            }
+            while (next < added.size() && compare(added.get(next), current) < 0) {
+                merged.add(added.get(next++));
+            }
+            merged.add(current);
+        }
+        merged.addAll(added.subList(next, added.size()));
+        rows.clear();
+        rows.addAll(merged);
+        shown.clear();
+        shown.putAll(elements);
+
+        int newSize = rows.size();
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        }
+        int common = Math.min(oldSize, newSize);
+        if (common > 0) {
+            fireContentsChanged(this, 0, common - 1);
+        }
+        if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+    }
+
+    private void fireContentsChanged(List<Integer> indexes) {
+        for (int i = 0; i < indexes.size(); ) {
+            int from = indexes.get(i);
+            int to = from;
+            while (++i < indexes.size() && indexes.get(i) == to + 1) {
+                to++;
+            }
+            fireContentsChanged(this, from, to);
+        }
+    }
+
+    private static int ranges(List<Integer> indexes) {
+        int ranges = 0;
+        for (int i = 0; i < indexes.size(); i++) {
+            if (i == 0 || indexes.get(i) != indexes.get(i - 1) + 1) {
+                ranges++;
+            }
+        }
+        return ranges;
+    }
+
+    private int compare(T a, T b) {
+        return key.apply(a).compareTo(key.apply(b));
+    }
+}
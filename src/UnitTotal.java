@@ -0,0 +1,21 @@
+// Liczba produktów i suma ich ilości w jednej jednostce miary
+final class UnitTotal {
+    static final UnitTotal ZERO = new UnitTotal(0, 0);
+
+    final int count;
+    final double quantity;
+
+    UnitTotal(int count, double quantity) {
+        this.count = count;
+        this.quantity = quantity;
+    }
+
+    UnitTotal plus(int count, double quantity) {
+        return new UnitTotal(this.count + count, this.quantity + quantity);
+    }
+
+    @Override
+    public String toString() {
+        return quantity + " (produktów: " + count + ")";
+    }
+}
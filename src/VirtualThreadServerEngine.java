@@ -0,0 +1,232 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Blokujące gniazda z osobnym wątkiem wirtualnym na każde połączenie. Czas bezczynności i odczytu pilnuje
+// limit czasu gniazda, ustawiany osobno na oczekiwanie na ramkę i na jej resztę. Zapis nie ma limitu czasu
+// gniazda, więc zawieszone zapisy zamyka osobny wątek. Blokady, na które czekają wątki sesji (lista, kategorie,
+// dziennik, kubełek klienta), to ReentrantLock, a nie monitory (synchronized), bo czekanie na monitorze
+// blokowałoby wątek nośny.
+final class VirtualThreadServerEngine implements ServerEngine {
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final ServerConfig config;
+    private final Set<StreamOutput> outputs = ConcurrentHashMap.newKeySet();
+
+    VirtualThreadServerEngine(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void run() throws IOException {
+        // Planista wątków wirtualnych odczytuje to ustawienie przy tworzeniu pierwszego wątku
+        if (System.getProperty("jdk.virtualThreadScheduler.parallelism") == null) {
+            System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(config.workers));
+        }
+        Thread.Builder sessions = Thread.ofVirtual().name("session-", 0);
+        if (config.writeTimeoutMillis > 0) {
+            Thread.ofPlatform().daemon().name("write-timeouts").start(this::closeStuckWrites);
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress(config.port), config.backlog);
+            System.out.println("Serwer uruchomiony na porcie " + config.port + " (wątki wirtualne)");
+
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                AdmissionControl.Client client = Server.admission.admit(clientSocket.getInetAddress());
+                if (client == null) {
+                    clientSocket.close();
+                    continue;
+                }
+                sessions.start(() -> handleClientSession(clientSocket, client));
+            }
+        }
+    }
+
+    private void handleClientSession(Socket clientSocket, AdmissionControl.Client client) {
+        Server.metrics.connectionOpened();
+        StreamOutput output = null;
+        try (clientSocket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+             OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream())) {
+            clientSocket.setTcpNoDelay(true);
+            FrameReader request = new FrameReader(config.maxFrameBytes);
+            FrameWriter response = new FrameWriter();
+            output = new StreamOutput(clientSocket, out);
+            outputs.add(output);
+            ClientSession session = new ClientSession(output);
+            session.address = clientSocket.getInetAddress();
+            session.client = client;
+
+            while (true) {
+                // Subskrybent i replika tylko odbierają, więc mogą długo nic nie wysyłać
+                boolean listening = session.subscribed || session.replica;
+                clientSocket.setSoTimeout(listening ? 0 : (int) Math.min(config.idleTimeoutMillis, Integer.MAX_VALUE));
+                in.mark(1);
+                if (in.read() < 0) {
+                    break;
+                }
+                in.reset();
+                clientSocket.setSoTimeout((int) Math.min(config.readTimeoutMillis, Integer.MAX_VALUE));
+                if (!request.readFrame(in)) {
+                    break;
+                }
+                Server.handleRequest(session, request, response, System.nanoTime());
+                // Przy żądaniach wysłanych potokowo odpowiedzi wychodzą jednym zapisem
+                if (in.available() == 0 || response.size() >= FLUSH_THRESHOLD) {
+                    Server.awaitDurable(session);
+                    output.write(response);
+                    response.reset();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Server.admission.recordTimeout();
+        } catch (IOException e) {
+            // Gniazdo zamknięte przez closeStuckWrites; limit czasu jest już policzony
+            if (output == null || !output.timedOut) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (output != null) {
+                outputs.remove(output);
+                output.close();
+            }
+            Server.admission.release(client);
+            Server.metrics.connectionClosed();
+        }
+    }
+
+    private void closeStuckWrites() {
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.writeTimeoutMillis);
+        while (true) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (StreamOutput output : outputs) {
+                long started = output.writeStartedNanos;
+                if (started != 0 && now - started > timeoutNanos) {
+                    Server.admission.recordTimeout();
+                    output.timedOut = true;
+                    output.close();
+                }
+            }
+        }
+    }
+
+    // Powiadomienia wysyła osobny wątek wirtualny, żeby wolny klient nie blokował rozsyłającego
+    private static final class StreamOutput implements SessionOutput {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BlockingQueue<ByteBuffer[]> frames = new LinkedBlockingQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        // Zapis do gniazda i uruchomienie wątku powiadomień
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final ReentrantLock stateLock = new ReentrantLock();
+        // Od kiedy trwa bieżący zapis; 0, gdy nic nie jest zapisywane
+        volatile long writeStartedNanos;
+        volatile boolean timedOut;
+        private Thread writer;
+
+        StreamOutput(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void write(FrameWriter response) throws IOException {
+            writeLock.lock();
+            try {
+                writeStartedNanos = System.nanoTime();
+                response.writeTo(out);
+                out.flush();
+            } finally {
+                writeStartedNanos = 0;
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer... frame) {
+            for (ByteBuffer segment : frame) {
+                queuedBytes.addAndGet(segment.remaining());
+            }
+            frames.add(frame);
+            stateLock.lock();
+            try {
+                if (writer == null) {
+                    writer = Thread.ofVirtual().name("push-writer").start(this::writeFrames);
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+
+        private void writeFrames() {
+            byte[] transfer = new byte[64 * 1024];
+            try {
+                while (true) {
+                    ByteBuffer[] frame = frames.take();
+                    writeLock.lock();
+                    try {
+                        writeStartedNanos = System.nanoTime();
+                        do {
+                            for (ByteBuffer segment : frame) {
+                                while (segment.hasRemaining()) {
+                                    int length = Math.min(segment.remaining(), transfer.length);
+                                    segment.get(transfer, 0, length);
+                                    out.write(transfer, 0, length);
+                                    queuedBytes.addAndGet(-length);
+                                }
+                            }
+                        } while ((frame = frames.poll()) != null);
+                        out.flush();
+                    } finally {
+                        writeStartedNanos = 0;
+                        writeLock.unlock();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        public long pendingBytes() {
+            return queuedBytes.get();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            stateLock.lock();
+            try {
+                if (writer != null) {
+                    writer.interrupt();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+
+// Stałe binarnego protokołu klient-serwer. Każda ramka zaczyna się od czterobajtowej długości.
+// Żądanie: [long id][byte opcode][string lista][long znana rewizja][argumenty]; połączenie obsługuje jedną listę,
+// wskazaną w pierwszym żądaniu, i rewizje w odpowiedziach dotyczą tylko niej
+// Odpowiedź: [long id][byte status][string komunikat, gdy ERROR][byte rodzaj][long rewizja][zmiany lub migawka]
+// [wynik, tylko zapytania SEARCH_PRODUCTS i AGGREGATE zakończone OK; dla odrzuconych BATCH i SYNC int numer operacji od 0]
+final class WireFormat {
+    static final byte ADD_CATEGORY = 1;
+    static final byte ADD_PRODUCT = 2;
+    static final byte EDIT_PRODUCT = 3;
+    static final byte REMOVE_PRODUCT = 4;
+    // [opcjonalnie byte ACCEPTS_DEFLATED_SNAPSHOT], tak samo w SUBSCRIBE; ustawienie obowiązuje do końca połączenia
+    static final byte GET_LIST = 5;
+    // Po odpowiedzi serwer sam wysyła zmiany jako odpowiedzi o identyfikatorze PUSH_REQUEST_ID
+    static final byte SUBSCRIBE = 6;
+    // [int liczba][string kategoria, produkt]...; ERROR oznacza, że część produktów odrzucono
+    static final byte IMPORT_PRODUCTS = 7;
+    static final byte REMOVE_CATEGORY = 8;
+    // Usuwa wszystkie kategorie
+    static final byte CLEAR = 9;
+    // [int liczba][byte kod operacji, argumenty jak w pojedynczym żądaniu]...; wykonywane wszystkie albo żadna
+    static final byte BATCH = 10;
+    // [byte SEARCH_PREFIX | SEARCH_SUBSTRING][string zapytanie][int limit] -> [int liczba][string kategoria, produkt]...
+    static final byte SEARCH_PRODUCTS = 11;
+    // -> [int kategorie][string kategoria][int jednostki][byte jednostka][int liczba produktów][double suma]...
+    static final byte AGGREGATE = 12;
+    // Od serwera-repliki z adresu z --replication-allow: [int liczba partycji][int partycja]
+    // -> [long id][byte status][string komunikat, gdy ERROR], a potem tylko ramki replikacji:
+    // [byte REPLICA_*][long czas wysłania w ms][dane]
+    static final byte REPLICATE = 13;
+    // 14 był kodem PROMOTE (awans repliki, dziś tylko przez JMX); zarezerwowany, nie używać ponownie,
+    // bo starzy klienci mogą go jeszcze wysyłać
+    // [int liczba]([long rewizja bazowa][operacja jak w BATCH])...; zmiany zrobione przez klienta bez połączenia,
+    // każda z rewizją listy, którą klient wtedy znał. Wykonywane wszystkie albo żadna; CONFLICT, gdy kategorię
+    // operacji zmienił na serwerze ktoś inny po jej rewizji bazowej
+    static final byte SYNC = 15;
+
+    static final long PUSH_REQUEST_ID = 0;
+
+    // Lista klientów, którzy nie podali innej
+    static final String DEFAULT_LIST_ID = "";
+    static final int MAX_LIST_ID_LENGTH = 200;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_CONFLICT = 2;
+    // Serwer nie wykonał żądania, bo jest przeciążony albo klient przekroczył limit żądań; można je ponowić.
+    // Odpowiedź niesie pustą listę zmian.
+    static final byte STATUS_BUSY = 3;
+
+    static final byte PAYLOAD_DELTA = 0;
+    static final byte PAYLOAD_SNAPSHOT = 1;
+    // [int długość przed kompresją][int długość][migawka skompresowana Deflaterem]; tylko dla klientów,
+    // którzy ją przyjmują, i tylko dla list co najmniej MIN_DEFLATED_SNAPSHOT_BYTES
+    static final byte PAYLOAD_SNAPSHOT_DEFLATED = 2;
+
+    static final byte ACCEPTS_DEFLATED_SNAPSHOT = 1;
+    // Mniejszą listę kompresja skraca o kilka milisekund transmisji, a sama kosztuje podobnie
+    static final int MIN_DEFLATED_SNAPSHOT_BYTES = 16 * 1024;
+
+    // [string lista][long rewizja][lista] zastępuje całą listę
+    static final byte REPLICA_SNAPSHOT = 0;
+    // [string lista][int liczba][zmiana]...; zmiany listy w kolejności rewizji, bez luk
+    static final byte REPLICA_CHANGES = 1;
+    // Bez danych; potwierdza, że replika ma wszystko, co serwer główny miał w chwili wysłania
+    static final byte REPLICA_HEARTBEAT = 2;
+
+    static final byte SEARCH_PREFIX = 0;
+    static final byte SEARCH_SUBSTRING = 1;
+    static final int MAX_SEARCH_RESULTS = 1000;
+
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    // Kolejność wyznacza kody jednostek na łączu, nowe jednostki dopisujemy na końcu
+    static final String[] UNITS = {"sztuki", "kg", "m", "l"};
+
+    private WireFormat() {
+    }
+
+    // Żądania, które nie zmieniają listy; replika obsługuje tylko je, a klient może je do niej kierować
+    static boolean isRead(byte opcode) {
+        return opcode == GET_LIST || opcode == SUBSCRIBE || opcode == SEARCH_PRODUCTS || opcode == AGGREGATE;
+    }
+
+    // Nazwa kodu żądania do metryk; null dla nieznanych kodów
+    static String opcodeName(int opcode) {
+        switch (opcode) {
+            case ADD_CATEGORY:
+                return "ADD_CATEGORY";
+            case ADD_PRODUCT:
+                return "ADD_PRODUCT";
+            case EDIT_PRODUCT:
+                return "EDIT_PRODUCT";
+            case REMOVE_PRODUCT:
+                return "REMOVE_PRODUCT";
+            case GET_LIST:
+                return "GET_LIST";
+            case SUBSCRIBE:
+                return "SUBSCRIBE";
+            case IMPORT_PRODUCTS:
+                return "IMPORT_PRODUCTS";
+            case REMOVE_CATEGORY:
+                return "REMOVE_CATEGORY";
+            case CLEAR:
+                return "CLEAR";
+            case BATCH:
+                return "BATCH";
+            case SEARCH_PRODUCTS:
+                return "SEARCH_PRODUCTS";
+            case AGGREGATE:
+                return "AGGREGATE";
+            case REPLICATE:
+                return "REPLICATE";
+            case SYNC:
+                return "SYNC";
+            default:
+                return null;
+        }
+    }
+
+    static Set<String> availableUnits() {
+        return new HashSet<>(Arrays.asList(UNITS));
+    }
+
+    static byte unitCode(String unit) {
+        for (int i = 0; i < UNITS.length; i++) {
+            if (UNITS[i].equals(unit)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Nieprawidłowa jednostka miary: " + unit);
+    }
+}
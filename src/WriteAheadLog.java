@@ -0,0 +1,508 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Trwałość list jednej partycji: każda zatwierdzona zmiana trafia do wspólnego dziennika partycji z identyfikatorem
+// swojej listy, a co snapshotEvery zmian dziennik jest zwijany do migawki wszystkich list partycji.
+// Przy starcie wczytywana jest migawka i odtwarzany koniec dziennika.
+//
+// Zmiany dopisywane są do bufora w pamięci; osobny wątek zapisuje naraz wszystko, co się w nim zebrało
+// (group commit), i wykonuje fsync po każdej paczce (SYNC) albo co syncIntervalMillis (BATCHED).
+final class WriteAheadLog {
+    // Migawka: rekord [magic][int liczba list], potem rekord [string lista][long rewizja][lista] dla każdej listy
+    private static final int SNAPSHOT_MAGIC = 0x504C5332;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final ListPartition partition;
+    private final Path directory;
+    private final ServerConfig.Durability durability;
+    private final long syncIntervalMillis;
+    private final int snapshotEvery;
+
+    // Blokada, a nie monitor: wątki wirtualne czekające na nią lub na fsync nie blokują wątku nośnego
+    private final ReentrantLock lock = new ReentrantLock();
+    // Są nowe zmiany, prośba o migawkę albo koniec zwijania
+    private final Condition workAvailable = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+
+    // Chronione blokadą dziennika
+    private FrameWriter pending = new FrameWriter();
+    private FrameWriter writing = new FrameWriter();
+    // Listy ze zmianami w buforze pending
+    private List<ListJournal> pendingJournals = new ArrayList<>();
+    private List<ListJournal> writingJournals = new ArrayList<>();
+    private long appendedSequence;
+    private long durableSequence;
+    private boolean checkpointRequested;
+    // Listy zastąpione w całości; ich rewizja mogła się cofnąć, więc migawka nie czeka na dawne rewizje
+    private List<ListJournal> replacedJournals = new ArrayList<>();
+    // Czekający na fsync bez blokowania wątku, w kolejności sekwencji, na którą czekają
+    private final ArrayDeque<DurableCallback> durableCallbacks = new ArrayDeque<>();
+
+    // Używane tylko przez wątek zapisu
+    private FileChannel segment;
+    private long segmentNumber;
+    private final Set<ListJournal> segmentJournals = new HashSet<>();
+    private final List<Path> closedSegments = new ArrayList<>();
+    private final Set<ListJournal> closedJournals = new HashSet<>();
+    private long changesSinceSnapshot;
+    private volatile boolean compacting;
+
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+    // Liczba bajtów zapisanych jednym wywołaniem (group commit)
+    private final LatencyHistogram commitBytes = new LatencyHistogram();
+
+    // Dziennik jednej listy. Rewizje są chronione blokadą dziennika (pending) albo należą do wątku zapisu.
+    private final class ListJournal implements ChangeJournal {
+        final String listId;
+        final ProductStore store;
+        // Najwyższa rewizja w buforze pending, 0 gdy lista nie ma tam zmian
+        long pendingMaxRevision;
+        long writingMaxRevision;
+        long segmentMaxRevision;
+        long closedMaxRevision;
+
+        ListJournal(String listId, ProductStore store) {
+            this.listId = listId;
+            this.store = store;
+        }
+
+        @Override
+        public void append(Change change) {
+            lock.lock();
+            int recordStart = pending.size();
+            try {
+                pending.beginFrame();
+                pending.writeString(listId);
+                pending.writeInt(1);
+                pending.writeChange(change);
+                pending.endFrameWithChecksum();
+                appended(this, change.revision, 1);
+            } catch (RuntimeException | Error e) {
+                // Lista nie wprowadzi zmiany, której nie ma w dzienniku, więc niepełny rekord też znika
+                pending.truncate(recordStart);
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Cała paczka w jednym rekordzie, więc po awarii odtwarza się w całości albo wcale
+        @Override
+        public void appendAll(List<Change> changes) {
+            lock.lock();
+            int recordStart = pending.size();
+            try {
+                pending.beginFrame();
+                pending.writeString(listId);
+                pending.writeInt(changes.size());
+                long maxRevision = 0;
+                for (Change change : changes) {
+                    pending.writeChange(change);
+                    maxRevision = Math.max(maxRevision, change.revision);
+                }
+                pending.endFrameWithChecksum();
+                appended(this, maxRevision, changes.size());
+            } catch (RuntimeException | Error e) {
+                pending.truncate(recordStart);
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void checkpoint() {
+            lock.lock();
+            try {
+                replacedJournals.add(this);
+                checkpointRequested = true;
+                workAvailable.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class DurableCallback {
+        final long sequence;
+        final Runnable callback;
+
+        DurableCallback(long sequence, Runnable callback) {
+            this.sequence = sequence;
+            this.callback = callback;
+        }
+    }
+
+    private WriteAheadLog(ListPartition partition, Path directory, ServerConfig config) {
+        this.partition = partition;
+        this.directory = directory;
+        this.durability = config.durability;
+        this.syncIntervalMillis = config.syncIntervalMillis;
+        this.snapshotEvery = config.snapshotEvery;
+    }
+
+    // Odtwarza listy partycji z katalogu, a potem dopisuje dalej do ostatniego segmentu dziennika, więc ponowne
+    // uruchomienia nie mnożą plików. Listy tworzone później dostają dziennik przez journal.
+    static WriteAheadLog open(ListPartition partition, Path directory, ServerConfig config) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(partition, directory, config);
+        Files.createDirectories(directory);
+        log.recover();
+        log.openSegment(Math.max(log.segmentNumber, 1));
+
+        Thread writer = new Thread(log::writeLoop, "wal-writer-" + partition.index);
+        writer.setDaemon(true);
+        writer.start();
+        return log;
+    }
+
+    ChangeJournal journal(String listId, ProductStore store) {
+        ListJournal journal = new ListJournal(listId, store);
+        // Po odtworzeniu wszystkie zmiany listy są już widoczne, a dziennik nie ma jej nowszych rekordów
+        journal.closedMaxRevision = store.revision();
+        return journal;
+    }
+
+    void registerMetrics(ServerMetrics metrics, String prefix) {
+        metrics.timeHistogram(prefix + "wal.fsync", syncLatency);
+        metrics.sizeHistogram(prefix + "wal.commit_bytes", commitBytes);
+        metrics.gauge(prefix + "wal.pending_bytes", this::pendingBytes);
+    }
+
+    private long pendingBytes() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wywoływane pod blokadą dziennika
+    private void appended(ListJournal journal, long revision, int changes) {
+        if (journal.pendingMaxRevision == 0) {
+            pendingJournals.add(journal);
+        }
+        journal.pendingMaxRevision = Math.max(journal.pendingMaxRevision, revision);
+        appendedSequence += changes;
+        workAvailable.signal();
+    }
+
+    // W trybie SYNC czeka, aż wszystko dopisane do tej pory będzie na dysku; wywoływane
+    // przed wysłaniem odpowiedzi, więc klient nie dostaje potwierdzenia zmiany, która mogłaby zginąć
+    void awaitDurable() {
+        if (durability != ServerConfig.Durability.SYNC) {
+            return;
+        }
+        lock.lock();
+        try {
+            long target = appendedSequence;
+            while (durableSequence < target) {
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Jak awaitDurable, ale callback wywoła wątek zapisu po fsync. Zwraca false, gdy nie ma na co czekać;
+    // callback nie jest wtedy wywoływany.
+    boolean deferUntilDurable(Runnable callback) {
+        if (durability != ServerConfig.Durability.SYNC) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (durableSequence >= appendedSequence) {
+                return false;
+            }
+            durableCallbacks.add(new DurableCallback(appendedSequence, callback));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        long lastSync = System.nanoTime();
+        long writtenSequence = 0;
+        long syncedSequence = 0;
+        while (true) {
+            FrameWriter batch;
+            List<ListJournal> batchJournals;
+            long batchSequence;
+            boolean checkpoint;
+            List<ListJournal> replaced = null;
+            lock.lock();
+            try {
+                try {
+                    while (pending.size() == 0 && !(checkpointRequested && !compacting)) {
+                        if (writtenSequence > syncedSequence) {
+                            long remaining = syncIntervalMillis - (System.nanoTime() - lastSync) / 1_000_000;
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            workAvailable.await(remaining, TimeUnit.MILLISECONDS);
+                        } else {
+                            workAvailable.await();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                batchJournals = pendingJournals;
+                pendingJournals = writingJournals;
+                writingJournals = batchJournals;
+                for (ListJournal journal : batchJournals) {
+                    journal.writingMaxRevision = journal.pendingMaxRevision;
+                    journal.pendingMaxRevision = 0;
+                }
+                batchSequence = appendedSequence;
+                // Migawka w trakcie zapisu mogła nie objąć listy zastąpionej przed chwilą, więc prośba czeka
+                checkpoint = checkpointRequested && !compacting;
+                if (checkpoint) {
+                    checkpointRequested = false;
+                    replaced = replacedJournals;
+                    replacedJournals = new ArrayList<>();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (batch.size() > 0) {
+                    commitBytes.record(batch.size());
+                    batch.writeTo(Channels.newOutputStream(segment));
+                    batch.reset();
+                    changesSinceSnapshot += batchSequence - writtenSequence;
+                    writtenSequence = batchSequence;
+                    for (ListJournal journal : batchJournals) {
+                        journal.segmentMaxRevision = Math.max(journal.segmentMaxRevision, journal.writingMaxRevision);
+                        segmentJournals.add(journal);
+                    }
+                }
+                batchJournals.clear();
+                if (replaced != null) {
+                    for (ListJournal journal : replaced) {
+                        journal.segmentMaxRevision = 0;
+                        journal.closedMaxRevision = 0;
+                    }
+                }
+                if (durability == ServerConfig.Durability.SYNC
+                        || (System.nanoTime() - lastSync) / 1_000_000 >= syncIntervalMillis) {
+                    long syncStart = System.nanoTime();
+                    segment.force(false);
+                    lastSync = System.nanoTime();
+                    syncLatency.record(lastSync - syncStart);
+                    syncedSequence = writtenSequence;
+                    List<Runnable> callbacks = new ArrayList<>();
+                    lock.lock();
+                    try {
+                        durableSequence = syncedSequence;
+                        durable.signalAll();
+                        while (!durableCallbacks.isEmpty() && durableCallbacks.peek().sequence <= durableSequence) {
+                            callbacks.add(durableCallbacks.poll().callback);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    for (Runnable callback : callbacks) {
+                        callback.run();
+                    }
+                }
+                if ((changesSinceSnapshot >= snapshotEvery || checkpoint) && !compacting) {
+                    startCompaction();
+                }
+            } catch (IOException e) {
+                // Bez działającego dziennika nie możemy obiecać trwałości kolejnych zmian
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    // Wątek zapisu przełącza się na nowy segment, a migawkę i usunięcie starych segmentów
+    // wykonuje osobny wątek, żeby nie wstrzymywać dopisywania zmian
+    private void startCompaction() throws IOException {
+        segment.force(false);
+        segment.close();
+        closedSegments.add(segmentPath(segmentNumber));
+        for (ListJournal journal : segmentJournals) {
+            journal.closedMaxRevision = Math.max(journal.closedMaxRevision, journal.segmentMaxRevision);
+            closedJournals.add(journal);
+        }
+        openSegment(segmentNumber + 1);
+        changesSinceSnapshot = 0;
+
+        List<Path> obsolete = new ArrayList<>(closedSegments);
+        Map<ProductStore, Long> coveredRevisions = new HashMap<>();
+        for (ListJournal journal : closedJournals) {
+            coveredRevisions.put(journal.store, journal.closedMaxRevision);
+        }
+        closedSegments.clear();
+        closedJournals.clear();
+        compacting = true;
+        Thread compaction = new Thread(() -> {
+            try {
+                // Migawka musi zawierać wszystkie zmiany z zamykanych segmentów
+                for (Map.Entry<ProductStore, Long> covered : coveredRevisions.entrySet()) {
+                    covered.getKey().awaitStable(covered.getValue());
+                }
+                writeSnapshot();
+                for (Path path : obsolete) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                // Stare segmenty zostają na dysku i wystarczą do odtworzenia listy
+                e.printStackTrace();
+            } finally {
+                // Wątek zapisu może czekać z prośbą o migawkę na koniec tej
+                lock.lock();
+                try {
+                    compacting = false;
+                    workAvailable.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, "wal-compaction");
+        compaction.setDaemon(true);
+        compaction.start();
+    }
+
+    // Każda lista jest osobnym rekordem, więc zapis nie trzyma w pamięci kopii całej partycji
+    private void writeSnapshot() throws IOException {
+        Map<String, ProductStore> lists = new HashMap<>(partition.lists());
+        FrameWriter writer = new FrameWriter(64);
+        writer.beginFrame();
+        writer.writeInt(SNAPSHOT_MAGIC);
+        writer.writeInt(lists.size());
+        writer.endFrameWithChecksum();
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.writeTo(channel);
+            for (Map.Entry<String, ProductStore> list : lists.entrySet()) {
+                ProductStore.EncodedSnapshot snapshot = list.getValue().encodedSnapshot();
+                writer.reset();
+                writer.beginFrame();
+                writer.writeString(list.getKey());
+                writer.writeLong(snapshot.revision);
+                writer.writeShared(snapshot.bytes);
+                writer.endFrameWithChecksum();
+                writer.writeTo(channel);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void recover() throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+                FrameReader reader = new FrameReader();
+                long remaining = Files.size(snapshotPath);
+                int recordLength = reader.readRecord(in, remaining);
+                if (recordLength < 0 || reader.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Uszkodzona migawka: " + snapshotPath);
+                }
+                remaining -= recordLength;
+                // Listy są w kolejnych rekordach, więc liczby nie da się sprawdzić względem długości tego rekordu
+                int lists = reader.readInt();
+                for (int i = 0; i < lists; i++) {
+                    recordLength = reader.readRecord(in, remaining);
+                    if (recordLength < 0) {
+                        throw new IOException("Uszkodzona migawka: " + snapshotPath);
+                    }
+                    remaining -= recordLength;
+                    String listId = reader.readString();
+                    long revision = reader.readLong();
+                    Map<String, Long> categoryRevisions = new HashMap<>();
+                    Map<String, Map<String, Product>> productList = reader.readSnapshot(categoryRevisions);
+                    partition.list(listId).restore(new ProductStore.Snapshot(revision, productList, categoryRevisions));
+                }
+            }
+        }
+
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                segments.add(path);
+            }
+        }
+        segments.sort(Comparator.comparingLong(WriteAheadLog::segmentNumber));
+        long replayed = 0;
+        for (Path path : segments) {
+            replayed += replaySegment(path);
+            segmentNumber = Math.max(segmentNumber, segmentNumber(path));
+            closedSegments.add(path);
+        }
+        // Ostatni segment zostaje otwarty do dopisywania; odtworzone zmiany liczą się do następnej migawki
+        if (!segments.isEmpty()) {
+            closedSegments.remove(closedSegments.size() - 1);
+        }
+        changesSinceSnapshot = replayed;
+        if (!partition.lists().isEmpty() || !segments.isEmpty()) {
+            System.out.println("Partycja " + partition.index + ": odtworzono list " + partition.lists().size()
+                    + " (segmentów dziennika: " + segments.size() + ")");
+        }
+    }
+
+    // Zwraca liczbę odtworzonych zmian
+    private long replaySegment(Path path) throws IOException {
+        long validLength = 0;
+        long replayed = 0;
+        long size = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            FrameReader reader = new FrameReader();
+            int recordLength;
+            while ((recordLength = reader.readRecord(in, size - validLength)) > 0) {
+                ProductStore store = partition.list(reader.readString());
+                int count = reader.readCount();
+                for (int i = 0; i < count; i++) {
+                    store.replay(reader.readChange());
+                }
+                replayed += count;
+                validLength += recordLength;
+            }
+        }
+        // Rekord przerwany awarią w trakcie zapisu nie został nikomu potwierdzony
+        if (validLength < size) {
+            System.err.println("Obcięto niepełny rekord na końcu " + path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return replayed;
+    }
+
+    private void openSegment(long number) throws IOException {
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentNumber = number;
+        for (ListJournal journal : segmentJournals) {
+            journal.segmentMaxRevision = 0;
+        }
+        segmentJournals.clear();
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,88 @@
+import java.net.InetAddress;
+
+// Limit połączeń i kubełek żetonów wspólny dla wszystkich połączeń jednego adresu klienta
+class AdmissionControlTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("AdmissionControlTest");
+        Check.run("połączenia ponad limit są odrzucane do czasu zamknięcia innego", AdmissionControlTest::connectionLimit);
+        Check.run("klient może wysłać naraz tyle żądań, ile ma żetonów", AdmissionControlTest::burst);
+        Check.run("żetony wracają z czasem", AdmissionControlTest::refill);
+        Check.run("połączenia jednego adresu dzielą żetony, inne adresy mają własne", AdmissionControlTest::bucketPerAddress);
+        Check.run("bez limitu żądań każde żądanie przechodzi", AdmissionControlTest::noRateLimit);
+        Check.run("ustawienia limitów z argumentów", AdmissionControlTest::configuration);
+    }
+
+    private static void connectionLimit() throws Exception {
+        AdmissionControl admission = admission("--max-connections=2");
+        InetAddress address = InetAddress.getByName("10.0.0.1");
+        AdmissionControl.Client first = admission.admit(address);
+        Check.isTrue(first != null, "pierwsze połączenie");
+        Check.isTrue(admission.admit(InetAddress.getByName("10.0.0.2")) != null, "drugie połączenie");
+        Check.equal(null, admission.admit(address), "trzecie połączenie");
+        admission.release(first);
+        Check.isTrue(admission.admit(address) != null, "połączenie po zamknięciu innego");
+    }
+
+    private static void burst() throws Exception {
+        AdmissionControl admission = admission("--rate-limit=1", "--rate-burst=3");
+        AdmissionControl.Client client = admission.admit(InetAddress.getByName("10.0.0.1"));
+        for (int i = 0; i < 3; i++) {
+            Check.isTrue(admission.tryAcquire(client), "żądanie " + (i + 1));
+        }
+        Check.isTrue(!admission.tryAcquire(client), "żądanie ponad limit");
+    }
+
+    private static void refill() throws Exception {
+        AdmissionControl admission = admission("--rate-limit=20", "--rate-burst=1");
+        AdmissionControl.Client client = admission.admit(InetAddress.getByName("10.0.0.1"));
+        Check.isTrue(admission.tryAcquire(client), "pierwsze żądanie");
+        Check.isTrue(!admission.tryAcquire(client), "drugie żądanie od razu");
+        Thread.sleep(200);
+        Check.isTrue(admission.tryAcquire(client), "żądanie po chwili");
+        Check.isTrue(!admission.tryAcquire(client), "kubełek nie rośnie ponad rozmiar");
+    }
+
+    private static void bucketPerAddress() throws Exception {
+        AdmissionControl admission = admission("--rate-limit=1", "--rate-burst=2");
+        InetAddress address = InetAddress.getByName("10.0.0.1");
+        AdmissionControl.Client first = admission.admit(address);
+        AdmissionControl.Client second = admission.admit(address);
+        AdmissionControl.Client other = admission.admit(InetAddress.getByName("10.0.0.2"));
+        Check.isTrue(admission.tryAcquire(first), "pierwsze połączenie");
+        Check.isTrue(admission.tryAcquire(second), "drugie połączenie");
+        Check.isTrue(!admission.tryAcquire(first), "żetony adresu wyczerpane");
+        Check.isTrue(admission.tryAcquire(other), "inny adres");
+
+        // Adres bez otwartych połączeń zaczyna od pełnego kubełka
+        admission.release(first);
+        admission.release(second);
+        Check.isTrue(admission.tryAcquire(admission.admit(address)), "nowe połączenie adresu");
+    }
+
+    private static void noRateLimit() throws Exception {
+        AdmissionControl admission = admission();
+        AdmissionControl.Client client = admission.admit(InetAddress.getByName("10.0.0.1"));
+        for (int i = 0; i < 10_000; i++) {
+            Check.isTrue(admission.tryAcquire(client), "żądanie " + (i + 1));
+        }
+    }
+
+    private static void configuration() {
+        ServerConfig config = ServerConfig.fromArgs(new String[]{"--max-connections=0", "--rate-limit=200",
+                "--rate-burst=50", "--queue-timeout-ms=250"});
+        Check.equal(0, config.maxConnections, "limit połączeń");
+        Check.equal(200, config.rateLimit, "limit żądań");
+        Check.equal(50, config.rateBurst, "rozmiar kubełka");
+        Check.equal(250L, config.queueTimeoutMillis, "czas w kolejce");
+        Check.fails(IllegalArgumentException.class, () -> ServerConfig.fromArgs(new String[]{"--rate-limit=-1"}), "ujemny limit");
+    }
+
+    private static AdmissionControl admission(String... args) {
+        return new AdmissionControl(ServerConfig.fromArgs(args));
+    }
+}
@@ -0,0 +1,17 @@
+// Uruchomienie: java -cp out/production/Projekt:out/test/test AllTests
+class AllTests {
+    public static void main(String[] args) {
+        DeltaSyncTest.run();
+        MergeRuleTest.run();
+        WireCodecTest.run();
+        WalRecoveryTest.run();
+        CsvTest.run();
+        BatchTest.run();
+        SearchOrderTest.run();
+        ReplicationTest.run();
+        OfflineSyncTest.run();
+        AdmissionControlTest.run();
+        ColumnarTableTest.run();
+        Check.finish();
+    }
+}
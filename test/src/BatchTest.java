@@ -0,0 +1,125 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+// Paczka operacji (BATCH) wykonuje się w całości jednym zapisem albo wcale; odrzucona paczka
+// podaje numer operacji, która ją zatrzymała
+class BatchTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("BatchTest");
+        Check.run("paczka wykonuje wszystkie operacje po kolei", BatchTest::appliesAll);
+        Check.run("odrzucona operacja wycofuje całą paczkę", BatchTest::rejectedBatchChangesNothing);
+        Check.run("operacje widzą skutki wcześniejszych operacji paczki", BatchTest::operationsSeeEarlierOnes);
+        Check.run("paczka trafia do dziennika jednym zapisem", BatchTest::singleJournalWrite);
+        Check.run("klient dostaje numer odrzuconej operacji", BatchTest::clientGetsRejectedIndex);
+    }
+
+    private static void appliesAll() {
+        ProductStore store = store();
+        long revision = store.revision();
+        long last = store.applyBatch(List.of(
+                BatchOperation.addCategory("napoje"),
+                BatchOperation.addProduct("napoje", "sok", 2, "l"),
+                BatchOperation.editProduct("owoce", "jabłko", "jabłka", 3, "kg"),
+                BatchOperation.removeCategory("warzywa")));
+        Check.equal(Map.of("owoce", Map.of("jabłka", new Product("jabłka", 3, "kg")),
+                "napoje", Map.of("sok", new Product("sok", 2, "l"))), store.snapshot().productList, "lista");
+        Check.equal(store.revision(), last, "rewizja ostatniej zmiany");
+        Check.isTrue(last > revision, "nowa rewizja");
+    }
+
+    private static void rejectedBatchChangesNothing() {
+        ProductStore store = store();
+        long revision = store.revision();
+        Map<String, Map<String, Product>> before = store.snapshot().productList;
+        List<List<BatchOperation>> rejectedBatches = List.of(
+                List.of(BatchOperation.addProduct("owoce", "gruszka", 1, "kg"),
+                        BatchOperation.editProduct("owoce", "śliwka", "śliwki", 1, "kg")),
+                List.of(BatchOperation.clear(),
+                        BatchOperation.addProduct("owoce", "gruszka", 1, "kg"),
+                        BatchOperation.addProduct("owoce", "gruszka", 1, "l")),
+                List.of(BatchOperation.removeCategory("warzywa"),
+                        BatchOperation.addCategory("nowa"),
+                        BatchOperation.editProduct("warzywa", "marchew", "marchewka", 1, "kg")));
+        int[] rejectedIndexes = {1, 2, 2};
+        for (int i = 0; i < rejectedBatches.size(); i++) {
+            List<BatchOperation> batch = rejectedBatches.get(i);
+            OperationRejectedException rejected = Check.fails(OperationRejectedException.class, () -> store.applyBatch(batch), "paczka " + (i + 1));
+            Check.equal(rejectedIndexes[i], rejected.index, "numer operacji w paczce " + (i + 1));
+            Check.isTrue(!rejected.conflict, "bez konfliktu");
+            Check.equal(before, store.snapshot().productList, "lista po paczce " + (i + 1));
+            Check.equal(revision, store.revision(), "rewizja po paczce " + (i + 1));
+        }
+    }
+
+    private static void operationsSeeEarlierOnes() {
+        ProductStore store = store();
+        store.applyBatch(List.of(
+                BatchOperation.clear(),
+                BatchOperation.addProduct("owoce", "jabłko", 1, "sztuki"),
+                BatchOperation.addProduct("owoce", "jabłko", 2, "sztuki"),
+                BatchOperation.editProduct("owoce", "jabłko", "jabłka", 4, "sztuki"),
+                BatchOperation.addCategory("warzywa")));
+        Check.equal(Map.of("owoce", Map.of("jabłka", new Product("jabłka", 4, "sztuki")), "warzywa", Map.of()),
+                store.snapshot().productList, "lista");
+    }
+
+    private static void singleJournalWrite() {
+        ProductStore store = store();
+        int[] writes = new int[1];
+        int[] changes = new int[1];
+        store.setJournal(new ChangeJournal() {
+            @Override
+            public void append(Change change) {
+                appendAll(List.of(change));
+            }
+
+            @Override
+            public void appendAll(List<Change> batch) {
+                writes[0]++;
+                changes[0] += batch.size();
+            }
+
+            @Override
+            public void checkpoint() {
+            }
+        });
+        long revision = store.revision();
+        store.applyBatch(List.of(
+                BatchOperation.addProduct("owoce", "gruszka", 1, "kg"),
+                BatchOperation.addProduct("owoce", "śliwka", 1, "kg"),
+                BatchOperation.removeProduct("warzywa", "marchew")));
+        Check.equal(1, writes[0], "zapisy do dziennika");
+        Check.equal(3, changes[0], "zmiany w zapisie");
+        Check.equal(revision + 3, store.revision(), "rewizja");
+    }
+
+    private static void clientGetsRejectedIndex() throws Exception {
+        ProductListManager client = TestServer.client("batch-1");
+        try {
+            client.addProduct("owoce", "jabłko", 1, "kg");
+            CompletionException failure = Check.fails(CompletionException.class, () -> client.batchAsync(List.of(
+                    BatchOperation.addProduct("owoce", "gruszka", 1, "kg"),
+                    BatchOperation.addProduct("owoce", "jabłko", 1, "l"))).join(), "paczka");
+            Check.isTrue(failure.getCause() instanceof RequestRejectedException, "odrzucenie: " + failure.getCause());
+            Check.equal(1, ((RequestRejectedException) failure.getCause()).operationIndex, "numer operacji");
+
+            client.refresh();
+            Check.equal(Map.of("owoce", Map.of("jabłko", new Product("jabłko", 1, "kg"))), TestServer.copy(client), "lista klienta");
+        } finally {
+            client.close();
+        }
+    }
+
+    private static ProductStore store() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("owoce", "jabłko", 1, "kg");
+        store.addProduct("warzywa", "marchew", 1, "kg");
+        return store;
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Objects;
+
+// Prosty zamiennik JUnit dla klas z pakietu domyślnego: każda klasa testów ma main, który uruchamia jej
+// przypadki przez Check.run, a nieudane sprawdzenie rzuca AssertionError (działa bez -ea).
+// Wszystkie testy: java -cp out/production/Projekt:out/test/test AllTests
+final class Check {
+    interface Case {
+        void run() throws Exception;
+    }
+
+    private static int failures;
+
+    private Check() {
+    }
+
+    static void run(String name, Case test) {
+        try {
+            test.run();
+            System.out.println("  ok    " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("  BŁĄD  " + name + ": " + e);
+            e.printStackTrace(System.out);
+        }
+    }
+
+    // Kończy proces, także wątki serwera testowego; kod 1, gdy któryś przypadek się nie udał
+    static void finish() {
+        if (failures > 0) {
+            System.out.println("Nieudanych przypadków: " + failures);
+            System.exit(1);
+        }
+        System.out.println("Wszystkie przypadki udane");
+        System.exit(0);
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": oczekiwano " + expected + ", jest " + actual);
+        }
+    }
+
+    static void isTrue(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    static <T extends Throwable> T fails(Class<T> type, Case action, String what) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError(what + ": oczekiwano " + type.getSimpleName() + ", jest " + e, e);
+        }
+        throw new AssertionError(what + ": oczekiwano " + type.getSimpleName());
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Kolumnowy układ produktów zachowuje się tak samo jak tablica z obiektami Product, a skompresowana lista
+// dociera do klienta taka sama jak zwykła
+class ColumnarTableTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("ColumnarTableTest");
+        Check.run("losowe operacje dają to samo co HashProductTable", ColumnarTableTest::sameAsHashTable);
+        Check.run("kopia nie zmienia się razem z oryginałem", ColumnarTableTest::copyIsIndependent);
+        Check.run("lista w kolumnach ma te same produkty, sumy i wyniki wyszukiwania", ColumnarTableTest::sameStore);
+        Check.run("skompresowana lista odczytuje się jak zwykła", ColumnarTableTest::deflatedSnapshot);
+    }
+
+    private static void sameAsHashTable() {
+        Random random = new Random(7);
+        ProductTable columnar = new ColumnarProductTable();
+        ProductTable hash = new HashProductTable();
+        for (int i = 0; i < 50_000; i++) {
+            String name = "p" + random.nextInt(400);
+            int action = random.nextInt(10);
+            if (action < 6) {
+                Product product = new Product(name, random.nextInt(100) / 4.0, WireFormat.UNITS[random.nextInt(WireFormat.UNITS.length)]);
+                Check.equal(hash.put(product), columnar.put(product), "put " + name);
+            } else if (action < 9) {
+                Check.equal(hash.remove(name), columnar.remove(name), "remove " + name);
+            } else if (random.nextInt(200) == 0) {
+                hash.clear();
+                columnar.clear();
+            }
+            Check.equal(hash.get(name), columnar.get(name), "get " + name);
+            Check.equal(hash.size(), columnar.size(), "size");
+        }
+        Check.equal(hash.toMap(), columnar.toMap(), "toMap");
+        Set<String> names = new HashSet<>();
+        columnar.forEachName(names::add);
+        Check.equal(hash.toMap().keySet(), names, "forEachName");
+        Check.equal(columnar.size(), names.size(), "nazwy bez powtórzeń");
+    }
+
+    private static void copyIsIndependent() {
+        ProductTable table = new ColumnarProductTable();
+        for (int i = 0; i < 20; i++) {
+            table.put(new Product("p" + i, i, "kg"));
+        }
+        ProductTable copy = table.copy();
+        Map<String, Product> before = copy.toMap();
+        table.put(new Product("p0", 99, "l"));
+        table.remove("p1");
+        for (int i = 20; i < 100; i++) {
+            table.put(new Product("p" + i, i, "kg"));
+        }
+        Check.equal(before, copy.toMap(), "kopia po zmianach oryginału");
+
+        copy.remove("p2");
+        Check.isTrue(table.get("p2") != null, "oryginał po zmianie kopii");
+        Check.equal(new Product("p0", 99, "l"), table.get("p0"), "zmieniony produkt");
+        Check.equal(99, table.size(), "rozmiar oryginału");
+    }
+
+    private static void sameStore() {
+        ProductStore hash = new ProductStore(WireFormat.availableUnits(), new ProductStore.Stats(), ServerConfig.Storage.HASH);
+        ProductStore columnar = new ProductStore(WireFormat.availableUnits(), new ProductStore.Stats(), ServerConfig.Storage.COLUMNAR);
+        for (ProductStore store : List.of(hash, columnar)) {
+            fill(store);
+        }
+        Check.equal(hash.snapshot().productList, columnar.snapshot().productList, "lista");
+        Check.equal(hash.revision(), columnar.revision(), "rewizja");
+        // UnitTotal nie ma equals
+        Check.equal(hash.totals().toString(), columnar.totals().toString(), "sumy");
+        Check.equal(hash.searchBySubstring("rch", 10).toString(), columnar.searchBySubstring("rch", 10).toString(), "wyszukiwanie");
+    }
+
+    private static void deflatedSnapshot() throws IOException {
+        ProductStore store = new ProductStore(WireFormat.availableUnits(), new ProductStore.Stats(), ServerConfig.Storage.COLUMNAR);
+        fill(store);
+        ProductStore.EncodedSnapshot encoded = store.encodedSnapshot();
+
+        Map<String, Long> plainRevisions = new HashMap<>();
+        Map<String, Map<String, Product>> plain = frame(encoded.bytes).readSnapshot(plainRevisions);
+        Map<String, Long> inflatedRevisions = new HashMap<>();
+        Map<String, Map<String, Product>> inflated = frame(encoded.deflated()).readDeflated().readSnapshot(inflatedRevisions);
+
+        Check.equal(store.snapshot().productList, plain, "lista bez kompresji");
+        Check.equal(plain, inflated, "lista po kompresji");
+        Check.equal(plainRevisions, inflatedRevisions, "rewizje kategorii");
+        Check.isTrue(encoded.deflated().remaining() < encoded.bytes.remaining(), "kompresja zmniejsza listę");
+    }
+
+    private static void fill(ProductStore store) {
+        for (int i = 0; i < 2000; i++) {
+            store.addProduct("k" + i % 5, "marchew " + i % 700, 1, i % 700 % 3 == 0 ? "kg" : "sztuki");
+        }
+        store.editProduct("k0", "marchew 0", "por", 2, "kg");
+        store.removeProduct("k1", "marchew 1");
+        store.applyBatch(List.of(BatchOperation.removeCategory("k4")));
+    }
+
+    // Ramka z samymi bajtami współdzielonymi, tak jak w odpowiedzi serwera
+    private static FrameReader frame(ByteBuffer bytes) throws IOException {
+        FrameWriter writer = new FrameWriter();
+        writer.beginFrame();
+        writer.writeShared(bytes);
+        writer.endFrame();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        FrameReader reader = new FrameReader();
+        Check.isTrue(reader.readFrame(new DataInputStream(new ByteArrayInputStream(out.toByteArray()))), "ramka");
+        return reader;
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pola zapisane przez CsvWriter odczytują się przez CsvReader bez zmian (RFC 4180), także z przecinkami,
+// cudzysłowami i znakami nowego wiersza w środku pola
+class CsvTest {
+    private static final String[] SPECIAL = {"", "zwykłe", "a,b", "\"", "powiedział \"dość\"", "dwa\r\nwiersze",
+            "tylko\nLF", "tylko\rCR", ",\"\r\n", " spacje "};
+
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("CsvTest");
+        Check.run("pola ze znakami specjalnymi wracają bez zmian", CsvTest::specialFieldsRoundTrip);
+        Check.run("tylko pola ze znakami specjalnymi są w cudzysłowach", CsvTest::quotesOnlyWhenNeeded);
+        Check.run("produkty wracają bez zmian", CsvTest::productsRoundTrip);
+        Check.run("rekordy kończone CRLF, LF albo końcem pliku", CsvTest::lineEndings);
+        Check.run("rekord dłuższy niż bufor czytnika", CsvTest::recordLongerThanBuffer);
+        Check.run("niezamknięty cudzysłów jest błędem", CsvTest::unterminatedQuote);
+    }
+
+    private static void specialFieldsRoundTrip() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (String value : SPECIAL) {
+            CsvWriter.appendField(csv, value);
+            csv.append(',');
+            CsvWriter.appendField(csv, "koniec");
+            csv.append("\r\n");
+        }
+        List<List<String>> records = read(csv.toString());
+        Check.equal(SPECIAL.length, records.size(), "liczba rekordów");
+        for (int i = 0; i < SPECIAL.length; i++) {
+            Check.equal(List.of(SPECIAL[i], "koniec"), records.get(i), "rekord " + (i + 1));
+        }
+    }
+
+    private static void quotesOnlyWhenNeeded() {
+        Check.equal("jabłko", field("jabłko"), "zwykłe pole");
+        Check.equal("\"a,b\"", field("a,b"), "przecinek");
+        Check.equal("\"powiedział \"\"dość\"\"\"", field("powiedział \"dość\""), "cudzysłowy");
+        Check.equal("\"a\r\nb\"", field("a\r\nb"), "nowy wiersz");
+    }
+
+    private static void productsRoundTrip() throws IOException {
+        StringBuilder csv = new StringBuilder();
+        CsvWriter.appendProduct(csv, "owoce, krajowe", new Product("jabłka \"ligol\"", 1.5, "kg"));
+        CsvWriter.appendProduct(csv, "napoje", new Product("sok\r\n1 l", 6, "sztuki"));
+        Check.equal(List.of(List.of("owoce, krajowe", "jabłka \"ligol\"", "1.5", "kg"), List.of("napoje", "sok\r\n1 l", "6.0", "sztuki")),
+                read(csv.toString()), "produkty");
+    }
+
+    private static void lineEndings() throws IOException {
+        Check.equal(List.of(List.of("a", "b"), List.of("c", ""), List.of("d")), read("a,b\r\nc,\nd"), "końce wierszy");
+        Check.equal(List.of(List.of("a"), List.of("")), read("\"a\"\r\n\"\""), "pola w cudzysłowach na końcu");
+        Check.equal(List.of(), read(""), "pusty plik");
+    }
+
+    private static void recordLongerThanBuffer() throws IOException {
+        String value = "x,\"".repeat(50_000);
+        StringBuilder csv = new StringBuilder();
+        CsvWriter.appendField(csv, value);
+        csv.append(",2\r\n");
+        Check.equal(List.of(List.of(value, "2")), read(csv.toString()), "rekord");
+    }
+
+    private static void unterminatedQuote() {
+        Check.fails(EOFException.class, () -> read("a,\"bez końca\r\nb,c"), "rekord");
+    }
+
+    private static String field(String value) {
+        StringBuilder out = new StringBuilder();
+        CsvWriter.appendField(out, value);
+        return out.toString();
+    }
+
+    private static List<List<String>> read(String csv) throws IOException {
+        List<List<String>> records = new ArrayList<>();
+        try (CsvReader reader = new CsvReader(new StringReader(csv))) {
+            List<String> fields = new ArrayList<>();
+            while (reader.readRecord(fields)) {
+                records.add(new ArrayList<>(fields));
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Odpowiedzi niosą tylko zmiany od rewizji znanej klientowi, a całą listę tylko wtedy, gdy tych zmian
+// nie ma już w dzienniku zmian
+class DeltaSyncTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("DeltaSyncTest");
+        Check.run("changesSince zwraca zmiany po znanej rewizji w kolejności", DeltaSyncTest::changesInOrder);
+        Check.run("changesSince bez znanej rewizji albo po przycięciu dziennika wymaga całej listy", DeltaSyncTest::trimmedLog);
+        Check.run("odświeżenie klienta pobiera tylko zmiany", DeltaSyncTest::refreshUsesDelta);
+        Check.run("klient zbyt daleko w tyle dostaje całą listę", DeltaSyncTest::refreshFallsBackToSnapshot);
+    }
+
+    private static void changesInOrder() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("owoce", "jabłko", 1, "kg");
+        long known = store.revision();
+        store.addProduct("owoce", "gruszka", 2, "kg");
+        store.editProduct("owoce", "jabłko", "jabłko", 3, "kg");
+        store.removeProduct("owoce", "gruszka");
+
+        List<Change> changes = store.changesSince(known, store.revision());
+        Check.equal(3, changes.size(), "liczba zmian");
+        for (int i = 0; i < changes.size(); i++) {
+            Check.equal(known + i + 1, changes.get(i).revision, "rewizja zmiany " + i);
+        }
+        Check.equal(Change.Type.REMOVE_PRODUCT, changes.get(2).type, "ostatnia zmiana");
+        Check.equal(List.of(), store.changesSince(store.revision(), store.revision()), "zmiany bieżącej rewizji");
+    }
+
+    private static void trimmedLog() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("k", "p", 1, "kg");
+        long early = store.revision();
+        for (int i = 0; i < 1500; i++) {
+            store.editProduct("k", "p", "p", i + 1, "kg");
+        }
+        Check.isTrue(store.changesSince(-1, store.revision()) == null, "klient bez rewizji");
+        Check.isTrue(store.changesSince(early, store.revision()) == null, "zmiany usunięte z dziennika");
+        Check.equal(10, store.changesSince(store.revision() - 10, store.revision()).size(), "ostatnie zmiany");
+    }
+
+    private static void refreshUsesDelta() throws Exception {
+        ProductListManager writer = TestServer.client("delta-1");
+        ProductListManager reader = TestServer.client("delta-1");
+        try {
+            writer.addProduct("owoce", "jabłko", 1, "kg");
+            writer.addProduct("warzywa", "marchew", 2, "kg");
+            reader.refresh();
+            Check.equal(TestServer.copy(writer), TestServer.copy(reader), "lista po pierwszym odczycie");
+
+            writer.addProduct("owoce", "gruszka", 3, "kg");
+            writer.editProduct("owoce", "jabłko", "jabłko", 5, "kg");
+            writer.removeProduct("warzywa", "marchew");
+            long snapshots = TestServer.metric("responses.snapshots");
+            reader.refresh();
+            Check.equal(snapshots, TestServer.metric("responses.snapshots"), "odpowiedzi z całą listą");
+            Check.equal(TestServer.copy(writer), TestServer.copy(reader), "lista po zmianach");
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    private static void refreshFallsBackToSnapshot() throws Exception {
+        ProductListManager writer = TestServer.client("delta-2");
+        ProductListManager reader = TestServer.client("delta-2");
+        try {
+            writer.addProduct("k", "pierwszy", 1, "kg");
+            reader.refresh();
+            CompletableFuture<Void> last = null;
+            for (int i = 0; i < 1500; i++) {
+                last = writer.addProductAsync("k", "p" + i, 1, "kg");
+            }
+            last.join();
+            long snapshots = TestServer.metric("responses.snapshots");
+            reader.refresh();
+            Check.equal(snapshots + 1, TestServer.metric("responses.snapshots"), "odpowiedzi z całą listą");
+            Check.equal(TestServer.copy(writer), TestServer.copy(reader), "lista po całej liście");
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.List;
+import java.util.Map;
+
+// Produkty kategorii są kluczowane nazwą: ten sam produkt w tej samej jednostce sumuje ilości,
+// w innej jednostce jest odrzucany, a odrzucona zmiana niczego na liście nie zostawia
+class MergeRuleTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("MergeRuleTest");
+        Check.run("produkty o tych samych polach są równe", MergeRuleTest::valueEquality);
+        Check.run("ten sam produkt w tej samej jednostce sumuje ilości", MergeRuleTest::sameUnitSums);
+        Check.run("ten sam produkt w innej jednostce jest odrzucany", MergeRuleTest::otherUnitIsRejected);
+        Check.run("zmiana nazwy na istniejący produkt łączy oba", MergeRuleTest::renameMerges);
+        Check.run("import łączy też produkty wewnątrz paczki", MergeRuleTest::importMergesWithinBatch);
+        Check.run("odrzucony produkt nie tworzy kategorii", MergeRuleTest::rejectedProductCreatesNoCategory);
+    }
+
+    private static void valueEquality() {
+        Product product = new Product("mleko", 2, "l");
+        Check.equal(new Product("mleko", 2, "l"), product, "ten sam produkt");
+        Check.equal(new Product("mleko", 2, "l").hashCode(), product.hashCode(), "skrót");
+        Check.isTrue(!product.equals(new Product("mleko", 2, "kg")), "inna jednostka");
+        Check.isTrue(!product.equals(new Product("mleko", 3, "l")), "inna ilość");
+    }
+
+    private static void sameUnitSums() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("nabiał", "mleko", 1, "l");
+        Check.isTrue(store.addProduct("nabiał", "mleko", 2.5, "l") > 0, "produkt dodany");
+        Check.equal(Map.of("nabiał", Map.of("mleko", new Product("mleko", 3.5, "l"))), store.snapshot().productList, "lista");
+    }
+
+    private static void otherUnitIsRejected() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("nabiał", "mleko", 1, "l");
+        long revision = store.revision();
+        Check.equal(0L, store.addProduct("nabiał", "mleko", 1, "kg"), "produkt odrzucony");
+        Check.equal(revision, store.revision(), "rewizja");
+        Check.equal(new Product("mleko", 1, "l"), store.snapshot().productList.get("nabiał").get("mleko"), "produkt");
+    }
+
+    private static void renameMerges() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("owoce", "jabłko", 1, "kg");
+        store.addProduct("owoce", "jabłka", 2, "kg");
+        store.addProduct("owoce", "banan", 3, "sztuki");
+        store.editProduct("owoce", "jabłko", "jabłka", 1.5, "kg");
+        Check.equal(Map.of("jabłka", new Product("jabłka", 3.5, "kg"), "banan", new Product("banan", 3, "sztuki")),
+                store.snapshot().productList.get("owoce"), "po zmianie nazwy");
+
+        long revision = store.revision();
+        Check.equal(0L, store.editProduct("owoce", "banan", "jabłka", 1, "sztuki"), "zmiana na inną jednostkę");
+        Check.equal(revision, store.revision(), "rewizja");
+        Check.equal(2, store.snapshot().productList.get("owoce").size(), "oba produkty zostały");
+    }
+
+    private static void importMergesWithinBatch() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        int rejected = store.addProducts("pieczywo", List.of(new Product("bułka", 2, "sztuki"),
+                new Product("bułka", 3, "sztuki"), new Product("bułka", 1, "kg"), new Product("chleb", 1, "sztuki")));
+        Check.equal(1, rejected, "odrzucone");
+        Check.equal(Map.of("bułka", new Product("bułka", 5, "sztuki"), "chleb", new Product("chleb", 1, "sztuki")),
+                store.snapshot().productList.get("pieczywo"), "kategoria");
+    }
+
+    private static void rejectedProductCreatesNoCategory() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        Check.equal(0L, store.addProduct("nowa", "mleko", 1, "beczki"), "nieznana jednostka");
+        Check.equal(1, store.addProducts("nowa", List.of(new Product("mleko", 1, "beczki"))), "import z nieznaną jednostką");
+        Check.equal(Map.of(), store.snapshot().productList, "lista");
+        Check.equal(0L, store.revision(), "rewizja");
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Zmiany zrobione bez połączenia: każda operacja jest sprawdzana względem własnej rewizji bazowej,
+// a kolejka zmian przetrwa w lokalnej kopii listy ponowne uruchomienie klienta
+class OfflineSyncTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("OfflineSyncTest");
+        Check.run("wcześniejsze operacje tej samej paczki nie są konfliktem", OfflineSyncTest::ownBatchIsNotAConflict);
+        Check.run("zmiana kategorii po rewizji bazowej operacji jest konfliktem", OfflineSyncTest::changeAfterBaseConflicts);
+        Check.run("operacja oparta na nowszej rewizji nie jest konfliktem", OfflineSyncTest::laterBaseDoesNotConflict);
+        Check.run("czyszczenie listy sprawdza wszystkie kategorie", OfflineSyncTest::clearChecksEveryCategory);
+        Check.run("usunięcie kategorii po rewizji bazowej jest konfliktem", OfflineSyncTest::removedCategoryConflicts);
+        Check.run("operacja bez rewizji bazowej nie jest sprawdzana", OfflineSyncTest::unknownBaseIsNotChecked);
+        Check.run("kopia listy zachowuje kolejkę zmian z ich rewizjami", OfflineSyncTest::cacheKeepsQueue);
+    }
+
+    private static void ownBatchIsNotAConflict() {
+        ProductStore store = store();
+        long base = store.revision();
+        store.applyOfflineBatch(List.of(
+                BatchOperation.addProduct("owoce", "gruszka", 1, "kg"),
+                BatchOperation.editProduct("owoce", "gruszka", "gruszki", 2, "kg"),
+                BatchOperation.removeProduct("owoce", "jabłko")), new long[]{base, base, base});
+        Check.equal(Map.of("owoce", Map.of("gruszki", new Product("gruszki", 2, "kg")),
+                "warzywa", Map.of("marchew", new Product("marchew", 1, "kg"))), store.snapshot().productList, "lista");
+    }
+
+    private static void changeAfterBaseConflicts() {
+        ProductStore store = store();
+        long base = store.revision();
+        store.addProduct("owoce", "śliwka", 1, "kg");
+        long revision = store.revision();
+        OperationRejectedException rejected = Check.fails(OperationRejectedException.class, () -> store.applyOfflineBatch(List.of(
+                BatchOperation.addProduct("warzywa", "por", 1, "kg"),
+                BatchOperation.removeProduct("owoce", "jabłko")), new long[]{base, base}), "paczka");
+        Check.isTrue(rejected.conflict, "konflikt");
+        Check.equal(1, rejected.index, "numer operacji");
+        Check.equal(revision, store.revision(), "paczka odrzucona w całości");
+    }
+
+    private static void laterBaseDoesNotConflict() {
+        ProductStore store = store();
+        long base = store.revision();
+        store.addProduct("owoce", "śliwka", 1, "kg");
+        // Klient zobaczył śliwkę, zanim stracił połączenie po raz drugi
+        long laterBase = store.revision();
+        store.applyOfflineBatch(List.of(
+                BatchOperation.addProduct("warzywa", "por", 1, "kg"),
+                BatchOperation.removeProduct("owoce", "śliwka")), new long[]{base, laterBase});
+        Check.equal(Set.of("jabłko"), store.snapshot().productList.get("owoce").keySet(), "owoce");
+        Check.equal(Set.of("marchew", "por"), store.snapshot().productList.get("warzywa").keySet(), "warzywa");
+    }
+
+    private static void clearChecksEveryCategory() {
+        ProductStore store = store();
+        long base = store.revision();
+        store.addProduct("warzywa", "por", 1, "kg");
+        OperationRejectedException rejected = Check.fails(OperationRejectedException.class,
+                () -> store.applyOfflineBatch(List.of(BatchOperation.clear()), new long[]{base}), "czyszczenie");
+        Check.isTrue(rejected.conflict, "konflikt");
+
+        store.applyOfflineBatch(List.of(BatchOperation.clear()), new long[]{store.revision()});
+        Check.equal(Map.of(), store.snapshot().productList, "lista po wyczyszczeniu");
+    }
+
+    private static void removedCategoryConflicts() {
+        ProductStore store = store();
+        long base = store.revision();
+        store.applyBatch(List.of(BatchOperation.removeCategory("warzywa")));
+        OperationRejectedException rejected = Check.fails(OperationRejectedException.class, () -> store.applyOfflineBatch(List.of(
+                BatchOperation.addProduct("owoce", "gruszka", 1, "kg"),
+                BatchOperation.addProduct("warzywa", "por", 1, "kg")), new long[]{base, base}), "paczka");
+        Check.isTrue(rejected.conflict, "konflikt");
+        Check.equal(1, rejected.index, "numer operacji");
+        Check.isTrue(!store.snapshot().productList.containsKey("warzywa"), "kategoria nie wróciła");
+    }
+
+    private static void unknownBaseIsNotChecked() {
+        ProductStore store = store();
+        store.addProduct("owoce", "śliwka", 1, "kg");
+        store.applyOfflineBatch(List.of(BatchOperation.removeProduct("owoce", "jabłko")), new long[]{-1});
+        Check.equal(Set.of("śliwka"), store.snapshot().productList.get("owoce").keySet(), "owoce");
+    }
+
+    private static void cacheKeepsQueue() throws IOException {
+        Path dir = Files.createTempDirectory("cache-test");
+        Path file = dir.resolve("lista.cache");
+        try {
+            ListCache cache = new ListCache(file);
+            Map<String, Map<String, Product>> productList = Map.of("owoce", Map.of("jabłko", new Product("jabłko", 1, "kg")));
+            List<ListCache.OfflineOperation> queue = List.of(
+                    new ListCache.OfflineOperation(7, BatchOperation.addProduct("owoce", "gruszka", 2, "kg")),
+                    new ListCache.OfflineOperation(9, BatchOperation.removeCategory("warzywa")));
+            cache.write(ListCache.encode("zakupy", new ListCache.State(9, productList, Map.of("owoce", 5L), queue)));
+
+            Check.equal(null, cache.load("inna"), "inna lista");
+            ListCache.State loaded = cache.load("zakupy");
+            Check.equal(9L, loaded.revision, "rewizja");
+            Check.equal(productList, loaded.productList, "lista");
+            Check.equal(Map.of("owoce", 5L), loaded.categoryRevisions, "rewizje kategorii");
+            Check.equal(2, loaded.offlineOperations.size(), "kolejka");
+            Check.equal(7L, loaded.offlineOperations.get(0).baseRevision, "rewizja pierwszej operacji");
+            Check.equal(9L, loaded.offlineOperations.get(1).baseRevision, "rewizja drugiej operacji");
+            BatchOperation add = loaded.offlineOperations.get(0).operation;
+            Check.equal(List.of(WireFormat.ADD_PRODUCT, "owoce", "gruszka", 2.0, "kg"),
+                    List.of(add.opcode, add.category, add.name, add.quantity, add.unit), "pierwsza operacja");
+            BatchOperation remove = loaded.offlineOperations.get(1).operation;
+            Check.equal(List.of(WireFormat.REMOVE_CATEGORY, "warzywa"), List.of(remove.opcode, remove.category), "druga operacja");
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static ProductStore store() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("owoce", "jabłko", 1, "kg");
+        store.addProduct("warzywa", "marchew", 1, "kg");
+        return store;
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// Replika partycji serwera testowego: dostaje listy w całości, potem zmiany z rewizjami serwera głównego,
+// a po przerwie dłuższej niż dziennik zmian znów całe listy. Awans repliki nie jest częścią protokołu klientów.
+class ReplicationTest {
+    private static final long WAIT_MILLIS = 10_000;
+
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("ReplicationTest");
+        Check.run("replika dostaje listę, a potem zmiany z tymi samymi rewizjami", ReplicationTest::followsPrimary);
+        Check.run("po przerwie replika dostaje całą listę i śledzi dalej", ReplicationTest::resyncsAfterGap);
+        Check.run("klient nie może awansować repliki", ReplicationTest::promoteIsNotAClientRequest);
+        Check.run("strumień zmian tylko dla adresów z --replication-allow", ReplicationTest::replicationNeedsAllowedAddress);
+    }
+
+    private static void followsPrimary() throws Exception {
+        ProductListManager client = TestServer.client("repl-1");
+        ListPartition replica = new ListPartition(0, WireFormat.availableUnits(), ServerConfig.Storage.HASH);
+        ReplicationFollower follower = new ReplicationFollower(replica, "127.0.0.1", TestServer.port(), 1);
+        try {
+            client.addProduct("owoce", "jabłko", 1, "kg");
+            client.addProduct("warzywa", "marchew", 2, "kg");
+            follower.start();
+            awaitInSync(client, replica.list("repl-1"));
+
+            client.editProduct("owoce", "jabłko", "jabłka", 3, "kg");
+            client.removeCategory("warzywa");
+            client.addProduct("napoje", "sok", 1, "l");
+            awaitInSync(client, replica.list("repl-1"));
+        } finally {
+            follower.stop();
+            client.close();
+        }
+    }
+
+    private static void resyncsAfterGap() throws Exception {
+        ProductListManager client = TestServer.client("repl-2");
+        ListPartition replica = new ListPartition(0, WireFormat.availableUnits(), ServerConfig.Storage.HASH);
+        ProductStore list = replica.list("repl-2");
+        ReplicationFollower follower = new ReplicationFollower(replica, "127.0.0.1", TestServer.port(), 1);
+        try {
+            client.addProduct("stara", "usunięta później", 1, "kg");
+            client.addProduct("k", "p", 1, "kg");
+            follower.start();
+            awaitInSync(client, list);
+            follower.stop();
+
+            // Więcej zmian, niż mieści dziennik zmian serwera głównego
+            client.removeCategory("stara");
+            for (int i = 0; i < 1500; i++) {
+                client.addProductAsync("k", "p" + i % 300, 1, "kg");
+            }
+            client.addProduct("nowa", "q", 1, "kg");
+            follower = new ReplicationFollower(replica, "127.0.0.1", TestServer.port(), 1);
+            follower.start();
+            awaitInSync(client, list);
+            Check.isTrue(!list.snapshot().productList.containsKey("stara"), "kategoria usunięta w czasie przerwy");
+            Check.equal(List.of(), list.searchBySubstring("usunięta", 10), "wyszukiwanie po usunięciu kategorii");
+            Check.equal(301, list.searchByPrefix("p", 1000).size(), "wyszukiwanie po nowej liście");
+
+            client.addProduct("nowa", "po powrocie", 1, "kg");
+            awaitInSync(client, list);
+        } finally {
+            follower.stop();
+            client.close();
+        }
+    }
+
+    private static void promoteIsNotAClientRequest() throws Exception {
+        byte promote = 14;
+        try (Socket socket = new Socket("127.0.0.1", TestServer.port())) {
+            FrameWriter request = new FrameWriter();
+            request.beginFrame();
+            request.writeLong(1);
+            request.writeByte(promote);
+            request.writeString("repl-3");
+            request.writeLong(-1);
+            request.endFrame();
+            OutputStream out = socket.getOutputStream();
+            request.writeTo(out);
+            out.flush();
+
+            FrameReader response = new FrameReader();
+            Check.isTrue(response.readFrame(new DataInputStream(socket.getInputStream())), "odpowiedź");
+            response.readLong();
+            Check.equal(WireFormat.STATUS_ERROR, response.readByte(), "status");
+            Check.equal("Nieznane żądanie: " + promote, response.readString(), "komunikat");
+        }
+        Check.isTrue(Server.metrics.getMBeanInfo().getOperations()[0].getName().equals("promote"), "operacja JMX");
+    }
+
+    private static void replicationNeedsAllowedAddress() throws Exception {
+        TestServer.port();
+        ClientSession session = new ClientSession(null);
+        session.address = InetAddress.getByName("10.0.0.1");
+        FrameWriter request = new FrameWriter();
+        request.beginFrame();
+        request.writeLong(1);
+        request.writeByte(WireFormat.REPLICATE);
+        request.writeString("");
+        request.writeLong(-1);
+        request.writeInt(1);
+        request.writeInt(0);
+        request.endFrame();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.writeTo(bytes);
+        FrameReader frame = new FrameReader();
+        frame.readFrame(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        FrameWriter response = new FrameWriter();
+        Server.handleRequest(session, frame, response);
+        bytes.reset();
+        response.writeTo(bytes);
+        frame.readFrame(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        frame.readLong();
+        Check.equal(WireFormat.STATUS_ERROR, frame.readByte(), "status");
+        Check.isTrue(!session.replica, "sesja nie jest repliką");
+    }
+
+    // Ta sama lista i ta sama rewizja co na serwerze głównym
+    private static void awaitInSync(ProductListManager client, ProductStore replica) throws Exception {
+        client.refresh();
+        long primaryRevision = primaryRevision(client.getListId());
+        await(() -> replica.revision() == primaryRevision, "replika doszła do rewizji " + primaryRevision
+                + ", ma " + replica.revision());
+        Check.equal(TestServer.copy(client), replica.snapshot().productList, "lista na replice");
+    }
+
+    private static long primaryRevision(String listId) throws IOException, InterruptedException {
+        try (Socket socket = new Socket("127.0.0.1", TestServer.port())) {
+            FrameWriter request = new FrameWriter();
+            request.beginFrame();
+            request.writeLong(1);
+            request.writeByte(WireFormat.GET_LIST);
+            request.writeString(listId);
+            request.writeLong(-1);
+            request.endFrame();
+            request.writeTo(socket.getOutputStream());
+            socket.getOutputStream().flush();
+
+            FrameReader response = new FrameReader();
+            response.readFrame(new DataInputStream(socket.getInputStream()));
+            response.readLong();
+            response.readByte();
+            response.readByte();
+            return response.readLong();
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError(what);
+            }
+            Thread.sleep(20);
+        }
+    }
+}
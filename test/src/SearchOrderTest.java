@@ -0,0 +1,107 @@
+import java.util.*;
+import java.util.function.Predicate;
+
+// Wyszukiwanie zwraca pierwsze pasujące produkty w kolejności nazw (bez wielkości liter), niezależnie od tego,
+// czy indeks przegląda kandydatów z trigramów, czy nazwy po kolei
+class SearchOrderTest {
+    private static final String ALPHABET = "abcdeĄ";
+
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("SearchOrderTest");
+        Check.run("fragment nazwy: pierwsze trafienia w kolejności nazw", SearchOrderTest::substringOrder);
+        Check.run("prefiks: pierwsze trafienia w kolejności nazw", SearchOrderTest::prefixOrder);
+        Check.run("usunięte i zmienione produkty znikają z wyników", SearchOrderTest::followsChanges);
+    }
+
+    private static void substringOrder() {
+        Map<List<String>, Product> products = randomProducts(20_000);
+        ProductIndex index = index(products);
+        for (String fragment : List.of("a", "ą", "ab", "dd", "abc", "eeee", "abcde", "x", "ba", "Ab")) {
+            String normalized = fragment.toLowerCase(Locale.ROOT);
+            for (int limit : new int[]{1, 5, 50, 100_000}) {
+                Check.equal(expected(products, name -> name.contains(normalized), limit),
+                        names(index.searchBySubstring(fragment, limit)), "fragment " + fragment + ", limit " + limit);
+            }
+        }
+    }
+
+    private static void prefixOrder() {
+        Map<List<String>, Product> products = randomProducts(5_000);
+        ProductIndex index = index(products);
+        for (String prefix : List.of("", "a", "Ab", "ccc", "x")) {
+            String normalized = prefix.toLowerCase(Locale.ROOT);
+            for (int limit : new int[]{1, 20, 100_000}) {
+                Check.equal(expected(products, name -> name.startsWith(normalized), limit),
+                        names(index.searchByPrefix(prefix, limit)), "prefiks " + prefix + ", limit " + limit);
+            }
+        }
+    }
+
+    private static void followsChanges() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("owoce", "Borówki", 1, "kg");
+        store.addProduct("owoce", "jabłko", 1, "kg");
+        store.addProduct("warzywa", "bób", 1, "kg");
+        store.editProduct("owoce", "jabłko", "jabłka", 2, "kg");
+        store.removeProduct("warzywa", "bób");
+
+        Check.equal(List.of("owoce/Borówki"), names(store.searchBySubstring("Ó", 10)), "po usunięciu");
+        Check.equal(List.of("owoce/jabłka"), names(store.searchBySubstring("JAB", 10)), "po zmianie nazwy");
+        Check.equal(List.of(), names(store.searchBySubstring("jabłko", 10)), "stara nazwa");
+    }
+
+    private static Map<List<String>, Product> randomProducts(int count) {
+        Random random = new Random(42);
+        Map<List<String>, Product> products = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                char c = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+                name.append(random.nextInt(4) == 0 ? Character.toUpperCase(c) : c);
+            }
+            String category = "k" + random.nextInt(5);
+            products.put(List.of(category, name.toString()), new Product(name.toString(), 1, "kg"));
+        }
+        return products;
+    }
+
+    private static ProductIndex index(Map<List<String>, Product> products) {
+        ProductIndex index = new ProductIndex((category, name) -> products.get(List.of(category, name)));
+        for (List<String> key : products.keySet()) {
+            index.add(key.get(0), key.get(1));
+        }
+        return index;
+    }
+
+    // Kolejność indeksu: nazwa bez wielkości liter, potem kategoria, potem nazwa
+    private static List<String> expected(Map<List<String>, Product> products, Predicate<String> matches, int limit) {
+        List<List<String>> found = new ArrayList<>();
+        for (List<String> key : products.keySet()) {
+            if (matches.test(key.get(1).toLowerCase(Locale.ROOT))) {
+                found.add(key);
+            }
+        }
+        found.sort(Comparator.comparing((List<String> key) -> key.get(1).toLowerCase(Locale.ROOT))
+                .thenComparing(key -> key.get(0))
+                .thenComparing(key -> key.get(1)));
+        List<String> names = new ArrayList<>();
+        for (List<String> key : found.subList(0, Math.min(limit, found.size()))) {
+            names.add(key.get(0) + "/" + key.get(1));
+        }
+        return names;
+    }
+
+    private static List<String> names(List<ProductMatch> matches) {
+        List<String> names = new ArrayList<>();
+        for (ProductMatch match : matches) {
+            names.add(match.category + "/" + match.product.name);
+        }
+        return names;
+    }
+}
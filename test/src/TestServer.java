@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+// Serwer w procesie testów, uruchamiany raz przez Server.main, bo stan serwera jest statyczny:
+// jedna partycja w pamięci, bez metryk HTTP. Listy kolejnych testów muszą mieć różne nazwy.
+final class TestServer {
+    private static int port;
+
+    private TestServer() {
+    }
+
+    static synchronized int port() throws IOException, InterruptedException {
+        if (port != 0) {
+            return port;
+        }
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        String[] args = {"--port=" + port, "--partitions=1", "--workers=1", "--durability=none", "--metrics-port=0",
+                "--replication-allow=127.0.0.1"};
+        Thread server = new Thread(() -> Server.main(args), "test-server");
+        server.setDaemon(true);
+        server.start();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return port;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static ProductListManager client(String listId) throws IOException, InterruptedException {
+        return new ProductListManager("127.0.0.1", port(), listId);
+    }
+
+    // Kopia listy klienta, bo klient zmienia ją w swoim wątku
+    static Map<String, Map<String, Product>> copy(ProductListManager client) {
+        Map<String, Map<String, Product>> copy = new HashMap<>();
+        synchronized (client.getProductList()) {
+            for (Map.Entry<String, Map<String, Product>> category : client.getProductList().entrySet()) {
+                copy.put(category.getKey(), new HashMap<>(category.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    static long metric(String name) {
+        return Server.metrics.values().get(name).longValue();
+    }
+}
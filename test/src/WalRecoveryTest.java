@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Listy odtworzone z katalogu danych po ponownym uruchomieniu: z samego dziennika, z migawki i końca
+// dziennika oraz z dziennika przerwanego w połowie rekordu. Zmiana, której nie udało się zapisać, nie trafia do listy.
+class WalRecoveryTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("WalRecoveryTest");
+        Check.run("listy i rewizje wracają po ponownym uruchomieniu", WalRecoveryTest::restoresLists);
+        Check.run("kolejne uruchomienia dopisują do tego samego segmentu", WalRecoveryTest::reusesSegment);
+        Check.run("niepełny rekord na końcu dziennika jest obcinany", WalRecoveryTest::truncatesTornRecord);
+        Check.run("po zwinięciu do migawki lista wraca z migawki i dziennika", WalRecoveryTest::restoresFromSnapshot);
+        Check.run("uszkodzona długość rekordu nie jest wczytywana", WalRecoveryTest::rejectsCorruptLength);
+        Check.run("zmiany, której dziennik nie przyjął, nie ma na liście", WalRecoveryTest::failedAppendChangesNothing);
+    }
+
+    private static void restoresLists() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        try {
+            ListPartition partition = open(dir, 100_000);
+            ProductStore a = partition.list("a");
+            a.addProduct("owoce", "jabłko", 1, "kg");
+            a.addProduct("owoce", "gruszka", 2, "kg");
+            a.editProduct("owoce", "jabłko", "jabłka", 3, "kg");
+            a.addProduct("warzywa", "marchew", 1, "kg");
+            a.removeProduct("owoce", "gruszka");
+            a.addProducts("napoje", List.of(new Product("sok", 1, "l"), new Product("woda", 6, "l")));
+            a.applyBatch(List.of(BatchOperation.removeCategory("warzywa")));
+            partition.list("b").addProduct("k", "p", 1, "sztuki");
+            partition.awaitDurable();
+
+            ListPartition restored = open(dir, 100_000);
+            checkSameLists(partition, restored);
+            long revision = restored.list("a").revision();
+            restored.list("a").addProduct("owoce", "śliwka", 1, "kg");
+            Check.equal(revision + 1, restored.list("a").revision(), "rewizja po odtworzeniu");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void reusesSegment() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        try {
+            for (int restart = 0; restart < 3; restart++) {
+                ListPartition partition = open(dir, 100_000);
+                partition.list("a").addProduct("k", "p" + restart, 1, "kg");
+                partition.awaitDurable();
+            }
+            Check.equal(1, segments(dir).size(), "segmenty dziennika");
+            Check.equal(3, open(dir, 100_000).list("a").snapshot().productList.get("k").size(), "produkty");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void truncatesTornRecord() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        try {
+            ListPartition partition = open(dir, 100_000);
+            partition.list("a").addProduct("k", "p", 1, "kg");
+            partition.list("a").addProduct("k", "q", 2, "kg");
+            partition.awaitDurable();
+            Path segment = segments(dir).get(0);
+            long length = Files.size(segment);
+            // Początek rekordu, którego reszta nie zdążyła trafić na dysk
+            Files.write(segment, new byte[]{0, 0, 1, 0, 7, 7, 7}, StandardOpenOption.APPEND);
+
+            ListPartition restored = open(dir, 100_000);
+            checkSameLists(partition, restored);
+            Check.equal(length, Files.size(segment), "długość segmentu po obcięciu");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void restoresFromSnapshot() throws Exception {
+        Path dir = Files.createTempDirectory("wal-test");
+        try {
+            ListPartition partition = open(dir, 100);
+            ProductStore list = partition.list("a");
+            for (int i = 0; i < 350; i++) {
+                list.addProduct("k" + i % 7, "p" + i % 120, 1, "kg");
+            }
+            partition.awaitDurable();
+            // Zwijanie działa w tle; kończy się usunięciem zwiniętych segmentów
+            for (int wait = 0; wait < 100 && !(Files.exists(dir.resolve("partition-0").resolve("snapshot.bin")) && segments(dir).size() == 1); wait++) {
+                Thread.sleep(50);
+            }
+            Check.isTrue(Files.exists(dir.resolve("partition-0").resolve("snapshot.bin")), "migawka zapisana");
+            Check.equal(1, segments(dir).size(), "segmenty po zwinięciu");
+
+            checkSameLists(partition, open(dir, 100));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void rejectsCorruptLength() throws IOException {
+        Path dir = Files.createTempDirectory("wal-test");
+        try {
+            ListPartition partition = open(dir, 100_000);
+            partition.list("a").addProduct("k", "p", 1, "kg");
+            partition.awaitDurable();
+            Path segment = segments(dir).get(0);
+            long length = Files.size(segment);
+            // Długość bliska 2 GB w pliku, który ma kilkadziesiąt bajtów
+            Files.write(segment, new byte[]{0x7f, -1, -1, -1, 1, 2, 3, 4, 5, 6, 7, 8}, StandardOpenOption.APPEND);
+
+            ListPartition restored = open(dir, 100_000);
+            checkSameLists(partition, restored);
+            Check.equal(length, Files.size(segment), "długość segmentu po obcięciu");
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void failedAppendChangesNothing() {
+        ProductStore store = new ProductStore(WireFormat.availableUnits());
+        store.addProduct("owoce", "jabłko", 1, "kg");
+        long revision = store.revision();
+        Map<String, Map<String, Product>> before = store.snapshot().productList;
+        List<Change> journaled = new ArrayList<>();
+        boolean[] failing = {true};
+        store.setJournal(new ChangeJournal() {
+            @Override
+            public void append(Change change) {
+                appendAll(List.of(change));
+            }
+
+            @Override
+            public void appendAll(List<Change> changes) {
+                if (failing[0]) {
+                    throw new IllegalStateException("dysk pełny");
+                }
+                journaled.addAll(changes);
+            }
+
+            @Override
+            public void checkpoint() {
+            }
+        });
+
+        Check.fails(IllegalStateException.class, () -> store.addProduct("owoce", "gruszka", 1, "kg"), "nowy produkt");
+        Check.fails(IllegalStateException.class, () -> store.addProduct("warzywa", "marchew", 1, "kg"), "nowa kategoria");
+        Check.fails(IllegalStateException.class, () -> store.editProduct("owoce", "jabłko", "jabłka", 2, "kg"), "zmiana");
+        Check.fails(IllegalStateException.class, () -> store.removeProduct("owoce", "jabłko"), "usunięcie");
+        Check.fails(IllegalStateException.class, () -> store.applyBatch(List.of(BatchOperation.clear())), "paczka");
+        Check.equal(before, store.snapshot().productList, "lista");
+        Check.equal(revision, store.revision(), "rewizja");
+
+        // Kolejna udana zmiana dostaje następną rewizję, bez luki po nieudanych
+        failing[0] = false;
+        store.addProduct("owoce", "gruszka", 1, "kg");
+        Check.equal(revision + 1, store.revision(), "rewizja po udanym zapisie");
+        Check.equal(revision + 1, journaled.get(0).revision, "rewizja w dzienniku");
+    }
+
+    private static ListPartition open(Path dir, int snapshotEvery) throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.partitions = 1;
+        config.durability = ServerConfig.Durability.SYNC;
+        config.dataDir = dir.toString();
+        config.snapshotEvery = snapshotEvery;
+        return ListPartition.open(config)[0];
+    }
+
+    private static void checkSameLists(ListPartition expected, ListPartition actual) {
+        Check.equal(expected.lists().keySet(), actual.lists().keySet(), "listy");
+        for (Map.Entry<String, ProductStore> list : expected.lists().entrySet()) {
+            ProductStore.Snapshot before = list.getValue().snapshot();
+            ProductStore.Snapshot after = actual.list(list.getKey()).snapshot();
+            Check.equal(before.productList, after.productList, "lista " + list.getKey());
+            Check.equal(before.revision, after.revision, "rewizja listy " + list.getKey());
+        }
+    }
+
+    private static List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve("partition-0"), "wal-*.log")) {
+            files.forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
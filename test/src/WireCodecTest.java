@@ -0,0 +1,194 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Ramki zapisane przez FrameWriter odczytują się przez FrameReader bez zmian, a ramki z niezaufanego źródła
+// z nieprawidłową długością, liczbą elementów albo kodem są odrzucane wyjątkiem, zanim cokolwiek zaalokują
+class WireCodecTest {
+    public static void main(String[] args) {
+        run();
+        Check.finish();
+    }
+
+    static void run() {
+        System.out.println("WireCodecTest");
+        Check.run("typy proste i napisy spoza ASCII wracają bez zmian", WireCodecTest::primitives);
+        Check.run("produkty, zmiany i operacje wracają bez zmian", WireCodecTest::records);
+        Check.run("kolejne ramki ze strumienia i z bufora", WireCodecTest::consecutiveFrames);
+        Check.run("ramka większa niż limit jest odrzucana", WireCodecTest::oversizedFrame);
+        Check.run("pola wychodzące poza ramkę są odrzucane", WireCodecTest::fieldsOutsideFrame);
+        Check.run("nieznane kody jednostek i operacji są odrzucane", WireCodecTest::unknownCodes);
+    }
+
+    private static void primitives() throws IOException {
+        FrameWriter writer = new FrameWriter(16);
+        writer.beginFrame();
+        writer.writeByte(-7);
+        writer.writeBoolean(true);
+        writer.writeInt(Integer.MIN_VALUE);
+        writer.writeLong(Long.MAX_VALUE);
+        writer.writeDouble(0.1);
+        writer.writeDouble(Double.NaN);
+        writer.writeString("");
+        writer.writeString("żółć, \"ząb\"\r\n");
+        writer.writeString("🍎 jabłko");
+        writer.endFrame();
+
+        FrameReader reader = read(writer);
+        Check.equal((byte) -7, reader.readByte(), "bajt");
+        Check.equal(true, reader.readBoolean(), "wartość logiczna");
+        Check.equal(Integer.MIN_VALUE, reader.readInt(), "int");
+        Check.equal(Long.MAX_VALUE, reader.readLong(), "long");
+        Check.equal(0.1, reader.readDouble(), "double");
+        Check.isTrue(Double.isNaN(reader.readDouble()), "NaN");
+        Check.equal("", reader.readString(), "pusty napis");
+        Check.equal("żółć, \"ząb\"\r\n", reader.readString(), "polskie znaki");
+        Check.equal("🍎 jabłko", reader.readString(), "znak spoza BMP");
+        Check.isTrue(!reader.hasRemaining(), "koniec ramki");
+    }
+
+    private static void records() throws IOException {
+        FrameWriter writer = new FrameWriter();
+        writer.beginFrame();
+        for (String unit : WireFormat.UNITS) {
+            writer.writeProduct(new Product("p " + unit, 1.25, unit));
+        }
+        writer.writeChange(new Change(5, Change.Type.PUT_PRODUCT, "owoce", "jabłko", new Product("jabłka", 2, "kg")));
+        writer.writeChange(new Change(6, Change.Type.PUT_PRODUCT, "owoce", null, new Product("gruszka", 1, "sztuki")));
+        writer.writeChange(new Change(7, Change.Type.REMOVE_PRODUCT, "owoce", "gruszka", null));
+        writer.writeChange(new Change(8, Change.Type.REMOVE_CATEGORY, "owoce", null, null));
+        writer.writeOperation(BatchOperation.editProduct("owoce", "jabłko", "jabłka", 3, "kg"));
+        writer.writeOperation(BatchOperation.clear());
+        writer.writeSnapshot(Map.of("owoce", Map.of("jabłko", new Product("jabłko", 1, "kg")), "puste", Map.of()),
+                Map.of("owoce", 4L));
+        writer.endFrame();
+
+        FrameReader reader = read(writer);
+        for (String unit : WireFormat.UNITS) {
+            Check.equal(new Product("p " + unit, 1.25, unit), reader.readProduct(), "produkt w jednostce " + unit);
+        }
+        checkChange(new Change(5, Change.Type.PUT_PRODUCT, "owoce", "jabłko", new Product("jabłka", 2, "kg")), reader.readChange());
+        checkChange(new Change(6, Change.Type.PUT_PRODUCT, "owoce", null, new Product("gruszka", 1, "sztuki")), reader.readChange());
+        checkChange(new Change(7, Change.Type.REMOVE_PRODUCT, "owoce", "gruszka", null), reader.readChange());
+        checkChange(new Change(8, Change.Type.REMOVE_CATEGORY, "owoce", null, null), reader.readChange());
+        BatchOperation edit = reader.readOperation();
+        Check.equal(List.of(WireFormat.EDIT_PRODUCT, "owoce", "jabłko", "jabłka", 3.0, "kg"),
+                List.of(edit.opcode, edit.category, edit.name, edit.newName, edit.quantity, edit.unit), "operacja");
+        Check.equal(WireFormat.CLEAR, reader.readOperation().opcode, "czyszczenie");
+        Map<String, Long> revisions = new HashMap<>();
+        Check.equal(Map.of("owoce", Map.of("jabłko", new Product("jabłko", 1, "kg")), "puste", Map.of()),
+                reader.readSnapshot(revisions), "migawka");
+        Check.equal(4L, revisions.get("owoce"), "rewizja kategorii");
+        Check.isTrue(!reader.hasRemaining(), "koniec ramki");
+    }
+
+    private static void consecutiveFrames() throws IOException {
+        FrameWriter writer = new FrameWriter();
+        for (int i = 0; i < 3; i++) {
+            writer.beginFrame();
+            writer.writeInt(i);
+            writer.writeString("ramka " + i);
+            writer.endFrame();
+        }
+        byte[] bytes = bytes(writer);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        FrameReader reader = new FrameReader();
+        for (int i = 0; i < 3; i++) {
+            Check.isTrue(reader.readFrame(in), "ramka " + i + " ze strumienia");
+            Check.equal(i, reader.readInt(), "numer ramki");
+            Check.equal("ramka " + i, reader.readString(), "treść ramki");
+        }
+        Check.isTrue(!reader.readFrame(in), "koniec strumienia");
+
+        // Bufor z niepełną ostatnią ramką, tak jak po odczycie z gniazda NIO
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        for (int i = 0; i < 2; i++) {
+            Check.isTrue(reader.readFrame(buffer), "ramka " + i + " z bufora");
+            Check.equal(i, reader.readInt(), "numer ramki z bufora");
+        }
+        int position = buffer.position();
+        Check.isTrue(!reader.readFrame(buffer), "niepełna ramka");
+        Check.equal(position, buffer.position(), "pozycja po niepełnej ramce");
+    }
+
+    private static void oversizedFrame() {
+        FrameWriter writer = new FrameWriter();
+        writer.beginFrame();
+        writer.writeString("x".repeat(2000));
+        writer.endFrame();
+        byte[] bytes = bytes(writer);
+        Check.fails(IOException.class, () -> new FrameReader(1024).readFrame(new DataInputStream(new ByteArrayInputStream(bytes))),
+                "ramka ze strumienia");
+        Check.fails(IOException.class, () -> new FrameReader(1024).readFrame(ByteBuffer.wrap(bytes)), "ramka z bufora");
+
+        // Długość ujemna albo ponad limit łącza, bez treści za nią
+        for (int length : new int[]{-1, WireFormat.MAX_FRAME_SIZE + 1, Integer.MAX_VALUE}) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(0, length);
+            Check.fails(IOException.class, () -> new FrameReader().readFrame(header), "długość " + length);
+        }
+    }
+
+    private static void fieldsOutsideFrame() throws IOException {
+        FrameWriter writer = new FrameWriter();
+        writer.beginFrame();
+        writer.writeInt(1_000_000);
+        writer.endFrame();
+        Check.fails(EOFException.class, () -> read(writer).readString(), "napis dłuższy niż ramka");
+        Check.fails(IOException.class, () -> read(writer).readCount(), "liczba elementów większa niż ramka");
+        Check.fails(IOException.class, () -> read(writer).readSnapshot(new HashMap<>()), "migawka");
+
+        writer.reset();
+        writer.beginFrame();
+        writer.writeInt(-1);
+        writer.endFrame();
+        Check.fails(IOException.class, () -> read(writer).readString(), "ujemna długość napisu");
+
+        FrameReader reader = read(writer);
+        reader.readInt();
+        Check.fails(EOFException.class, reader::readLong, "odczyt za końcem ramki");
+    }
+
+    private static void unknownCodes() throws IOException {
+        FrameWriter writer = new FrameWriter();
+        writer.beginFrame();
+        writer.writeByte(WireFormat.UNITS.length);
+        writer.writeByte(-1);
+        writer.writeByte(99);
+        writer.endFrame();
+        FrameReader reader = read(writer);
+        Check.fails(IOException.class, reader::readUnit, "kod jednostki za tablicą");
+        Check.fails(IOException.class, reader::readUnit, "ujemny kod jednostki");
+        Check.fails(IOException.class, reader::readOperation, "nieznana operacja");
+    }
+
+    private static void checkChange(Change expected, Change actual) {
+        String what = "zmiana " + expected.revision;
+        Check.equal(List.of(expected.revision, expected.type, expected.category),
+                List.of(actual.revision, actual.type, actual.category), what);
+        Check.equal(expected.name, actual.name, what + ", nazwa");
+        Check.equal(expected.product, actual.product, what + ", produkt");
+    }
+
+    private static FrameReader read(FrameWriter writer) throws IOException {
+        FrameReader reader = new FrameReader();
+        Check.isTrue(reader.readFrame(new DataInputStream(new ByteArrayInputStream(bytes(writer)))), "ramka");
+        return reader;
+    }
+
+    private static byte[] bytes(FrameWriter writer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writer.writeTo(out);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+}